@@ -6,7 +6,6 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
@@ -94,7 +93,8 @@ public class MetadataLabelProviderImpl implements MetadataLabelProvider {
 	@Override
 	public void updateMetadataTags() {
 		requireNonNull(metricRegistry, "metricRegistry must not be null!");
-		metricRegistry.getMetadata().values().forEach(md -> md.setTags(new HashMap<>(get())));
+		// through the registry, so its listeners see the new tags
+		metricRegistry.getMetadata().keySet().forEach(name -> metricRegistry.updateTags(name, get()));
 	}
 
 	/**
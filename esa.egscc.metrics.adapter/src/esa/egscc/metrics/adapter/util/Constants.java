@@ -53,6 +53,7 @@ public final class Constants {
 
     // Histogram, Meter, or Timer Constants
     public static final String QUANTILE = "quantile";
+    public static final String LE = "le";
     public static final String COUNT = "count";
     public static final String MEAN_RATE = "meanRate";
     public static final String ONE_MINUTE_RATE = "oneMinRate";
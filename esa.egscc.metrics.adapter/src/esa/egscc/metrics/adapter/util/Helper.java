@@ -10,10 +10,13 @@ import esa.egscc.metrics.api.Metadata;
 import esa.egscc.metrics.api.Meter;
 import esa.egscc.metrics.api.Metric;
 import esa.egscc.metrics.api.MetricRegistry;
+import esa.egscc.metrics.api.Snapshot;
 import esa.egscc.metrics.api.Timer;
 
 public class Helper {
 
+	private static final double[] PERCENTILES = { 0.5, 0.75, 0.95, 0.98, 0.99, 0.999 };
+
 	private Helper() {
 		throw new IllegalAccessError("Non-Instantiable");
 	}
@@ -74,18 +77,7 @@ public class Helper {
 		results.put(Constants.FIVE_MINUTE_RATE, timer.getFiveMinuteRate());
 		results.put(Constants.FIFTEEN_MINUTE_RATE, timer.getFifteenMinuteRate());
 
-		results.put(Constants.MAX, timer.getSnapshot().getMax());
-		results.put(Constants.MEAN, timer.getSnapshot().getMean());
-		results.put(Constants.MIN, timer.getSnapshot().getMin());
-
-		results.put(Constants.STD_DEV, timer.getSnapshot().getStdDev());
-
-		results.put(Constants.MEDIAN, timer.getSnapshot().getMedian());
-		results.put(Constants.PERCENTILE_75TH, timer.getSnapshot().get75thPercentile());
-		results.put(Constants.PERCENTILE_95TH, timer.getSnapshot().get95thPercentile());
-		results.put(Constants.PERCENTILE_98TH, timer.getSnapshot().get98thPercentile());
-		results.put(Constants.PERCENTILE_99TH, timer.getSnapshot().get99thPercentile());
-		results.put(Constants.PERCENTILE_999TH, timer.getSnapshot().get999thPercentile());
+		putSnapshotNumbers(results, timer.getSnapshot());
 
 		return results;
 	}
@@ -94,22 +86,31 @@ public class Helper {
 		final Map<String, Number> results = new HashMap<>();
 		results.put(Constants.COUNT, histogram.getCount());
 
-		results.put(Constants.MAX, histogram.getSnapshot().getMax());
-		results.put(Constants.MEAN, histogram.getSnapshot().getMean());
-		results.put(Constants.MIN, histogram.getSnapshot().getMin());
-
-		results.put(Constants.STD_DEV, histogram.getSnapshot().getStdDev());
-
-		results.put(Constants.MEDIAN, histogram.getSnapshot().getMedian());
-		results.put(Constants.PERCENTILE_75TH, histogram.getSnapshot().get75thPercentile());
-		results.put(Constants.PERCENTILE_95TH, histogram.getSnapshot().get95thPercentile());
-		results.put(Constants.PERCENTILE_98TH, histogram.getSnapshot().get98thPercentile());
-		results.put(Constants.PERCENTILE_99TH, histogram.getSnapshot().get99thPercentile());
-		results.put(Constants.PERCENTILE_999TH, histogram.getSnapshot().get999thPercentile());
+		putSnapshotNumbers(results, histogram.getSnapshot());
 
 		return results;
 	}
 
+	/*
+	 * Puts the statistics of a single snapshot, evaluating all percentiles in one
+	 * pass.
+	 */
+	private static void putSnapshotNumbers(final Map<String, Number> results, final Snapshot snapshot) {
+		results.put(Constants.MAX, snapshot.getMax());
+		results.put(Constants.MEAN, snapshot.getMean());
+		results.put(Constants.MIN, snapshot.getMin());
+
+		results.put(Constants.STD_DEV, snapshot.getStdDev());
+
+		final double[] percentiles = snapshot.getValues(PERCENTILES);
+		results.put(Constants.MEDIAN, percentiles[0]);
+		results.put(Constants.PERCENTILE_75TH, percentiles[1]);
+		results.put(Constants.PERCENTILE_95TH, percentiles[2]);
+		results.put(Constants.PERCENTILE_98TH, percentiles[3]);
+		results.put(Constants.PERCENTILE_99TH, percentiles[4]);
+		results.put(Constants.PERCENTILE_999TH, percentiles[5]);
+	}
+
 	public static Map<String, Number> getMeterNumbers(final Meter meter) {
 		final Map<String, Number> results = new HashMap<>();
 		results.put(Constants.COUNT, meter.getCount());
@@ -1,26 +1,44 @@
 package esa.egscc.metrics.adapter.util;
 
 import java.text.DecimalFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+import esa.egscc.metrics.api.Bucketing;
+import esa.egscc.metrics.api.Buckets;
 import esa.egscc.metrics.api.Counter;
 import esa.egscc.metrics.api.Counting;
 import esa.egscc.metrics.api.Gauge;
 import esa.egscc.metrics.api.Histogram;
+import esa.egscc.metrics.api.LongTaskTimer;
 import esa.egscc.metrics.api.Meter;
 import esa.egscc.metrics.api.Metered;
+import esa.egscc.metrics.api.Metric;
+import esa.egscc.metrics.api.MetricFamily;
+import esa.egscc.metrics.api.MetricTags;
 import esa.egscc.metrics.api.MetricUnits;
 import esa.egscc.metrics.api.Sampling;
+import esa.egscc.metrics.api.Snapshot;
 import esa.egscc.metrics.api.Timer;
 
 public class PrometheusBuilder {
 
 	private static DecimalFormat numberFormat = new DecimalFormat( "0.###########");
 
+	// the quantiles of a summary, ascending so snapshots can evaluate them in one pass
+	private static final double[] QUANTILES = { 0.5, 0.75, 0.95, 0.98, 0.99, 0.999 };
+	private static final String[] QUANTILE_LABELS = { "0.5", "0.75", "0.95", "0.98", "0.99", "0.999" };
+
     private PrometheusBuilder() {
 		throw new IllegalAccessError("Non-Instantiable");
 	}
 
 	public static void buildGauge(final StringBuilder builder, final String name, final Gauge<?> gauge,
+	        final String description, final Double conversionFactor, final String tags, final String appendUnit) {
+		buildGauge(new Lines(builder), name, gauge, description, conversionFactor, tags, appendUnit);
+	}
+
+	private static void buildGauge(final Lines lines, final String name, final Gauge<?> gauge,
 	        final String description, final Double conversionFactor, final String tags, final String appendUnit) {
 		// Skip non number values
 		Number gaugeValNumber = null;
@@ -38,139 +56,215 @@ public class PrometheusBuilder {
 		if (!Double.isNaN(conversionFactor)) {
 	        gaugeValNumber = gaugeValNumber.doubleValue() * conversionFactor;
 		}
-		getPromTypeLine(builder, name, "gauge", appendUnit);
-		getPromHelpLine(builder, name, description, appendUnit);
-		getPromValueLine(builder, name, gaugeValNumber, tags, appendUnit);
+		getPromTypeLine(lines, name, "gauge", appendUnit);
+		getPromHelpLine(lines, name, description, appendUnit);
+		getPromValueLine(lines, name, gaugeValNumber, tags, appendUnit);
 	}
 
 	public static void buildCounter(final StringBuilder builder, final String name, final Counter counter,
 	        final String description, final String tags) {
-		getPromTypeLine(builder, name, "counter");
-		getPromHelpLine(builder, name, description);
-		getPromValueLine(builder, name, counter.getCount(), tags);
+		buildCounter(new Lines(builder), name, counter, description, tags);
+	}
+
+	private static void buildCounter(final Lines lines, final String name, final Counter counter,
+	        final String description, final String tags) {
+		getPromTypeLine(lines, name, "counter");
+		getPromHelpLine(lines, name, description);
+		getPromValueLine(lines, name, counter.getCount(), tags);
 	}
 
 	public static void buildTimer(final StringBuilder builder, final String name, final Timer timer,
 	        final String description, final String tags) {
-		buildMetered(builder, name, timer, description, tags);
+		buildTimer(new Lines(builder), name, timer, description, tags);
+	}
+
+	private static void buildTimer(final Lines lines, final String name, final Timer timer,
+	        final String description, final String tags) {
+		buildMetered(lines, name, timer, description, tags);
 		final double conversionFactor = Constants.NANOSECONDCONVERSION;
 		// Build Histogram
-		buildSampling(builder, name, timer, description, conversionFactor, tags, Constants.APPENDEDSECONDS);
+		if (!buildBuckets(lines, name, timer, description, conversionFactor, tags, Constants.APPENDEDSECONDS)) {
+			buildSampling(lines, name, timer, description, conversionFactor, tags, Constants.APPENDEDSECONDS);
+		}
+	}
+
+	public static void buildLongTaskTimer(final StringBuilder builder, final String name,
+	        final LongTaskTimer timer, final String description, final String tags) {
+		final Lines lines = new Lines(builder);
+		final double conversionFactor = Constants.NANOSECONDCONVERSION;
+		String lineName = name + "_active_tasks";
+		getPromTypeLine(lines, lineName, "gauge");
+		getPromHelpLine(lines, lineName, description);
+		getPromValueLine(lines, lineName, timer.getActiveTasks(), tags);
+
+		lineName = name + "_duration";
+		getPromTypeLine(lines, lineName, "gauge", Constants.APPENDEDSECONDS);
+		getPromValueLine(lines, lineName, timer.getDuration() * conversionFactor, tags, Constants.APPENDEDSECONDS);
+
+		lineName = name + "_max";
+		getPromTypeLine(lines, lineName, "gauge", Constants.APPENDEDSECONDS);
+		getPromValueLine(lines, lineName, timer.getMaxDuration() * conversionFactor, tags,
+		        Constants.APPENDEDSECONDS);
 	}
 
 	public static void buildHistogram(final StringBuilder builder, final String name, final Histogram histogram,
+	        final String description, final Double conversionFactor, final String tags, final String appendUnit) {
+		buildHistogram(new Lines(builder), name, histogram, description, conversionFactor, tags, appendUnit);
+	}
+
+	private static void buildHistogram(final Lines lines, final String name, final Histogram histogram,
 	        final String description, final Double conversionFactor, final String tags, final String appendUnit) {
 		// Build Histogram
-		buildSampling(builder, name, histogram, description, conversionFactor, tags, appendUnit);
+		if (!buildBuckets(lines, name, histogram, description, conversionFactor, tags, appendUnit)) {
+			buildSampling(lines, name, histogram, description, conversionFactor, tags, appendUnit);
+		}
 	}
 
 	public static void buildMeter(final StringBuilder builder, final String name, final Meter meter,
 	        final String description, final String tags) {
-		buildCounting(builder, name, meter, description, tags);
-		buildMetered(builder, name, meter, description, tags);
+		buildMeter(new Lines(builder), name, meter, description, tags);
 	}
 
-	private static void buildSampling(final StringBuilder builder, final String name, final Sampling sampling,
-	        final String description, final Double conversionFactor, final String tags, final String appendUnit) {
+	private static void buildMeter(final Lines lines, final String name, final Meter meter,
+	        final String description, final String tags) {
+		buildCounting(lines, name, meter, description, tags);
+		buildMetered(lines, name, meter, description, tags);
+	}
 
-		double meanVal = sampling.getSnapshot().getMean();
-		double maxVal = sampling.getSnapshot().getMax();
-		double minVal = sampling.getSnapshot().getMin();
-		double stdDevVal = sampling.getSnapshot().getStdDev();
-		double medianVal = sampling.getSnapshot().getMedian();
-		double percentile75th = sampling.getSnapshot().get75thPercentile();
-		double percentile95th = sampling.getSnapshot().get95thPercentile();
-		double percentile98th = sampling.getSnapshot().get98thPercentile();
-		double percentile99th = sampling.getSnapshot().get99thPercentile();
-		double percentile999th = sampling.getSnapshot().get999thPercentile();
+	public static void buildFamily(final StringBuilder builder, final String name, final MetricFamily<?> family,
+	        final String description, final Double conversionFactor, final String tags, final String appendUnit) {
+		// the TYPE and HELP lines of each metric name are written once, followed by
+		// the samples of all children, each with its labels rendered when it was
+		// created
+		final FamilyLines lines = new FamilyLines(builder);
+		for (final Map.Entry<MetricTags, ? extends Metric> entry : family.getLabeledChildren().entrySet()) {
+			lines.labels = entry.getKey().getPrometheusLabels();
+			buildChild(lines, name, entry.getValue(), description, conversionFactor, tags, appendUnit);
+		}
+		lines.flush();
+	}
 
-		if (!Double.isNaN(conversionFactor)) {
-			meanVal = sampling.getSnapshot().getMean() * conversionFactor;
-			maxVal = sampling.getSnapshot().getMax() * conversionFactor;
-			minVal = sampling.getSnapshot().getMin() * conversionFactor;
-			stdDevVal = sampling.getSnapshot().getStdDev() * conversionFactor;
-			medianVal = sampling.getSnapshot().getMedian() * conversionFactor;
-			percentile75th = sampling.getSnapshot().get75thPercentile() * conversionFactor;
-			percentile95th = sampling.getSnapshot().get95thPercentile() * conversionFactor;
-			percentile98th = sampling.getSnapshot().get98thPercentile() * conversionFactor;
-			percentile99th = sampling.getSnapshot().get99thPercentile() * conversionFactor;
-			percentile999th = sampling.getSnapshot().get999thPercentile() * conversionFactor;
+	private static void buildChild(final Lines lines, final String name, final Metric metric,
+	        final String description, final Double conversionFactor, final String tags, final String appendUnit) {
+		if (Counter.class.isInstance(metric)) {
+			buildCounter(lines, name, (Counter) metric, description, tags);
+		} else if (Gauge.class.isInstance(metric)) {
+			buildGauge(lines, name, (Gauge<?>) metric, description, conversionFactor, tags, appendUnit);
+		} else if (Timer.class.isInstance(metric)) {
+			buildTimer(lines, name, (Timer) metric, description, tags);
+		} else if (Histogram.class.isInstance(metric)) {
+			buildHistogram(lines, name, (Histogram) metric, description, conversionFactor, tags, appendUnit);
+		} else if (Meter.class.isInstance(metric)) {
+			buildMeter(lines, name, (Meter) metric, description, tags);
 		}
+	}
+
+	private static void buildSampling(final Lines lines, final String name, final Sampling sampling,
+	        final String description, final Double conversionFactor, final String tags, final String appendUnit) {
+
+		// one snapshot per metric and scrape, all quantiles evaluated in one pass
+		final Snapshot snapshot = sampling.getSnapshot();
+		final double[] quantileValues = snapshot.getValues(QUANTILES);
+		final double factor = Double.isNaN(conversionFactor) ? 1 : conversionFactor;
 
 		String lineName = name + "_mean";
-		getPromTypeLine(builder, lineName, "gauge", appendUnit);
-		getPromValueLine(builder, lineName, meanVal, tags, appendUnit);
+		getPromTypeLine(lines, lineName, "gauge", appendUnit);
+		getPromValueLine(lines, lineName, snapshot.getMean() * factor, tags, appendUnit);
 		lineName = name + "_max";
-		getPromTypeLine(builder, lineName, "gauge", appendUnit);
-		getPromValueLine(builder, lineName, maxVal, tags, appendUnit);
+		getPromTypeLine(lines, lineName, "gauge", appendUnit);
+		getPromValueLine(lines, lineName, snapshot.getMax() * factor, tags, appendUnit);
 		lineName = name + "_min";
-		getPromTypeLine(builder, lineName, "gauge", appendUnit);
-		getPromValueLine(builder, lineName, minVal, tags, appendUnit);
+		getPromTypeLine(lines, lineName, "gauge", appendUnit);
+		getPromValueLine(lines, lineName, snapshot.getMin() * factor, tags, appendUnit);
 		lineName = name + "_stddev";
-		getPromTypeLine(builder, lineName, "gauge", appendUnit);
-		getPromValueLine(builder, lineName, stdDevVal, tags, appendUnit);
+		getPromTypeLine(lines, lineName, "gauge", appendUnit);
+		getPromValueLine(lines, lineName, snapshot.getStdDev() * factor, tags, appendUnit);
 
-		getPromTypeLine(builder, name, "summary", appendUnit);
-		getPromHelpLine(builder, name, description, appendUnit);
+		getPromTypeLine(lines, name, "summary", appendUnit);
+		getPromHelpLine(lines, name, description, appendUnit);
 		if (Counting.class.isInstance(sampling)) {
-			getPromValueLine(builder, name, ((Counting) sampling).getCount(), tags,
+			getPromValueLine(lines, name, ((Counting) sampling).getCount(), tags,
 			        appendUnit == null ? "_count" : appendUnit + "_count");
 		}
-		getPromValueLine(builder, name, medianVal, tags, new Tag(Constants.QUANTILE, "0.5"), appendUnit);
-		getPromValueLine(builder, name, percentile75th, tags, new Tag(Constants.QUANTILE, "0.75"), appendUnit);
-		getPromValueLine(builder, name, percentile95th, tags, new Tag(Constants.QUANTILE, "0.95"), appendUnit);
-		getPromValueLine(builder, name, percentile98th, tags, new Tag(Constants.QUANTILE, "0.98"), appendUnit);
-		getPromValueLine(builder, name, percentile99th, tags, new Tag(Constants.QUANTILE, "0.99"), appendUnit);
-		getPromValueLine(builder, name, percentile999th, tags, new Tag(Constants.QUANTILE, "0.999"), appendUnit);
+		for (int i = 0; i < QUANTILES.length; i++) {
+			getPromValueLine(lines, name, quantileValues[i] * factor, tags,
+			        new Tag(Constants.QUANTILE, QUANTILE_LABELS[i]), appendUnit);
+		}
+	}
+
+	/*
+	 * Build a native Prometheus histogram if the metric has buckets. Returns false
+	 * if it has none, so the caller can fall back to a summary.
+	 */
+	private static boolean buildBuckets(final Lines lines, final String name, final Object metric,
+	        final String description, final Double conversionFactor, final String tags, final String appendUnit) {
+		if (!Bucketing.class.isInstance(metric)) {
+			return false;
+		}
+		final Buckets buckets = ((Bucketing) metric).getBuckets();
+		if (buckets == null) {
+			return false;
+		}
+		final boolean convert = !Double.isNaN(conversionFactor);
+		final String unit = appendUnit == null ? "" : appendUnit;
+
+		getPromTypeLine(lines, name, "histogram", appendUnit);
+		getPromHelpLine(lines, name, description, appendUnit);
+		final long[] upperBounds = buckets.getUpperBounds();
+		final long[] counts = buckets.getCounts();
+		for (int i = 0; i < upperBounds.length; i++) {
+			final String le = numberFormat.format(convert ? upperBounds[i] * conversionFactor : upperBounds[i]);
+			getPromValueLine(lines, name, counts[i], tags, new Tag(Constants.LE, le), unit + "_bucket");
+		}
+		getPromValueLine(lines, name, buckets.getCount(), tags, new Tag(Constants.LE, "+Inf"), unit + "_bucket");
+		getPromValueLine(lines, name, convert ? buckets.getSum() * conversionFactor : buckets.getSum(), tags,
+		        unit + "_sum");
+		getPromValueLine(lines, name, buckets.getCount(), tags, unit + "_count");
+		return true;
 	}
 
-	private static void buildCounting(final StringBuilder builder, final String name, final Counting counting,
+	private static void buildCounting(final Lines lines, final String name, final Counting counting,
 	        final String description, final String tags) {
 		final String lineName = name + "_total";
-		getPromTypeLine(builder, lineName, "counter");
-		getPromHelpLine(builder, lineName, description);
-		getPromValueLine(builder, lineName, counting.getCount(), tags);
+		getPromTypeLine(lines, lineName, "counter");
+		getPromHelpLine(lines, lineName, description);
+		getPromValueLine(lines, lineName, counting.getCount(), tags);
 	}
 
-	private static void buildMetered(final StringBuilder builder, final String name, final Metered metered,
+	private static void buildMetered(final Lines lines, final String name, final Metered metered,
 	        final String description, final String tags) {
 		String lineName = name + "_rate_" + MetricUnits.PER_SECOND.toString();
-		getPromTypeLine(builder, lineName, "gauge");
-		getPromValueLine(builder, lineName, metered.getMeanRate(), tags);
+		getPromTypeLine(lines, lineName, "gauge");
+		getPromValueLine(lines, lineName, metered.getMeanRate(), tags);
 
 		lineName = name + "_one_min_rate_" + MetricUnits.PER_SECOND.toString();
-		getPromTypeLine(builder, lineName, "gauge");
-		getPromValueLine(builder, lineName, metered.getOneMinuteRate(), tags);
+		getPromTypeLine(lines, lineName, "gauge");
+		getPromValueLine(lines, lineName, metered.getOneMinuteRate(), tags);
 
 		lineName = name + "_five_min_rate_" + MetricUnits.PER_SECOND.toString();
-		getPromTypeLine(builder, lineName, "gauge");
-		getPromValueLine(builder, lineName, metered.getFiveMinuteRate(), tags);
+		getPromTypeLine(lines, lineName, "gauge");
+		getPromValueLine(lines, lineName, metered.getFiveMinuteRate(), tags);
 
 		lineName = name + "_fifteen_min_rate_" + MetricUnits.PER_SECOND.toString();
-		getPromTypeLine(builder, lineName, "gauge");
-		getPromValueLine(builder, lineName, metered.getFifteenMinuteRate(), tags);
+		getPromTypeLine(lines, lineName, "gauge");
+		getPromValueLine(lines, lineName, metered.getFifteenMinuteRate(), tags);
 	}
 
-	private static void getPromValueLine(final StringBuilder builder, final String name, final Number value,
+	private static void getPromValueLine(final Lines lines, final String name, final Number value,
 	        final String tags) {
-		getPromValueLine(builder, name, value, tags, null);
+		getPromValueLine(lines, name, value, tags, null, null);
 	}
 
-	private static void getPromValueLine(final StringBuilder builder, final String name, final Number value,
-	        String tags, final Tag quantile, final String appendUnit) {
-
-		if (tags == null || tags.isEmpty()) {
-			tags = quantile.getKey() + "=\"" + quantile.getValue() + "\"";
-		} else {
-			tags = tags + "," + quantile.getKey() + "=\"" + quantile.getValue() + "\"";
-		}
-		getPromValueLine(builder, name, value, tags, appendUnit);
+	private static void getPromValueLine(final Lines lines, final String name, final Number value,
+	        final String tags, final String appendUnit) {
+		getPromValueLine(lines, name, value, tags, null, appendUnit);
 	}
 
-	private static void getPromValueLine(final StringBuilder builder, final String name, final Number value,
-	        final String tags, final String appendUnit) {
+	private static void getPromValueLine(final Lines lines, final String name, final Number value,
+	        final String tags, final Tag tag, final String appendUnit) {
 
 		final String metricName = getPrometheusMetricName(name);
+		final StringBuilder builder = lines.samples();
 
 		builder.append(metricName);
 
@@ -178,22 +272,43 @@ public class PrometheusBuilder {
 			builder.append(appendUnit);
 		}
 
-		if (tags != null && tags.length() > 0) {
-			builder.append("{").append(tags).append("}");
+		// the tags of the metric, the labels of a family child and the tag of the
+		// sample are appended one after the other, without joining them first
+		final String labels = lines.labels;
+		final boolean hasTags = tags != null && !tags.isEmpty();
+		final boolean hasLabels = labels != null && !labels.isEmpty();
+		if (hasTags || hasLabels || tag != null) {
+			builder.append('{');
+			if (hasTags) {
+				builder.append(tags);
+			}
+			if (hasLabels) {
+				if (hasTags) {
+					builder.append(',');
+				}
+				builder.append(labels);
+			}
+			if (tag != null) {
+				if (hasTags || hasLabels) {
+					builder.append(',');
+				}
+				builder.append(tag.getKey()).append("=\"").append(tag.getValue()).append('"');
+			}
+			builder.append('}');
 		}
 
 		builder.append(" ").append(numberFormat.format(value)).append('\n');
 	}
 
-	private static void getPromHelpLine(final StringBuilder builder, final String name, final String description) {
-		getPromHelpLine(builder, name, description, null);
+	private static void getPromHelpLine(final Lines lines, final String name, final String description) {
+		getPromHelpLine(lines, name, description, null);
 	}
 
-	private static void getPromHelpLine(final StringBuilder builder, final String name, final String description,
+	private static void getPromHelpLine(final Lines lines, final String name, final String description,
 	        final String appendUnit) {
-		final String metricName = getPrometheusMetricName(name);
-		if (description != null && !description.isEmpty()) {
-			builder.append("# HELP ").append(metricName);
+		final StringBuilder builder = lines.help();
+		if (builder != null && description != null && !description.isEmpty()) {
+			builder.append("# HELP ").append(getPrometheusMetricName(name));
 
 			if (appendUnit != null) {
 				builder.append(appendUnit);
@@ -202,19 +317,22 @@ public class PrometheusBuilder {
 		}
 	}
 
-	private static void getPromTypeLine(final StringBuilder builder, final String name, final String type) {
-		getPromTypeLine(builder, name, type, null);
+	private static void getPromTypeLine(final Lines lines, final String name, final String type) {
+		getPromTypeLine(lines, name, type, null);
 	}
 
-	private static void getPromTypeLine(final StringBuilder builder, final String name, final String type,
+	private static void getPromTypeLine(final Lines lines, final String name, final String type,
 	        final String appendUnit) {
 
 		final String metricName = getPrometheusMetricName(name);
-		builder.append("# TYPE ").append(metricName);
-		if (appendUnit != null) {
-			builder.append(appendUnit);
+		final StringBuilder builder = lines.type(appendUnit == null ? metricName : metricName + appendUnit);
+		if (builder != null) {
+			builder.append("# TYPE ").append(metricName);
+			if (appendUnit != null) {
+				builder.append(appendUnit);
+			}
+			builder.append(" ").append(type).append("\n");
 		}
-		builder.append(" ").append(type).append("\n");
 	}
 
 	/*
@@ -228,4 +346,82 @@ public class PrometheusBuilder {
 
 		return out;
 	}
+
+	/*
+	 * Where the lines of a metric go: straight into the builder, each TYPE and
+	 * HELP line followed by its samples.
+	 */
+	private static class Lines {
+		final StringBuilder builder;
+		// the pre-rendered labels of the family child being built, if any
+		String labels;
+
+		Lines(final StringBuilder builder) {
+			this.builder = builder;
+		}
+
+		/*
+		 * Returns where to write the TYPE line of the given metric name, or null if it
+		 * was written already; its samples follow it.
+		 */
+		StringBuilder type(final String metricName) {
+			return builder;
+		}
+
+		/*
+		 * Returns where to write the HELP line of the metric name of the last TYPE
+		 * line, or null if it was written already.
+		 */
+		StringBuilder help() {
+			return builder;
+		}
+
+		StringBuilder samples() {
+			return builder;
+		}
+	}
+
+	/*
+	 * The lines of the children of a family, grouped by metric name, so each TYPE
+	 * and HELP line is written once, by the first child, and the samples of all
+	 * children follow it.
+	 */
+	private static final class FamilyLines extends Lines {
+		private final Map<String, StringBuilder> blocks = new LinkedHashMap<>();
+		private StringBuilder current;
+		private boolean created;
+
+		FamilyLines(final StringBuilder builder) {
+			super(builder);
+		}
+
+		@Override
+		StringBuilder type(final String metricName) {
+			current = blocks.get(metricName);
+			created = current == null;
+			if (created) {
+				current = new StringBuilder();
+				blocks.put(metricName, current);
+				return current;
+			}
+			return null;
+		}
+
+		@Override
+		StringBuilder help() {
+			return created ? current : null;
+		}
+
+		@Override
+		StringBuilder samples() {
+			// every builder writes a TYPE line before its samples
+			return current;
+		}
+
+		void flush() {
+			for (final StringBuilder block : blocks.values()) {
+				builder.append(block);
+			}
+		}
+	}
 }
@@ -15,9 +15,11 @@ import esa.egscc.metrics.adapter.util.PrometheusBuilder;
 import esa.egscc.metrics.api.Counter;
 import esa.egscc.metrics.api.Gauge;
 import esa.egscc.metrics.api.Histogram;
+import esa.egscc.metrics.api.LongTaskTimer;
 import esa.egscc.metrics.api.Metadata;
 import esa.egscc.metrics.api.Meter;
 import esa.egscc.metrics.api.Metric;
+import esa.egscc.metrics.api.MetricFamily;
 import esa.egscc.metrics.api.MetricRegistry;
 import esa.egscc.metrics.api.MetricUnits;
 import esa.egscc.metrics.api.Timer;
@@ -162,13 +164,19 @@ public class PrometheusMetricWriter {
 				continue;
 			}
 
-			if (Counter.class.isInstance(metric)) {
+			if (MetricFamily.class.isInstance(metric)) {
+				PrometheusBuilder.buildFamily(builder, metricNamePrometheus, (MetricFamily<?>) metric, description,
+						conversionFactor, tags, appendUnit);
+			} else if (Counter.class.isInstance(metric)) {
 				PrometheusBuilder.buildCounter(builder, metricNamePrometheus, (Counter) metric, description, tags);
 			} else if (Gauge.class.isInstance(metric)) {
 				PrometheusBuilder.buildGauge(builder, metricNamePrometheus, (Gauge<?>) metric, description,
 						conversionFactor, tags, appendUnit);
 			} else if (Timer.class.isInstance(metric)) {
 				PrometheusBuilder.buildTimer(builder, metricNamePrometheus, (Timer) metric, description, tags);
+			} else if (LongTaskTimer.class.isInstance(metric)) {
+				PrometheusBuilder.buildLongTaskTimer(builder, metricNamePrometheus, (LongTaskTimer) metric,
+						description, tags);
 			} else if (Histogram.class.isInstance(metric)) {
 				PrometheusBuilder.buildHistogram(builder, metricNamePrometheus, (Histogram) metric, description,
 						conversionFactor, tags, appendUnit);
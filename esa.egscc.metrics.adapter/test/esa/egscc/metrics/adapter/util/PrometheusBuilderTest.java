@@ -0,0 +1,159 @@
+package esa.egscc.metrics.adapter.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import esa.egscc.metrics.api.Counter;
+import esa.egscc.metrics.api.Meter;
+import esa.egscc.metrics.api.Metric;
+import esa.egscc.metrics.api.MetricFamily;
+
+public class PrometheusBuilderTest {
+
+	@Test
+	public void writesFamilyHeadersOnce() {
+		final Map<List<String>, Counter> children = new LinkedHashMap<>();
+		children.put(Arrays.asList("GET"), new FixedCounter(1));
+		children.put(Arrays.asList("a\"b\\c\nd"), new FixedCounter(2));
+		final StringBuilder builder = new StringBuilder();
+		PrometheusBuilder.buildFamily(builder, "requests", new FixedFamily<>(children, "method"), "Requests",
+		        Double.NaN, "app=\"x\"", null);
+		assertEquals("# TYPE requests counter\n"
+		        + "# HELP requests Requests\n"
+		        + "requests{app=\"x\",method=\"GET\"} 1\n"
+		        + "requests{app=\"x\",method=\"a\\\"b\\\\c\\nd\"} 2\n", builder.toString());
+	}
+
+	@Test
+	public void groupsTheSamplesOfEveryMetricName() {
+		final Map<List<String>, Meter> children = new LinkedHashMap<>();
+		children.put(Arrays.asList("GET"), new FixedMeter(1));
+		children.put(Arrays.asList("PUT"), new FixedMeter(2));
+		final StringBuilder builder = new StringBuilder();
+		PrometheusBuilder.buildFamily(builder, "requests", new FixedFamily<>(children, "method"), "Requests",
+		        Double.NaN, null, null);
+		final String[] lines = builder.toString().split("\n");
+		// a TYPE line per metric name, one HELP line, and a sample per child each
+		assertEquals(5 + 1 + 2 * 5, lines.length);
+		String type = null;
+		int samples = 0;
+		for (final String line : lines) {
+			if (line.startsWith("# TYPE ")) {
+				assertEquals(type == null ? 0 : 2, samples);
+				type = line.split(" ")[2];
+				samples = 0;
+			} else if (!line.startsWith("# HELP ")) {
+				assertEquals(type, line.substring(0, line.indexOf('{')));
+				samples++;
+			}
+		}
+		assertEquals(2, samples);
+	}
+
+	private static final class FixedFamily<T extends Metric> implements MetricFamily<T> {
+		private final Map<List<String>, T> children;
+		private final List<String> labelNames;
+
+		private FixedFamily(final Map<List<String>, T> children, final String... labelNames) {
+			this.children = children;
+			this.labelNames = Arrays.asList(labelNames);
+		}
+
+		@Override
+		public List<String> getLabelNames() {
+			return labelNames;
+		}
+
+		@Override
+		public T labels(final String... labelValues) {
+			return children.get(Arrays.asList(labelValues));
+		}
+
+		@Override
+		public boolean remove(final String... labelValues) {
+			return children.remove(Arrays.asList(labelValues)) != null;
+		}
+
+		@Override
+		public Map<List<String>, T> getChildren() {
+			return Collections.unmodifiableMap(children);
+		}
+	}
+
+	private static final class FixedCounter implements Counter {
+		private final long count;
+
+		private FixedCounter(final long count) {
+			this.count = count;
+		}
+
+		@Override
+		public void inc() {
+		}
+
+		@Override
+		public void inc(final long n) {
+		}
+
+		@Override
+		public void dec() {
+		}
+
+		@Override
+		public void dec(final long n) {
+		}
+
+		@Override
+		public long getCount() {
+			return count;
+		}
+	}
+
+	private static final class FixedMeter implements Meter {
+		private final long count;
+
+		private FixedMeter(final long count) {
+			this.count = count;
+		}
+
+		@Override
+		public void mark() {
+		}
+
+		@Override
+		public void mark(final long n) {
+		}
+
+		@Override
+		public long getCount() {
+			return count;
+		}
+
+		@Override
+		public double getFifteenMinuteRate() {
+			return count;
+		}
+
+		@Override
+		public double getFiveMinuteRate() {
+			return count;
+		}
+
+		@Override
+		public double getMeanRate() {
+			return count;
+		}
+
+		@Override
+		public double getOneMinuteRate() {
+			return count;
+		}
+	}
+}
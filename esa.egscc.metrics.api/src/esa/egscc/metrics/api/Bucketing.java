@@ -0,0 +1,35 @@
+/*
+ **********************************************************************
+ * Copyright (c) 2017 Contributors to the Eclipse Foundation
+ *
+ * See the NOTICES file(s) distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ **********************************************************************/
+package esa.egscc.metrics.api;
+
+/**
+ * An object which counts values into buckets with fixed upper bounds.
+ */
+public interface Bucketing {
+    /**
+     * Returns the current counts of the buckets.
+     *
+     * @return the bucket counts, or {@code null} if no bucket bounds were
+     *         configured for this metric
+     */
+    Buckets getBuckets();
+}
@@ -0,0 +1,136 @@
+/*
+ **********************************************************************
+ * Copyright (c) 2017 Contributors to the Eclipse Foundation
+ *
+ * See the NOTICES file(s) distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ **********************************************************************/
+package esa.egscc.metrics.api;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+/**
+ * A point-in-time copy of the counts of a {@link Bucketing} metric. The counts
+ * are cumulative, as in a Prometheus histogram: the count of a bucket includes
+ * all values less than or equal to its upper bound. Values above the highest
+ * bound are only included in {@link #getCount()}.
+ * <p>
+ * Bounds are longs in the unit of the recorded values, which for a timer is
+ * always nanoseconds, whatever the unit of its metadata.
+ * </p>
+ */
+public final class Buckets {
+    private final long[] upperBounds;
+    private final long[] counts;
+    private final long count;
+    private final double sum;
+
+    /**
+     * Creates a new {@link Buckets}.
+     *
+     * @param upperBounds the upper bounds of the buckets, in ascending order
+     * @param counts      the cumulative count of every bucket
+     * @param count       the number of all recorded values
+     * @param sum         the sum of all recorded values, as a double so that it
+     *                    does not overflow for large values such as nanoseconds
+     */
+    public Buckets(long[] upperBounds, long[] counts, long count, double sum) {
+        if (upperBounds.length != counts.length) {
+            throw new IllegalArgumentException("Expected " + upperBounds.length + " counts, got " + counts.length);
+        }
+        this.upperBounds = upperBounds.clone();
+        this.counts = counts.clone();
+        this.count = count;
+        this.sum = sum;
+    }
+
+    /**
+     * Returns the upper bounds of the buckets.
+     *
+     * @return the upper bounds, in ascending order
+     */
+    public long[] getUpperBounds() {
+        return upperBounds.clone();
+    }
+
+    /**
+     * Returns the cumulative counts of the buckets.
+     *
+     * @return the number of values less than or equal to the upper bound at the
+     *         same index
+     */
+    public long[] getCounts() {
+        return counts.clone();
+    }
+
+    /**
+     * Returns the number of all recorded values.
+     *
+     * @return the number of values
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the sum of all recorded values.
+     *
+     * @return the sum of the values
+     */
+    public double getSum() {
+        return sum;
+    }
+
+    /**
+     * Parses comma separated bucket bounds, the one place where bounds given as
+     * text are validated. Every bound is a decimal number which is multiplied by
+     * the given scale, and must then be a whole number: for example
+     * {@code "0.5,1"} with a scale of {@code 1000000000} gives half a second and
+     * a second in nanoseconds, while with a scale of {@code 1} it is rejected
+     * rather than rounded.
+     *
+     * @param bounds the comma separated bounds
+     * @param scale  the number of units of the recorded values per unit of the
+     *               text, {@code 1} if they are the same
+     * @return the bounds in ascending order without duplicates, or {@code null}
+     *         if there are none
+     * @throws IllegalArgumentException if a bound is not a number or not a whole
+     *                                  number of units
+     */
+    public static long[] parseUpperBounds(String bounds, long scale) {
+        if (bounds == null || bounds.trim().isEmpty()) {
+            return null;
+        }
+        String[] split = bounds.split(",");
+        long[] parsed = new long[split.length];
+        for (int i = 0; i < split.length; i++) {
+            try {
+                parsed[i] = new BigDecimal(split[i].trim()).multiply(BigDecimal.valueOf(scale)).longValueExact();
+            } catch (ArithmeticException | NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid bucket bound: " + split[i].trim(), e);
+            }
+        }
+        return Arrays.stream(parsed).sorted().distinct().toArray();
+    }
+
+    @Override
+    public String toString() {
+        return "Buckets{upperBounds=" + Arrays.toString(upperBounds) + ", counts=" + Arrays.toString(counts)
+                + ", count=" + count + ", sum=" + sum + '}';
+    }
+}
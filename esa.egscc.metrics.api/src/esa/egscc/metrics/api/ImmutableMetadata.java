@@ -0,0 +1,133 @@
+/*
+ **********************************************************************
+ * Copyright (c) 2017 Contributors to the Eclipse Foundation
+ *
+ * See the NOTICES file(s) distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ **********************************************************************/
+package esa.egscc.metrics.api;
+
+import java.util.HashMap;
+
+/**
+ * The immutable {@link Metadata} returned by {@link Metadata#toImmutable()} and
+ * {@link Metadata#withTags(java.util.Map)}. Its tags are a {@link MetricTags}
+ * with their rendered label block; changing them means replacing the whole
+ * metadata with a copy.
+ */
+final class ImmutableMetadata extends Metadata {
+	private final MetricTags tags;
+
+	ImmutableMetadata(Metadata source, MetricTags tags) {
+		super(source);
+		this.tags = tags;
+	}
+
+	@Override
+	public Metadata toImmutable() {
+		return this;
+	}
+
+	@Override
+	public MetricTags getMetricTags() {
+		return tags;
+	}
+
+	@Override
+	public String getTagsAsString() {
+		return tags.getPrometheusLabels();
+	}
+
+	/**
+	 * Returns a copy of the tags; changing it does not change the metadata.
+	 * 
+	 * @return a hashmap of tags
+	 */
+	@Override
+	public HashMap<String, String> getTags() {
+		return new HashMap<String, String>(tags.asMap());
+	}
+
+	@Override
+	public void setTags(HashMap<String, String> tags) {
+		throw immutable();
+	}
+
+	@Override
+	public void setName(String name) {
+		throw immutable();
+	}
+
+	@Override
+	public void setDisplayName(String displayName) {
+		throw immutable();
+	}
+
+	@Override
+	public void setDescription(String description) {
+		throw immutable();
+	}
+
+	@Override
+	public void setType(String type) {
+		throw immutable();
+	}
+
+	@Override
+	public void setType(MetricType type) {
+		throw immutable();
+	}
+
+	@Override
+	public void setUnit(String unit) {
+		throw immutable();
+	}
+
+	@Override
+	public void setReusable(boolean reusable) {
+		throw immutable();
+	}
+
+	@Override
+	public void setBuckets(long... buckets) {
+		throw immutable();
+	}
+
+	@Override
+	public void setExpectedInterval(long expectedInterval) {
+		throw immutable();
+	}
+
+	@Override
+	public void setSampleRate(int sampleRate) {
+		throw immutable();
+	}
+
+	@Override
+	public void addTag(String kvString) {
+		throw immutable();
+	}
+
+	@Override
+	public void addTags(String tagsString) {
+		throw immutable();
+	}
+
+	private static UnsupportedOperationException immutable() {
+		return new UnsupportedOperationException("Registered metadata is immutable");
+	}
+}
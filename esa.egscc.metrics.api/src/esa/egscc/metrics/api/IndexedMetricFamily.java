@@ -0,0 +1,79 @@
+/*
+ **********************************************************************
+ * Copyright (c) 2017 Contributors to the Eclipse Foundation
+ *
+ * See the NOTICES file(s) distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ **********************************************************************/
+package esa.egscc.metrics.api;
+
+/**
+ * A {@link MetricFamily} with a single label whose values are known in advance,
+ * such as the constants of an enum or the numbers of a fixed set of shards.
+ * Its children are created together with the family and kept in an array, so
+ * looking one up by its index is an array access:
+ *
+ * <pre>
+ * <code>
+ * IndexedMetricFamily&lt;Counter&gt; operations = registry.indexedFamily(metadata, Counter.class, "operation", Operation.class);
+ * operations.get(Operation.READ).inc();
+ * </code>
+ * </pre>
+ *
+ * Children of an indexed family cannot be removed.
+ *
+ * @param <T> the type of the metrics in the family
+ */
+public interface IndexedMetricFamily<T extends Metric> extends MetricFamily<T> {
+    /**
+     * Returns the child with the given index.
+     *
+     * @param index the index of the label value the child was created for
+     * @return the child
+     * @throws IndexOutOfBoundsException if there is no child with the index
+     */
+    T get(int index);
+
+    /**
+     * Returns the child for the given enum constant. The family must have been
+     * created for the enum type of the constant.
+     *
+     * @param value the enum constant
+     * @return the child with the ordinal of the constant as its index
+     * @throws IndexOutOfBoundsException if there is no child with the index
+     */
+    default T get(Enum<?> value) {
+        return get(value.ordinal());
+    }
+
+    /**
+     * Returns the number of children of this family.
+     *
+     * @return the number of label values
+     */
+    int size();
+
+    /**
+     * Children of an indexed family cannot be removed.
+     *
+     * @param labelValues ignored
+     * @return never returns
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    boolean remove(String... labelValues);
+}
@@ -0,0 +1,82 @@
+/*
+ **********************************************************************
+ * Copyright (c) 2017 Contributors to the Eclipse Foundation
+ *
+ * See the NOTICES file(s) distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ **********************************************************************/
+package esa.egscc.metrics.api;
+
+import java.io.Closeable;
+
+/**
+ * A timer metric for long running tasks, which reports on the tasks still in
+ * flight rather than on completed ones: how many are active, for how long they
+ * have been running in total, and for how long the oldest of them has been
+ * running. A task which hangs therefore shows up while it hangs, not only once
+ * it completes.
+ *
+ * All durations are measured in nanoseconds.
+ */
+public interface LongTaskTimer extends Metric {
+    /**
+     * A task started by {@link LongTaskTimer#start()}.
+     */
+    public interface Sample extends Closeable {
+
+        /**
+         * Marks the task as completed. Only the first call has an effect.
+         *
+         * @return the duration of the task in nanoseconds, or {@code -1} if it
+         *         was already stopped
+         */
+        public long stop();
+
+        /** Equivalent to calling {@link #stop()}. */
+        @Override
+        public void close();
+    }
+
+    /**
+     * Starts a new task, which is active until its {@link Sample} is stopped.
+     *
+     * @return the started task
+     */
+    public Sample start();
+
+    /**
+     * Returns the number of tasks currently active.
+     *
+     * @return the number of active tasks
+     */
+    public int getActiveTasks();
+
+    /**
+     * Returns the sum of the durations of all tasks currently active.
+     *
+     * @return the total duration in nanoseconds
+     */
+    public long getDuration();
+
+    /**
+     * Returns the duration of the longest running task currently active.
+     *
+     * @return the maximum duration in nanoseconds, or {@code 0} if no task is
+     *         active
+     */
+    public long getMaxDuration();
+}
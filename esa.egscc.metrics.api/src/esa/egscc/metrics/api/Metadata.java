@@ -23,10 +23,10 @@
  **********************************************************************/
 package esa.egscc.metrics.api;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.Map.Entry;
 
 /**
  * Bean holding the metadata of one single metric.
@@ -55,6 +55,15 @@ import java.util.Map.Entry;
  * </pre>
  * 
  * </li>
+ * <li>{@code Buckets}: (Optional) The upper bounds of the buckets a histogram or
+ * timer counts its values into, in the unit of the recorded values, which for a
+ * timer is nanoseconds. See {@link Bucketing}.</li>
+ * <li>{@code Expected interval}: (Optional) The expected interval between two
+ * durations recorded by a timer, in nanoseconds. If set, the timer corrects
+ * its distribution for coordinated omission.</li>
+ * <li>{@code Sample rate}: (Optional) The rate <tt>N</tt> at which a histogram
+ * or timer samples its events: only a random one in <tt>N</tt> is measured, and
+ * counted <tt>N</tt> times.</li>
  * </ul>
  *
  * @author hrupp, Raymond Lam
@@ -125,20 +134,70 @@ public class Metadata {
 	 */
 	private HashMap<String, String> tags = new HashMap<String, String>();
 
+	/**
+	 * Upper bounds of the buckets of the metric.
+	 * <p>
+	 * An optional field which holds the ascending bucket bounds of a histogram or
+	 * timer, or <tt>null</tt> if it is not bucketed.
+	 * </p>
+	 */
+	private long[] buckets;
+
+	/**
+	 * Expected interval between two recorded durations of a timer.
+	 * <p>
+	 * An optional field which holds the expected interval in nanoseconds, or
+	 * <tt>0</tt> if the timer does not correct for coordinated omission.
+	 * </p>
+	 */
+	private long expectedInterval;
+
+	/**
+	 * Sample rate of a histogram or timer.
+	 * <p>
+	 * An optional field which holds the rate <tt>N</tt> at which one in <tt>N</tt>
+	 * events is measured, or <tt>0</tt> if the registry's default applies.
+	 * </p>
+	 */
+	private int sampleRate;
+
 	/**
 	 * The environment variable used to pass in global tags.
 	 */
 	public static final String GLOBAL_TAGS_VARIABLE = "MP_METRICS_TAGS";
 
+	/**
+	 * The global tags, read from {@link #GLOBAL_TAGS_VARIABLE} once when the class
+	 * is loaded.
+	 */
+	private static final Map<String, String> GLOBAL_TAGS = parseTags(System.getenv(GLOBAL_TAGS_VARIABLE));
+
 	/**
 	 * Defines if the metric can have multiple objects and needs special treatment
 	 * or if it is a singleton.
 	 * <p/>
 	 */
 	Metadata() {
-		String globalTagsFromEnv = System.getenv(GLOBAL_TAGS_VARIABLE);
+		if (!GLOBAL_TAGS.isEmpty()) {
+			tags.putAll(GLOBAL_TAGS);
+		}
+	}
 
-		addTags(globalTagsFromEnv);
+	/**
+	 * Copies the given metadata, except for its tags.
+	 *
+	 * @param source the metadata to copy
+	 */
+	Metadata(Metadata source) {
+		this.name = source.name;
+		this.displayName = source.displayName;
+		this.description = source.description;
+		this.type = source.type;
+		this.unit = source.unit;
+		this.reusable = source.reusable;
+		this.buckets = source.buckets;
+		this.expectedInterval = source.expectedInterval;
+		this.sampleRate = source.sampleRate;
 	}
 
 	/**
@@ -230,6 +289,13 @@ public class Metadata {
 	 * <li>{@code type} - The type of the metric</li>
 	 * <li>{@code unit} - The units of the metric</li>
 	 * <li>{@code tags} - The tags of the metric - cannot be null</li>
+	 * <li>{@code buckets} - The comma separated upper bounds of the buckets of the
+	 * metric, whole numbers in the unit of the recorded values, see
+	 * {@link Buckets#parseUpperBounds(String, long)}</li>
+	 * <li>{@code expectedInterval} - The expected interval in nanoseconds between
+	 * two durations recorded by a timer</li>
+	 * <li>{@code sampleRate} - The rate at which a histogram or timer samples its
+	 * events</li>
 	 * <li>{@code reusable} - If <tt>true</tt>, this metric name is permitted to be
 	 * used at multiple registration points. If <tt>false</tt>, this metric name is
 	 * only permitted to be used at one registration point per MetricRegistry.</li>
@@ -249,6 +315,15 @@ public class Metadata {
 			addTags(tagString);
 		}
 		this.setReusable(Boolean.parseBoolean(in.get("reusable")));
+		if (in.keySet().contains("buckets")) {
+			this.setBuckets(Buckets.parseUpperBounds(in.get("buckets"), 1));
+		}
+		if (in.keySet().contains("expectedInterval")) {
+			this.setExpectedInterval(Long.parseLong(in.get("expectedInterval").trim()));
+		}
+		if (in.keySet().contains("sampleRate")) {
+			this.setSampleRate(Integer.parseInt(in.get("sampleRate").trim()));
+		}
 	}
 
 	/**
@@ -385,6 +460,85 @@ public class Metadata {
 		this.reusable = reusable;
 	}
 
+	/**
+	 * Returns the upper bounds of the buckets of the metric.
+	 * 
+	 * @return the ascending bucket bounds, or <tt>null</tt> if the metric is not
+	 *         bucketed
+	 */
+	public long[] getBuckets() {
+		return buckets == null ? null : buckets.clone();
+	}
+
+	/**
+	 * Sets the upper bounds of the buckets of the metric. The bounds are sorted and
+	 * duplicates removed; an empty array or <tt>null</tt> removes the buckets.
+	 * 
+	 * @param buckets the bucket bounds, in the unit of the recorded values, which
+	 *                for a timer is nanoseconds
+	 */
+	public void setBuckets(long... buckets) {
+		if (buckets == null || buckets.length == 0) {
+			this.buckets = null;
+			return;
+		}
+		this.buckets = Arrays.stream(buckets).sorted().distinct().toArray();
+	}
+
+	/**
+	 * Returns the expected interval between two durations recorded by a timer.
+	 * 
+	 * @return the expected interval in nanoseconds, or <tt>0</tt> if the timer does
+	 *         not correct for coordinated omission
+	 */
+	public long getExpectedInterval() {
+		return expectedInterval;
+	}
+
+	/**
+	 * Sets the expected interval between two durations recorded by a timer. For
+	 * every recorded duration longer than the interval, the timer also records the
+	 * durations of the requests which would have been issued during it, as in
+	 * HdrHistogram's {@code recordValueWithExpectedInterval}.
+	 * 
+	 * @param expectedInterval the expected interval in nanoseconds, or <tt>0</tt> to
+	 *                         disable the correction
+	 * @throws IllegalArgumentException if the interval is negative
+	 */
+	public void setExpectedInterval(long expectedInterval) {
+		if (expectedInterval < 0) {
+			throw new IllegalArgumentException("Expected interval must not be negative: " + expectedInterval);
+		}
+		this.expectedInterval = expectedInterval;
+	}
+
+	/**
+	 * Returns the rate at which a histogram or timer samples its events.
+	 * 
+	 * @return the sample rate <tt>N</tt>, or <tt>0</tt> if the registry's default
+	 *         applies
+	 */
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * Sets the rate at which a histogram or timer samples its events. Only a
+	 * random one in <tt>N</tt> events reads the clock and feeds the reservoir,
+	 * and it is counted <tt>N</tt> times, so counts and rates stay accurate on
+	 * average while the distribution is estimated from the sample.
+	 * 
+	 * @param sampleRate the sample rate <tt>N</tt>, <tt>1</tt> to measure every
+	 *                   event, or <tt>0</tt> to use the registry's default
+	 * @throws IllegalArgumentException if the rate is negative
+	 */
+	public void setSampleRate(int sampleRate) {
+		if (sampleRate < 0) {
+			throw new IllegalArgumentException("Sample rate must not be negative: " + sampleRate);
+		}
+		this.sampleRate = sampleRate;
+	}
+
 	/**
 	 * Gets the list of tags as a single String in the format
 	 * 'key="value",key2="value2",...'
@@ -392,19 +546,16 @@ public class Metadata {
 	 * @return a String containing the tags
 	 */
 	public String getTagsAsString() {
-		StringBuilder result = new StringBuilder();
-
-		Iterator<Entry<String, String>> iterator = this.tags.entrySet().iterator();
-		while (iterator.hasNext()) {
-			Map.Entry<String, String> pair = iterator.next();
-			result.append(pair.getKey()).append("=\"").append(pair.getValue()).append("\"");
-			if (iterator.hasNext()) {
-				result.append(",");
-			}
-
-		}
+		return getMetricTags().getPrometheusLabels();
+	}
 
-		return result.toString();
+	/**
+	 * Returns the tags as an immutable {@link MetricTags}.
+	 * 
+	 * @return a snapshot of the tags
+	 */
+	public MetricTags getMetricTags() {
+		return MetricTags.of(tags);
 	}
 
 	/**
@@ -423,6 +574,10 @@ public class Metadata {
 	 * @param kvString Input string
 	 */
 	public void addTag(String kvString) {
+		addTag(tags, kvString);
+	}
+
+	private static void addTag(Map<String, String> tags, String kvString) {
 		if (kvString == null || kvString.isEmpty() || !kvString.contains("=")) {
 			return;
 		}
@@ -437,16 +592,26 @@ public class Metadata {
 	 * @param tagsString a string containing multiple tags
 	 */
 	public void addTags(String tagsString) {
+		addTags(tags, tagsString);
+	}
+
+	private static void addTags(Map<String, String> tags, String tagsString) {
 		if (tagsString == null || tagsString.isEmpty()) {
 			return;
 		}
 
 		String[] singleTags = tagsString.split(",");
 		for (String singleTag : singleTags) {
-			addTag(singleTag.trim());
+			addTag(tags, singleTag.trim());
 		}
 	}
 
+	private static Map<String, String> parseTags(String tagsString) {
+		Map<String, String> parsed = new HashMap<String, String>();
+		addTags(parsed, tagsString);
+		return Collections.unmodifiableMap(parsed);
+	}
+
 	/**
 	 * Sets the tags hashmap.
 	 *
@@ -456,6 +621,31 @@ public class Metadata {
 		this.tags = tags;
 	}
 
+	/**
+	 * Returns an immutable copy of this metadata, as kept by a
+	 * {@link MetricRegistry} for its metrics. Its setters throw an
+	 * {@link UnsupportedOperationException}, and its tag string is rendered once
+	 * instead of on every call.
+	 * 
+	 * @return an immutable copy, or this metadata if it is immutable already
+	 */
+	public Metadata toImmutable() {
+		return new ImmutableMetadata(this, getMetricTags());
+	}
+
+	/**
+	 * Returns an immutable copy of this metadata with the given tags instead of
+	 * its own. A {@link MetricRegistry} changes the tags of a metric by replacing
+	 * its metadata with such a copy, so metadata handed out before keeps its
+	 * tags.
+	 * 
+	 * @param tags the tags of the copy, copied
+	 * @return an immutable copy with the given tags
+	 */
+	public Metadata withTags(Map<String, String> tags) {
+		return new ImmutableMetadata(this, MetricTags.of(tags));
+	}
+
 	@Override
 	public int hashCode() {
 		int result = name.hashCode();
@@ -471,7 +661,10 @@ public class Metadata {
 		sb.append(", description='").append(description).append('\'');
 		sb.append(", type='").append(type).append('\'');
 		sb.append(", unit='").append(unit).append('\'');
-		sb.append(", tags='").append(tags).append('\'');
+		sb.append(", tags='").append(getTags()).append('\'');
+		if (buckets != null) {
+			sb.append(", buckets='").append(Arrays.toString(buckets)).append('\'');
+		}
 		sb.append('}');
 		return sb.toString();
 	}
@@ -0,0 +1,131 @@
+/*
+ **********************************************************************
+ * Copyright (c) 2017 Contributors to the Eclipse Foundation
+ *
+ * See the NOTICES file(s) distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ **********************************************************************/
+package esa.egscc.metrics.api;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A family of metrics of the same type which share a name and a set of label
+ * names, and are told apart by their label values. An example could be the
+ * requests served, counted per method and status:
+ *
+ * <pre>
+ * <code>
+ * MetricFamily&lt;Counter&gt; requests = registry.counterFamily(metadata, "method", "status");
+ * requests.labels("GET", "200").inc();
+ * </code>
+ * </pre>
+ *
+ * Children are created on first use and looked up by their label values
+ * directly, without building a metric name.
+ *
+ * @param <T> the type of the metrics in the family
+ */
+public interface MetricFamily<T extends Metric> extends Metric {
+    /**
+     * Returns the names of the labels of this family.
+     *
+     * @return the label names, in the order their values are passed to
+     *         {@link #labels(String...)}
+     */
+    List<String> getLabelNames();
+
+    /**
+     * Returns the child with the given label values, creating it if it does not
+     * exist yet.
+     *
+     * @param labelValues one value per label name, in the same order
+     * @return a new or pre-existing child
+     * @throws IllegalArgumentException if the number of values does not match
+     *                                  the number of label names, or a value is
+     *                                  <tt>null</tt>
+     */
+    T labels(String... labelValues);
+
+    /**
+     * Returns the child with the given label value, creating it if it does not
+     * exist yet. Implementations can look it up without allocating the array of
+     * {@link #labels(String...)}.
+     *
+     * @param labelValue the value of the only label
+     * @return a new or pre-existing child
+     * @throws IllegalArgumentException if the family has more than one label, or
+     *                                  the value is <tt>null</tt>
+     */
+    default T labels(String labelValue) {
+        return labels(new String[] { labelValue });
+    }
+
+    /**
+     * Returns the child with the given label values, creating it if it does not
+     * exist yet. Implementations can look it up without allocating the array of
+     * {@link #labels(String...)}.
+     *
+     * @param first  the value of the first label
+     * @param second the value of the second label
+     * @return a new or pre-existing child
+     * @throws IllegalArgumentException if the family does not have two labels,
+     *                                  or a value is <tt>null</tt>
+     */
+    default T labels(String first, String second) {
+        return labels(new String[] { first, second });
+    }
+
+    /**
+     * Removes the child with the given label values.
+     *
+     * @param labelValues one value per label name, in the same order
+     * @return whether or not the child was removed
+     */
+    boolean remove(String... labelValues);
+
+    /**
+     * Returns all children of this family and their label values.
+     *
+     * @return the children, keyed by their label values
+     */
+    Map<List<String>, T> getChildren();
+
+    /**
+     * Returns all children of this family keyed by their labels, the label names
+     * paired with their values. Implementations keep the {@link MetricTags} of a
+     * child from its creation on, so exporters get its Prometheus labels without
+     * rendering and escaping them on every request.
+     *
+     * @return the children, keyed by their labels
+     */
+    default Map<MetricTags, T> getLabeledChildren() {
+        List<String> labelNames = getLabelNames();
+        Map<MetricTags, T> labeled = new LinkedHashMap<MetricTags, T>();
+        for (Map.Entry<List<String>, T> child : getChildren().entrySet()) {
+            Map<String, String> labels = new LinkedHashMap<String, String>();
+            for (int i = 0; i < labelNames.size(); i++) {
+                labels.put(labelNames.get(i), child.getKey().get(i));
+            }
+            labeled.put(MetricTags.of(labels), child.getValue());
+        }
+        return Collections.unmodifiableMap(labeled);
+    }
+}
@@ -248,9 +248,247 @@ public abstract class MetricRegistry {
      * @return a new or pre-existing {@link Timer}
      */
     public abstract Timer timer(Metadata metadata);
+
+    /**
+     * Return the {@link LongTaskTimer} registered under this name; or create and register
+     * a new {@link LongTaskTimer} if none is registered.
+     * If a {@link LongTaskTimer} was created, a {@link Metadata}  object will be registered with the name and type.
+     *
+     * @param name the name of the metric
+     * @return a new or pre-existing {@link LongTaskTimer}
+     */
+    public abstract LongTaskTimer longTaskTimer(String name);
+
+    /**
+     * Return the {@link LongTaskTimer} registered under the {@link Metadata}'s name; or create and register
+     * a new {@link LongTaskTimer} if none is registered.
+     * If a {@link LongTaskTimer} was created, the provided {@link Metadata} object will be registered.
+     * <p>
+     * Note: The {@link Metadata} will not be updated if the metric is already registered.
+     * </p>
+     *
+     * @param metadata the name of the metric
+     * @return a new or pre-existing {@link LongTaskTimer}
+     */
+    public abstract LongTaskTimer longTaskTimer(Metadata metadata);
+
+    /**
+     * Return the {@link SettableGauge} registered under this name; or create and register
+     * a new {@link SettableGauge} if none is registered.
+     * If a {@link SettableGauge} was created, a {@link Metadata}  object will be registered with the name and type.
+     *
+     * @param name the name of the metric
+     * @return a new or pre-existing {@link SettableGauge}
+     */
+    public abstract SettableGauge settableGauge(String name);
+
+    /**
+     * Return the {@link SettableGauge} registered under the {@link Metadata}'s name; or create and register
+     * a new {@link SettableGauge} if none is registered.
+     * If a {@link SettableGauge} was created, the provided {@link Metadata} object will be registered.
+     * <p>
+     * Note: The {@link Metadata} will not be updated if the metric is already registered.
+     * </p>
+     *
+     * @param metadata the name of the metric
+     * @return a new or pre-existing {@link SettableGauge}
+     */
+    public abstract SettableGauge settableGauge(Metadata metadata);
  
 
 
+    /**
+     * Return the family of {@link Counter}s registered under the {@link Metadata}'s name; or create
+     * and register a new family if none is registered.
+     * If a family was created, the provided {@link Metadata} object will be registered.
+     * <p>
+     * Note: The {@link Metadata} will not be updated if the family is already registered.
+     * </p>
+     *
+     * @param metadata   the metadata of the family
+     * @param labelNames the names of the labels of the family
+     * @return a new or pre-existing family of {@link Counter}s
+     * @throws IllegalArgumentException if the name is used for a different type of metric or
+     *                                  for a family with different label names
+     */
+    public abstract MetricFamily<Counter> counterFamily(Metadata metadata, String... labelNames);
+
+    /**
+     * Return the family of {@link SettableGauge}s registered under the {@link Metadata}'s name; or create
+     * and register a new family if none is registered.
+     * If a family was created, the provided {@link Metadata} object will be registered.
+     * <p>
+     * Note: The {@link Metadata} will not be updated if the family is already registered.
+     * </p>
+     *
+     * @param metadata   the metadata of the family
+     * @param labelNames the names of the labels of the family
+     * @return a new or pre-existing family of {@link SettableGauge}s
+     * @throws IllegalArgumentException if the name is used for a different type of metric or
+     *                                  for a family with different label names
+     */
+    public abstract MetricFamily<SettableGauge> settableGaugeFamily(Metadata metadata, String... labelNames);
+
+    /**
+     * Return the family of {@link Histogram}s registered under the {@link Metadata}'s name; or create
+     * and register a new family if none is registered.
+     * If a family was created, the provided {@link Metadata} object will be registered.
+     * <p>
+     * Note: The {@link Metadata} will not be updated if the family is already registered.
+     * </p>
+     *
+     * @param metadata   the metadata of the family
+     * @param labelNames the names of the labels of the family
+     * @return a new or pre-existing family of {@link Histogram}s
+     * @throws IllegalArgumentException if the name is used for a different type of metric or
+     *                                  for a family with different label names
+     */
+    public abstract MetricFamily<Histogram> histogramFamily(Metadata metadata, String... labelNames);
+
+    /**
+     * Return the family of {@link Meter}s registered under the {@link Metadata}'s name; or create
+     * and register a new family if none is registered.
+     * If a family was created, the provided {@link Metadata} object will be registered.
+     * <p>
+     * Note: The {@link Metadata} will not be updated if the family is already registered.
+     * </p>
+     *
+     * @param metadata   the metadata of the family
+     * @param labelNames the names of the labels of the family
+     * @return a new or pre-existing family of {@link Meter}s
+     * @throws IllegalArgumentException if the name is used for a different type of metric or
+     *                                  for a family with different label names
+     */
+    public abstract MetricFamily<Meter> meterFamily(Metadata metadata, String... labelNames);
+
+    /**
+     * Return the family of {@link Timer}s registered under the {@link Metadata}'s name; or create
+     * and register a new family if none is registered.
+     * If a family was created, the provided {@link Metadata} object will be registered.
+     * <p>
+     * Note: The {@link Metadata} will not be updated if the family is already registered.
+     * </p>
+     *
+     * @param metadata   the metadata of the family
+     * @param labelNames the names of the labels of the family
+     * @return a new or pre-existing family of {@link Timer}s
+     * @throws IllegalArgumentException if the name is used for a different type of metric or
+     *                                  for a family with different label names
+     */
+    public abstract MetricFamily<Timer> timerFamily(Metadata metadata, String... labelNames);
+
+    /**
+     * Return the {@link IndexedMetricFamily} registered under the {@link Metadata}'s name; or create
+     * and register a new family with one child per label value if none is registered.
+     * If a family was created, the provided {@link Metadata} object will be registered.
+     * <p>
+     * Note: The {@link Metadata} will not be updated if the family is already registered.
+     * </p>
+     *
+     * @param <T>         the type of the metrics in the family
+     * @param metadata    the metadata of the family
+     * @param type        the type of the metrics in the family, one of {@link Counter},
+     *                    {@link SettableGauge}, {@link Histogram}, {@link Meter} and {@link Timer}
+     * @param labelName   the name of the label of the family
+     * @param labelValues the values of the label, in the order of their indexes
+     * @return a new or pre-existing family
+     * @throws IllegalArgumentException if the type is not supported, or the name is used for a
+     *                                  different type of metric or for a family with a different
+     *                                  label
+     */
+    public abstract <T extends Metric> IndexedMetricFamily<T> indexedFamily(Metadata metadata, Class<T> type,
+            String labelName, String... labelValues);
+
+    /**
+     * Return the {@link IndexedMetricFamily} registered under the {@link Metadata}'s name; or create
+     * and register a new family with one child per constant of the given enum, indexed by its
+     * ordinal and labeled with its name.
+     *
+     * @param <T>       the type of the metrics in the family
+     * @param metadata  the metadata of the family
+     * @param type      the type of the metrics in the family
+     * @param labelName the name of the label of the family
+     * @param enumType  the enum whose constants are the values of the label
+     * @return a new or pre-existing family
+     * @throws IllegalArgumentException if the type is not supported, or the name is used for a
+     *                                  different type of metric or for a family with a different
+     *                                  label
+     * @see #indexedFamily(Metadata, Class, String, String...)
+     */
+    public <T extends Metric> IndexedMetricFamily<T> indexedFamily(Metadata metadata, Class<T> type,
+            String labelName, Class<? extends Enum<?>> enumType) {
+        final Enum<?>[] constants = enumType.getEnumConstants();
+        final String[] labelValues = new String[constants.length];
+        for (int i = 0; i < constants.length; i++) {
+            labelValues[i] = constants[i].name();
+        }
+        return indexedFamily(metadata, type, labelName, labelValues);
+    }
+
+    /**
+     * Return the {@link IndexedMetricFamily} registered under the {@link Metadata}'s name; or create
+     * and register a new family with the given number of children, labeled with their index.
+     *
+     * @param <T>       the type of the metrics in the family
+     * @param metadata  the metadata of the family
+     * @param type      the type of the metrics in the family
+     * @param labelName the name of the label of the family
+     * @param size      the number of children
+     * @return a new or pre-existing family
+     * @throws IllegalArgumentException if the type is not supported, or the name is used for a
+     *                                  different type of metric or for a family with a different
+     *                                  label
+     * @see #indexedFamily(Metadata, Class, String, String...)
+     */
+    public <T extends Metric> IndexedMetricFamily<T> indexedFamily(Metadata metadata, Class<T> type,
+            String labelName, int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Size cannot be negative: " + size);
+        }
+        final String[] labelValues = new String[size];
+        for (int i = 0; i < size; i++) {
+            labelValues[i] = Integer.toString(i);
+        }
+        return indexedFamily(metadata, type, labelName, labelValues);
+    }
+
+    /**
+     * Atomically replaces the metadata of the metric with the given name by a copy
+     * with the given tags, see {@link Metadata#withTags(Map)}, and notifies the
+     * listeners with a {@link MetricRegistryEvent.Type#METADATA_CHANGED} event.
+     * Metadata obtained before keeps its tags.
+     *
+     * @param name the name of the metric
+     * @param tags the new tags
+     * @return whether or not a metric with the name is registered
+     */
+    public abstract boolean updateTags(String name, Map<String, String> tags);
+
+    /**
+     * Adds a listener to the changes of this registry. It is first called with an
+     * {@link MetricRegistryEvent.Type#ADDED} event for every metric registered
+     * already, carrying the current version, and then with the events of the
+     * later changes only, so no metric is reported twice.
+     *
+     * @param listener the listener
+     */
+    public abstract void addListener(MetricRegistryListener listener);
+
+    /**
+     * Removes a listener added by {@link #addListener(MetricRegistryListener)}.
+     *
+     * @param listener the listener
+     */
+    public abstract void removeListener(MetricRegistryListener listener);
+
+    /**
+     * Returns the version of this registry, which increases with every
+     * registration, removal and change of tags.
+     *
+     * @return the current version
+     */
+    public abstract long getVersion();
+
     /**
      * Removes the metric with the given name.
      *
@@ -351,6 +589,22 @@ public abstract class MetricRegistry {
      */
     public abstract SortedMap<String, Timer> getTimers(MetricFilter filter);
 
+    /**
+     * Returns a map of all the long task timers in the registry and their names.
+     *
+     * @return all the long task timers in the registry
+     */
+    public abstract SortedMap<String, LongTaskTimer> getLongTaskTimers();
+
+    /**
+     * Returns a map of all the long task timers in the registry and their names which match the
+     * given filter.
+     *
+     * @param filter    the metric filter to match
+     * @return all the long task timers in the registry
+     */
+    public abstract SortedMap<String, LongTaskTimer> getLongTaskTimers(MetricFilter filter);
+
     /**
      * Returns a map of all the metrics in the registry and their names.
      *
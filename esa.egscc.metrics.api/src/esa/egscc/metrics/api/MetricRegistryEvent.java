@@ -0,0 +1,117 @@
+/*
+ **********************************************************************
+ * Copyright (c) 2017 Contributors to the Eclipse Foundation
+ *
+ * See the NOTICES file(s) distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ **********************************************************************/
+package esa.egscc.metrics.api;
+
+/**
+ * A change of the metrics registered with a {@link MetricRegistry}, delivered to
+ * the {@link MetricRegistryListener}s of the registry.
+ */
+public final class MetricRegistryEvent {
+    /**
+     * The kinds of changes.
+     */
+    public enum Type {
+        /** A metric was registered. */
+        ADDED,
+        /** A metric was removed. */
+        REMOVED,
+        /** The tags of a registered metric were replaced. */
+        METADATA_CHANGED
+    }
+
+    private final Type type;
+    private final String name;
+    private final Metric metric;
+    private final Metadata metadata;
+    private final long version;
+
+    /**
+     * Creates a new event.
+     *
+     * @param type     the kind of change
+     * @param name     the name of the metric
+     * @param metric   the metric
+     * @param metadata the metadata of the metric after the change, or before it
+     *                 for a removal
+     * @param version  the version of the registry after the change
+     */
+    public MetricRegistryEvent(Type type, String name, Metric metric, Metadata metadata, long version) {
+        this.type = type;
+        this.name = name;
+        this.metric = metric;
+        this.metadata = metadata;
+        this.version = version;
+    }
+
+    /**
+     * Returns the kind of change.
+     *
+     * @return the type of the event
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the name of the metric.
+     *
+     * @return the name the metric is or was registered under
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the metric.
+     *
+     * @return the added, removed or changed metric
+     */
+    public Metric getMetric() {
+        return metric;
+    }
+
+    /**
+     * Returns the metadata of the metric, after the change or, for a removal,
+     * before it.
+     *
+     * @return the metadata of the metric
+     */
+    public Metadata getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * Returns the version of the registry after the change. Versions increase
+     * with every change of the registry.
+     *
+     * @return the version
+     * @see MetricRegistry#getVersion()
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public String toString() {
+        return "MetricRegistryEvent{type=" + type + ", name='" + name + "', version=" + version + '}';
+    }
+}
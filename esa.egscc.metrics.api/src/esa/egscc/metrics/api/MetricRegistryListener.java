@@ -0,0 +1,46 @@
+/*
+ **********************************************************************
+ * Copyright (c) 2017 Contributors to the Eclipse Foundation
+ *
+ * See the NOTICES file(s) distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ **********************************************************************/
+package esa.egscc.metrics.api;
+
+/**
+ * Listens to the changes of a {@link MetricRegistry}, so that an exporter can
+ * keep per-metric state, such as rendered names and labels, and update it as
+ * metrics come and go instead of recomputing it on every request. Listeners are
+ * added with {@link MetricRegistry#addListener(MetricRegistryListener)} or, in
+ * an OSGi framework, by registering them as services.
+ * <p>
+ * Events are delivered one at a time and in the order of the changes, so their
+ * versions increase. An event is usually delivered on the thread making the
+ * change, right after it, but while another thread is delivering events it
+ * delivers the new one as well, after the change returned.
+ * </p>
+ */
+@FunctionalInterface
+public interface MetricRegistryListener {
+    /**
+     * Called after the registry changed. Implementations should return quickly
+     * and must not throw.
+     *
+     * @param event the change
+     */
+    void registryChanged(MetricRegistryEvent event);
+}
@@ -0,0 +1,126 @@
+/*
+ **********************************************************************
+ * Copyright (c) 2017 Contributors to the Eclipse Foundation
+ *
+ * See the NOTICES file(s) distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ **********************************************************************/
+package esa.egscc.metrics.api;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An immutable set of tags. Keys and values are interned, so the many metrics
+ * sharing the same global or configured tags share their strings, and the
+ * tags are rendered once, when the set is created, into the escaped label block
+ * of the Prometheus exposition format.
+ * <p>
+ * Changing the tags of a metric means replacing its {@link MetricTags} with a
+ * new set, which also replaces the rendered labels.
+ * </p>
+ */
+public final class MetricTags {
+    /**
+     * The empty set of tags.
+     */
+    public static final MetricTags EMPTY = new MetricTags(Collections.<String, String>emptyMap());
+
+    private final Map<String, String> tags;
+    private final String prometheusLabels;
+
+    private MetricTags(Map<String, String> tags) {
+        this.tags = tags;
+        this.prometheusLabels = render(tags);
+    }
+
+    /**
+     * Returns the set holding the given tags, in their iteration order.
+     *
+     * @param tags the tags, copied
+     * @return an immutable set of tags
+     */
+    public static MetricTags of(Map<String, String> tags) {
+        if (tags == null || tags.isEmpty()) {
+            return EMPTY;
+        }
+        Map<String, String> copy = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            copy.put(tag.getKey().intern(), tag.getValue() == null ? "" : tag.getValue().intern());
+        }
+        return new MetricTags(Collections.unmodifiableMap(copy));
+    }
+
+    /**
+     * Returns the tags as a map.
+     *
+     * @return an unmodifiable map of the tags
+     */
+    public Map<String, String> asMap() {
+        return tags;
+    }
+
+    /**
+     * Returns the tags in the format 'key="value",key2="value2",...', with
+     * backslashes, double quotes and line feeds in the values escaped as the
+     * Prometheus exposition format requires.
+     *
+     * @return the label block, empty if there are no tags
+     */
+    public String getPrometheusLabels() {
+        return prometheusLabels;
+    }
+
+    private static String render(Map<String, String> tags) {
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            if (result.length() > 0) {
+                result.append(',');
+            }
+            result.append(tag.getKey()).append("=\"");
+            String value = tag.getValue();
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\' || c == '"') {
+                    result.append('\\').append(c);
+                } else if (c == '\n') {
+                    result.append("\\n");
+                } else {
+                    result.append(c);
+                }
+            }
+            result.append('"');
+        }
+        return result.toString();
+    }
+
+    @Override
+    public int hashCode() {
+        return tags.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof MetricTags && tags.equals(((MetricTags) obj).tags);
+    }
+
+    @Override
+    public String toString() {
+        return tags.toString();
+    }
+}
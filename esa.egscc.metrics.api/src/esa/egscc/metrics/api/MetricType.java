@@ -59,6 +59,12 @@ public enum MetricType {
      * statistics, plus throughput statistics
      */
     TIMER("timer", Timer.class),
+
+    /**
+     * A long task timer tracks the tasks still in flight and how long
+     * they have been running. An example could be a hanging outbound push.
+     */
+    LONG_TASK_TIMER("long_task_timer", LongTaskTimer.class),
     
     /**
      * Invalid - Placeholder
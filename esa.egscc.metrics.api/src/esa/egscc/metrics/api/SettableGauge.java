@@ -0,0 +1,43 @@
+/*
+ **********************************************************************
+ * Copyright (c) 2017 Contributors to the Eclipse Foundation
+ *
+ * See the NOTICES file(s) distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ **********************************************************************/
+package esa.egscc.metrics.api;
+
+/**
+ * A gauge whose value is set by the instrumented code rather than read from
+ * it, e.g. the size of a cache after every eviction run.
+ */
+public interface SettableGauge extends Gauge<Long> {
+    /**
+     * Sets the gauge's value.
+     *
+     * @param value the new value
+     */
+    void set(long value);
+
+    /**
+     * Returns the value last set, or {@code 0} if none was set.
+     *
+     * @return the gauge's current value
+     */
+    @Override
+    Long getValue();
+}
@@ -37,6 +37,24 @@ public abstract class Snapshot {
      */
     public abstract double getValue(double quantile);
 
+    /**
+     * Returns the values at the given quantiles. Implementations may evaluate
+     * all quantiles in a single pass over the snapshot, which is cheaper than
+     * calling {@link #getValue(double)} for each of them, especially if the
+     * quantiles are given in ascending order.
+     *
+     * @param quantiles    the quantiles, each in {@code [0..1]}
+     * @return the values in the distribution at {@code quantiles}, in the same
+     *         order
+     */
+    public double[] getValues(double[] quantiles) {
+        double[] values = new double[quantiles.length];
+        for (int i = 0; i < quantiles.length; i++) {
+            values[i] = getValue(quantiles[i]);
+        }
+        return values;
+    }
+
     /**
      * Returns the entire set of values in the snapshot.
      *
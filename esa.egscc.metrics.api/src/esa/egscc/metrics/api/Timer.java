@@ -24,7 +24,9 @@ package esa.egscc.metrics.api;
 
 import java.io.Closeable;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
  * A timer metric which aggregates timing durations and provides duration
@@ -89,6 +91,85 @@ public interface Timer extends Metered, Sampling {
 	 */
 	public Context time();
 
+	/**
+	 * Starts timing an event without allocating a {@link Context}. Pass the
+	 * returned tick to {@link #stopFrom(long)} when the event is done.
+	 *
+	 * @return the start tick in nanoseconds, only meaningful to this timer
+	 */
+	public default long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records the duration of an event started with {@link #start()}.
+	 *
+	 * @param startTick the tick returned by {@link #start()}
+	 * @return the elapsed time in nanoseconds
+	 */
+	public default long stopFrom(long startTick) {
+		long elapsed = System.nanoTime() - startTick;
+		update(elapsed, TimeUnit.NANOSECONDS);
+		return elapsed;
+	}
+
+	/**
+	 * Adds a recorded duration in nanoseconds.
+	 *
+	 * @param nanos the length of the duration in nanoseconds
+	 */
+	public default void recordNanos(long nanos) {
+		update(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Times an asynchronous operation from the call of {@code operation} until
+	 * the completion of the stage it returns, whether normal or exceptional.
+	 *
+	 * @param operation a {@link Supplier} which starts the operation and returns
+	 *                  its stage
+	 * @param <S>       the type of the stage
+	 * @return the stage returned by {@code operation}
+	 */
+	public default <S extends CompletionStage<?>> S timeAsync(Supplier<S> operation) {
+		return timeAsync(operation, this);
+	}
+
+	/**
+	 * Times an asynchronous operation from the call of {@code operation} until
+	 * the completion of the stage it returns. Normal completions are recorded by
+	 * this timer, exceptional ones by {@code failures}, as is an exception thrown
+	 * by {@code operation} itself. A timer which only times some of the events
+	 * decides which ones by itself, and records the failures it timed into
+	 * {@code failures} with its own weight.
+	 *
+	 * @param operation a {@link Supplier} which starts the operation and returns
+	 *                  its stage
+	 * @param failures  the timer to record failed operations, which must measure
+	 *                  time like this timer, e.g. by coming from the same
+	 *                  registry
+	 * @param <S>       the type of the stage
+	 * @return the stage returned by {@code operation}
+	 */
+	public default <S extends CompletionStage<?>> S timeAsync(Supplier<S> operation, Timer failures) {
+		final long startTick = start();
+		final S stage;
+		try {
+			stage = operation.get();
+		} catch (RuntimeException | Error e) {
+			failures.stopFrom(startTick);
+			throw e;
+		}
+		stage.whenComplete((result, failure) -> {
+			if (failure == null) {
+				stopFrom(startTick);
+			} else {
+				failures.stopFrom(startTick);
+			}
+		});
+		return stage;
+	}
+
 	@Override
 	public long getCount();
 
@@ -0,0 +1,284 @@
+package esa.egscc.metrics.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * A sum which starts as a single long updated by compare-and-swap, inflates to
+ * striped cells once two threads are seen to contend for it, and deflates back
+ * to the single long once it has been updated by at most one thread for a
+ * quiet period. Unlike a {@link java.util.concurrent.atomic.LongAdder}, whose
+ * cells stay allocated for good once it was contended, a sum which was only
+ * briefly contended therefore returns to its small footprint.
+ * <p>
+ * Updates never block. A writer whose cell is contended moves to another cell
+ * and grows the cells up to the next power of two of the number of processors.
+ * Reading the sum of an inflated adder takes its lock, checks whether the
+ * cells have been quiet for long enough and, if so, swaps them out by
+ * compare-and-swap, so cells which grew in the meantime are kept, and folds
+ * them back into the base. Cells are retired by swapping their value for a
+ * marker, so a writer which still holds the cells of a deflated adder fails its
+ * update and retries on the base instead of losing it. A cell whose partial sum
+ * happens to equal the marker, {@link Long#MIN_VALUE}, is treated the same way,
+ * which only matters for sums at the edge of overflow.
+ */
+final class AdaptiveAdder {
+	private static final long QUIET_PERIOD = TimeUnit.MINUTES.toNanos(1);
+	private static final long RETIRED = Long.MIN_VALUE;
+	private static final int MAX_CELLS = maxCells();
+	// per thread cell index, moved to another cell when the current one is contended
+	private static final ThreadLocal<int[]> PROBE = ThreadLocal.withInitial(() -> new int[] { initialProbe() });
+
+	private static final AtomicLongFieldUpdater<AdaptiveAdder> BASE = AtomicLongFieldUpdater
+			.newUpdater(AdaptiveAdder.class, "base");
+	private static final AtomicReferenceFieldUpdater<AdaptiveAdder, Cell[]> CELLS = AtomicReferenceFieldUpdater
+			.newUpdater(AdaptiveAdder.class, Cell[].class, "cells");
+
+	// pads the base against the fields of neighbouring objects, relying on the
+	// JVM laying out fields of the same size in declaration order
+	@SuppressWarnings("unused")
+	private long p1, p2, p3, p4, p5, p6, p7;
+	private volatile long base;
+	@SuppressWarnings("unused")
+	private long p9, p10, p11, p12, p13, p14, p15;
+
+	private volatile Cell[] cells;
+
+	private final long quietPeriod;
+	private final int maxCells;
+
+	// guarded by this; only touched by readers
+	private long[] lastSeen;
+	private long lastContended;
+
+	/**
+	 * Creates a new {@link AdaptiveAdder} which deflates after a minute without
+	 * contention.
+	 */
+	AdaptiveAdder() {
+		this(QUIET_PERIOD, MAX_CELLS);
+	}
+
+	/**
+	 * Creates a new {@link AdaptiveAdder}.
+	 *
+	 * @param quietPeriod
+	 *            the time in nanoseconds at most one cell must have changed for
+	 *            before the adder deflates
+	 * @param maxCells
+	 *            the maximum number of cells, a power of two
+	 */
+	AdaptiveAdder(final long quietPeriod, final int maxCells) {
+		if (maxCells < 2 || Integer.bitCount(maxCells) != 1) {
+			throw new IllegalArgumentException("The maximum number of cells must be a power of two: " + maxCells);
+		}
+		this.quietPeriod = quietPeriod;
+		this.maxCells = maxCells;
+	}
+
+	/**
+	 * Adds the given value.
+	 *
+	 * @param x
+	 *            the value to add
+	 */
+	void add(final long x) {
+		for (;;) {
+			final Cell[] cs = cells;
+			if (cs == null) {
+				final long b = base;
+				if (BASE.compareAndSet(this, b, b + x)) {
+					return;
+				}
+				if (cells == null) {
+					CELLS.compareAndSet(this, null, newCells(2, null));
+				}
+			} else {
+				final int[] probe = PROBE.get();
+				final Cell cell = cs[probe[0] & (cs.length - 1)];
+				final long v = cell.value;
+				if (v != RETIRED) {
+					if (Cell.VALUE.compareAndSet(cell, v, v + x)) {
+						return;
+					}
+					probe[0] = rehash(probe[0]);
+					if (cs.length < maxCells) {
+						CELLS.compareAndSet(this, cs, newCells(cs.length << 1, cs));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds one.
+	 */
+	void increment() {
+		add(1);
+	}
+
+	/**
+	 * Returns the current sum. The sum is not an atomic snapshot if the adder is
+	 * updated concurrently.
+	 *
+	 * @return the sum
+	 */
+	long sum() {
+		if (cells == null) {
+			return base;
+		}
+		synchronized (this) {
+			final Cell[] cs = cells;
+			if (cs != null) {
+				deflateIfQuiet(cs);
+			}
+			// re-read, the cells may have been deflated or grown
+			final Cell[] current = cells;
+			long sum = base;
+			if (current != null) {
+				for (final Cell cell : current) {
+					sum += cell.value;
+				}
+			}
+			return sum;
+		}
+	}
+
+	/**
+	 * Returns the current sum and resets it to zero. Values added concurrently
+	 * are either included in the returned sum or kept for the next one.
+	 *
+	 * @return the sum before the reset
+	 */
+	long sumThenReset() {
+		if (cells == null) {
+			return BASE.getAndSet(this, 0);
+		}
+		synchronized (this) {
+			final Cell[] cs = cells;
+			long sum = 0;
+			if (cs != null && !deflateIfQuiet(cs)) {
+				// only deflation clears the cells, but they may have grown
+				for (final Cell cell : cells) {
+					sum += retireOrReset(cell, false);
+				}
+				Arrays.fill(lastSeen, 0);
+			}
+			return sum + BASE.getAndSet(this, 0);
+		}
+	}
+
+	/*
+	 * Deflates the adder if at most one of its cells changed during the last quiet
+	 * period and the cells did not grow meanwhile. Callers must hold the lock.
+	 */
+	private boolean deflateIfQuiet(final Cell[] cs) {
+		final long now = System.nanoTime();
+		if (lastSeen == null || lastSeen.length != cs.length) {
+			lastSeen = new long[cs.length];
+			lastContended = now;
+		}
+		int changed = 0;
+		for (int i = 0; i < cs.length; i++) {
+			final long v = cs[i].value;
+			if (v != lastSeen[i]) {
+				changed++;
+				lastSeen[i] = v;
+			}
+		}
+		if (changed > 1) {
+			lastContended = now;
+			return false;
+		}
+		if (now - lastContended < quietPeriod) {
+			return false;
+		}
+		// a writer may have grown the cells since they were read; clearing them
+		// unconditionally would lose the updates of its new cells
+		if (!CELLS.compareAndSet(this, cs, null)) {
+			lastContended = now;
+			return false;
+		}
+		lastSeen = null;
+		for (final Cell cell : cs) {
+			BASE.getAndAdd(this, retireOrReset(cell, true));
+		}
+		return true;
+	}
+
+	/**
+	 * Returns whether the adder is currently striped over cells.
+	 *
+	 * @return {@code true} if inflated
+	 */
+	boolean isInflated() {
+		return cells != null;
+	}
+
+	/*
+	 * Atomically takes the value of a cell, leaving it either retired or zero.
+	 */
+	private static long retireOrReset(final Cell cell, final boolean retire) {
+		for (;;) {
+			final long v = cell.value;
+			if (v == RETIRED) {
+				return 0;
+			}
+			if (Cell.VALUE.compareAndSet(cell, v, retire ? RETIRED : 0)) {
+				return v;
+			}
+		}
+	}
+
+	private static Cell[] newCells(final int length, final Cell[] existing) {
+		final Cell[] cs = new Cell[length];
+		final int copied = existing == null ? 0 : existing.length;
+		if (copied > 0) {
+			System.arraycopy(existing, 0, cs, 0, copied);
+		}
+		for (int i = copied; i < length; i++) {
+			cs[i] = new Cell();
+		}
+		return cs;
+	}
+
+	private static int initialProbe() {
+		// spread sequential thread ids over the cells
+		final int probe = (int) ((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 32);
+		return probe == 0 ? 1 : probe;
+	}
+
+	private static int rehash(int probe) {
+		// xorshift, never zero for a non-zero probe
+		probe ^= probe << 13;
+		probe ^= probe >>> 17;
+		probe ^= probe << 5;
+		return probe;
+	}
+
+	private static int maxCells() {
+		final int processors = Runtime.getRuntime().availableProcessors();
+		return processors <= 2 ? 2 : Integer.highestOneBit(processors - 1) << 1;
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(sum());
+	}
+
+	/**
+	 * A padded cell of an inflated adder.
+	 */
+	private static final class Cell {
+		private static final AtomicLongFieldUpdater<Cell> VALUE = AtomicLongFieldUpdater.newUpdater(Cell.class,
+				"value");
+
+		@SuppressWarnings("unused")
+		private long p1, p2, p3, p4, p5, p6, p7;
+		private volatile long value;
+		@SuppressWarnings("unused")
+		private long p9, p10, p11, p12, p13, p14, p15;
+	}
+}
@@ -0,0 +1,74 @@
+package esa.egscc.metrics.impl;
+
+import esa.egscc.metrics.api.Counter;
+
+/**
+ * A counter whose count lives in a cache line of a {@link MetricArena}. The
+ * counter itself only holds the offset of that line. Unlike {@link CounterImpl}
+ * it does not stripe its count, so every update is an atomic add on the same
+ * line.
+ */
+public class ArenaCounter implements Counter, ArenaMetric {
+	private final MetricArena arena;
+	// -1 once released
+	private volatile long offset;
+	private volatile long released;
+
+	/**
+	 * Creates a new {@link ArenaCounter}.
+	 *
+	 * @param arena
+	 *            the arena holding the count
+	 * @param offset
+	 *            the offset of a block of one long allocated from the arena
+	 */
+	ArenaCounter(final MetricArena arena, final long offset) {
+		this.arena = arena;
+		this.offset = offset;
+		arena.attach(this, offset, 1);
+	}
+
+	@Override
+	public void inc() {
+		inc(1);
+	}
+
+	@Override
+	public void inc(final long n) {
+		final long o = offset;
+		if (o >= 0) {
+			arena.add(o, n);
+			MetricArena.reachabilityFence(this);
+		}
+	}
+
+	@Override
+	public void dec() {
+		dec(1);
+	}
+
+	@Override
+	public void dec(final long n) {
+		inc(-n);
+	}
+
+	@Override
+	public long getCount() {
+		final long o = offset;
+		if (o < 0) {
+			return released;
+		}
+		final long count = arena.get(o);
+		MetricArena.reachabilityFence(this);
+		return count;
+	}
+
+	@Override
+	public synchronized void release() {
+		final long o = offset;
+		if (o >= 0) {
+			released = arena.get(o);
+			offset = -1;
+		}
+	}
+}
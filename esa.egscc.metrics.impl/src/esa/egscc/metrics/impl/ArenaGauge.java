@@ -0,0 +1,57 @@
+package esa.egscc.metrics.impl;
+
+import esa.egscc.metrics.api.SettableGauge;
+
+/**
+ * A settable gauge whose value lives in a cache line of a {@link MetricArena}.
+ * The gauge itself only holds the offset of that line.
+ */
+public class ArenaGauge implements SettableGauge, ArenaMetric {
+	private final MetricArena arena;
+	// -1 once released
+	private volatile long offset;
+	private volatile long released;
+
+	/**
+	 * Creates a new {@link ArenaGauge}.
+	 *
+	 * @param arena
+	 *            the arena holding the value
+	 * @param offset
+	 *            the offset of a block of one long allocated from the arena
+	 */
+	ArenaGauge(final MetricArena arena, final long offset) {
+		this.arena = arena;
+		this.offset = offset;
+		arena.attach(this, offset, 1);
+	}
+
+	@Override
+	public void set(final long value) {
+		final long o = offset;
+		if (o >= 0) {
+			arena.set(o, value);
+			MetricArena.reachabilityFence(this);
+		}
+	}
+
+	@Override
+	public Long getValue() {
+		final long o = offset;
+		if (o < 0) {
+			return released;
+		}
+		final long value = arena.get(o);
+		MetricArena.reachabilityFence(this);
+		return value;
+	}
+
+	@Override
+	public synchronized void release() {
+		final long o = offset;
+		if (o >= 0) {
+			released = arena.get(o);
+			offset = -1;
+		}
+	}
+}
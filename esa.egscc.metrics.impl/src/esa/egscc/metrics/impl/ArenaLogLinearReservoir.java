@@ -0,0 +1,114 @@
+package esa.egscc.metrics.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import esa.egscc.metrics.api.Snapshot;
+
+/**
+ * A {@link LogLinearReservoir} whose counts live in a block of a
+ * {@link MetricArena} instead of a heap array, so thousands of them add no
+ * large arrays for the garbage collector to copy. Snapshots read the counts
+ * straight from the arena.
+ */
+public class ArenaLogLinearReservoir implements Reservoir, ArenaMetric {
+	private static final long DEFAULT_HIGHEST_TRACKABLE_VALUE = TimeUnit.HOURS.toNanos(1);
+	private static final int DEFAULT_SIGNIFICANT_DIGITS = 2;
+
+	private final MetricArena arena;
+	private final LogLinearBuckets buckets;
+	private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+	// -1 once released
+	private volatile long offset;
+	private volatile Snapshot released;
+
+	private ArenaLogLinearReservoir(final MetricArena arena, final LogLinearBuckets buckets, final long offset) {
+		this.arena = arena;
+		this.buckets = buckets;
+		this.offset = offset;
+		arena.attach(this, offset, buckets.length());
+	}
+
+	/**
+	 * Creates a new {@link ArenaLogLinearReservoir} which tracks values up to one
+	 * hour in nanoseconds with two significant digits.
+	 *
+	 * @param arena
+	 *            the arena to hold the counts
+	 * @return the new reservoir, or {@code null} if the arena is full
+	 */
+	static ArenaLogLinearReservoir allocate(final MetricArena arena) {
+		final LogLinearBuckets buckets = new LogLinearBuckets(DEFAULT_HIGHEST_TRACKABLE_VALUE,
+				DEFAULT_SIGNIFICANT_DIGITS);
+		final long offset = arena.allocate(buckets.length());
+		return offset < 0 ? null : new ArenaLogLinearReservoir(arena, buckets, offset);
+	}
+
+	@Override
+	public int size() {
+		final long o = offset;
+		if (o < 0) {
+			return released.size();
+		}
+		long size = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			size += arena.get(o + (long) i * Long.BYTES);
+		}
+		MetricArena.reachabilityFence(this);
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public void update(final long value) {
+		final long o = offset;
+		if (o >= 0) {
+			// extremes first, so a reader which sees the count also sees them
+			updateMin(value);
+			updateMax(value);
+			arena.add(o + (long) buckets.indexOf(value) * Long.BYTES, 1);
+			MetricArena.reachabilityFence(this);
+		}
+	}
+
+	@Override
+	public Snapshot getSnapshot() {
+		final long o = offset;
+		if (o < 0) {
+			return released;
+		}
+		final long[] counts = new long[buckets.length()];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = arena.get(o + (long) i * Long.BYTES);
+		}
+		MetricArena.reachabilityFence(this);
+		return new LogLinearSnapshot(buckets, counts, min.get(), max.get());
+	}
+
+	@Override
+	public synchronized void release() {
+		final long o = offset;
+		if (o >= 0) {
+			released = getSnapshot();
+			offset = -1;
+		}
+	}
+
+	private void updateMin(final long value) {
+		long current;
+		while (value < (current = min.get())) {
+			if (min.compareAndSet(current, value)) {
+				return;
+			}
+		}
+	}
+
+	private void updateMax(final long value) {
+		long current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value)) {
+				return;
+			}
+		}
+	}
+}
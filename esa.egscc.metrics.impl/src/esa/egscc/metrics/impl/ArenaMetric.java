@@ -0,0 +1,13 @@
+package esa.egscc.metrics.impl;
+
+/**
+ * A metric, or a part of one, whose values live in a {@link MetricArena}.
+ */
+interface ArenaMetric {
+	/**
+	 * Detaches the metric from its memory. The metric keeps reporting its last
+	 * values, but ignores further updates; the memory returns to the arena once
+	 * the metric has been garbage collected.
+	 */
+	void release();
+}
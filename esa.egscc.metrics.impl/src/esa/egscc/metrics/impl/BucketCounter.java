@@ -0,0 +1,146 @@
+package esa.egscc.metrics.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.DoubleAdder;
+
+import esa.egscc.metrics.api.Buckets;
+
+/**
+ * Counts values into buckets with fixed upper bounds. Every bucket is an
+ * {@link AdaptiveAdder}, so concurrent updates never block and rarely contend.
+ * Counts are kept per bucket and only made cumulative when read.
+ * <p>
+ * Given a {@link MetricArena} with room left, the counts and the sum live in a
+ * block of the arena instead, and are updated by atomic adds.
+ * <p>
+ * The sum is a double, since a long sum of nanoseconds overflows after about
+ * 292 years of recorded time, which a busy timer reaches within months.
+ */
+final class BucketCounter implements ArenaMetric {
+	private final long[] upperBounds;
+	// one count per bound plus one for the values above the highest bound; on
+	// the heap as adders, or in the arena followed by the raw bits of the sum
+	private final AdaptiveAdder[] counts;
+	private final DoubleAdder sum;
+	private final MetricArena arena;
+	// -1 if on the heap or released
+	private volatile long offset;
+	private volatile Buckets released;
+
+	/**
+	 * Creates a new {@link BucketCounter}.
+	 *
+	 * @param upperBounds
+	 *            the upper bounds of the buckets, in ascending order without
+	 *            duplicates
+	 */
+	BucketCounter(final long[] upperBounds) {
+		this(upperBounds, null);
+	}
+
+	/**
+	 * Creates a new {@link BucketCounter}, off the heap if possible.
+	 *
+	 * @param upperBounds
+	 *            the upper bounds of the buckets, in ascending order without
+	 *            duplicates
+	 * @param arena
+	 *            the arena to hold the counts, or {@code null} to keep them on
+	 *            the heap
+	 */
+	BucketCounter(final long[] upperBounds, final MetricArena arena) {
+		if (upperBounds.length == 0) {
+			throw new IllegalArgumentException("At least one bucket bound is required");
+		}
+		for (int i = 1; i < upperBounds.length; i++) {
+			if (upperBounds[i] <= upperBounds[i - 1]) {
+				throw new IllegalArgumentException("Bucket bounds must be strictly ascending: "
+						+ Arrays.toString(upperBounds));
+			}
+		}
+		this.upperBounds = upperBounds.clone();
+		this.arena = arena;
+		offset = arena == null ? -1 : arena.allocate(upperBounds.length + 2);
+		if (offset >= 0) {
+			arena.attach(this, offset, upperBounds.length + 2);
+			counts = null;
+			sum = null;
+		} else {
+			counts = new AdaptiveAdder[upperBounds.length + 1];
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = new AdaptiveAdder();
+			}
+			sum = new DoubleAdder();
+		}
+	}
+
+	/**
+	 * Counts the given value in the lowest bucket whose bound is not below it.
+	 *
+	 * @param value
+	 *            a recorded value
+	 */
+	void update(final long value) {
+		update(value, 1);
+	}
+
+	/**
+	 * Counts the given value {@code weight} times in the lowest bucket whose bound
+	 * is not below it.
+	 *
+	 * @param value
+	 *            a recorded value
+	 * @param weight
+	 *            the number of events the value stands for
+	 */
+	void update(final long value, final long weight) {
+		final int found = Arrays.binarySearch(upperBounds, value);
+		final int index = found >= 0 ? found : -found - 1;
+		if (counts != null) {
+			counts[index].add(weight);
+			sum.add((double) value * weight);
+		} else {
+			final long o = offset;
+			if (o >= 0) {
+				arena.add(o + (long) index * Long.BYTES, weight);
+				arena.addDouble(o + (long) (upperBounds.length + 1) * Long.BYTES, (double) value * weight);
+				MetricArena.reachabilityFence(this);
+			}
+		}
+	}
+
+	/**
+	 * Returns the cumulative counts of the buckets.
+	 *
+	 * @return a copy of the current counts
+	 */
+	Buckets getBuckets() {
+		final long o = counts == null ? offset : -1;
+		if (counts == null && o < 0) {
+			return released;
+		}
+		final long[] cumulative = new long[upperBounds.length];
+		long count = 0;
+		for (int i = 0; i < upperBounds.length; i++) {
+			count += o < 0 ? counts[i].sum() : arena.get(o + (long) i * Long.BYTES);
+			cumulative[i] = count;
+		}
+		if (o < 0) {
+			count += counts[upperBounds.length].sum();
+			return new Buckets(upperBounds, cumulative, count, sum.sum());
+		}
+		count += arena.get(o + (long) upperBounds.length * Long.BYTES);
+		final double total = Double.longBitsToDouble(arena.get(o + (long) (upperBounds.length + 1) * Long.BYTES));
+		MetricArena.reachabilityFence(this);
+		return new Buckets(upperBounds, cumulative, count, total);
+	}
+
+	@Override
+	public synchronized void release() {
+		final long o = offset;
+		if (o >= 0) {
+			released = getBuckets();
+			offset = -1;
+		}
+	}
+}
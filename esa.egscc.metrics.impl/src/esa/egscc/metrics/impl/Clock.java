@@ -1,5 +1,8 @@
 package esa.egscc.metrics.impl;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * An abstraction for how time passes. It is passed to {@link Timer} to track
  * timing.
@@ -44,4 +47,71 @@ public abstract class Clock {
 		}
 	}
 
+	/**
+	 * A clock implementation which returns cached values of
+	 * {@link System#nanoTime()} and {@link System#currentTimeMillis()}, refreshed
+	 * by a background thread at a fixed resolution. Reading it is a volatile read
+	 * instead of a system call, at the price of durations and timestamps being
+	 * only as precise as the resolution. The thread runs until {@link #stop()} is
+	 * called.
+	 */
+	public static class CachedClock extends Clock {
+		private static final String THREAD_NAME = "EGSCC Metrics Cached Clock";
+
+		private final long resolution;
+		private final Thread thread;
+		private volatile boolean running = true;
+		private volatile long tick;
+		private volatile long time;
+
+		/**
+		 * Creates a new {@link CachedClock} and starts its thread.
+		 *
+		 * @param resolution
+		 *            the interval between two refreshes of the cached values
+		 * @param unit
+		 *            the unit of {@code resolution}
+		 */
+		public CachedClock(final long resolution, final TimeUnit unit) {
+			this.resolution = unit.toNanos(resolution);
+			if (this.resolution <= 0) {
+				throw new IllegalArgumentException("Resolution must be positive: " + resolution);
+			}
+			refresh();
+			thread = new Thread(this::run, THREAD_NAME);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		private void run() {
+			while (running) {
+				LockSupport.parkNanos(resolution);
+				refresh();
+			}
+		}
+
+		private void refresh() {
+			tick = System.nanoTime();
+			time = System.currentTimeMillis();
+		}
+
+		@Override
+		public long getTick() {
+			return tick;
+		}
+
+		@Override
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * Stops the thread. The clock keeps returning the last cached values.
+		 */
+		public void stop() {
+			running = false;
+			LockSupport.unpark(thread);
+		}
+	}
+
 }
@@ -1,17 +1,15 @@
 package esa.egscc.metrics.impl;
 
-import java.util.concurrent.atomic.LongAdder;
-
 import esa.egscc.metrics.api.Counter;
 
 /**
  * An incrementing and decrementing counter metric.
  */
 public class CounterImpl implements Counter {
-	private final LongAdder count;
+	private final AdaptiveAdder count;
 
 	public CounterImpl() {
-		count = new LongAdder();
+		count = new AdaptiveAdder();
 	}
 
 	@Override
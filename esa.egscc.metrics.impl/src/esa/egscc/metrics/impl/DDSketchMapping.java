@@ -0,0 +1,64 @@
+package esa.egscc.metrics.impl;
+
+/**
+ * The logarithmic index mapping of a DDSketch. Every positive value {@code v}
+ * is mapped to the index {@code ceil(log(v) / log(gamma))} with
+ * {@code gamma = (1 + a) / (1 - a)}, so that every value of a bucket is within
+ * the relative accuracy {@code a} of the value representing the bucket.
+ * <p>
+ * Sketches can only be merged if they share the same relative accuracy.
+ *
+ * @see <a href="https://arxiv.org/abs/1908.10693">DDSketch: A Fast and
+ *      Fully-Mergeable Quantile Sketch with Relative-Error Guarantees</a>
+ */
+final class DDSketchMapping {
+	private final double relativeAccuracy;
+	private final double gamma;
+	private final double multiplier;
+
+	/**
+	 * Creates a new mapping.
+	 *
+	 * @param relativeAccuracy
+	 *            the relative accuracy of the values, in {@code (0..1)}
+	 */
+	DDSketchMapping(final double relativeAccuracy) {
+		if (!(relativeAccuracy > 0 && relativeAccuracy < 1)) {
+			throw new IllegalArgumentException(relativeAccuracy + " is not in (0..1)");
+		}
+		this.relativeAccuracy = relativeAccuracy;
+		gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+		multiplier = 1 / Math.log(gamma);
+	}
+
+	double relativeAccuracy() {
+		return relativeAccuracy;
+	}
+
+	/**
+	 * Returns the index of the bucket of the given value.
+	 *
+	 * @param value
+	 *            a value of at least {@code 1}
+	 * @return the index of its bucket, at least {@code 0}
+	 */
+	int indexOf(final long value) {
+		return (int) Math.ceil(Math.log(value) * multiplier);
+	}
+
+	/**
+	 * Returns the value representing the bucket at the given index, which is within
+	 * the relative accuracy of every value in the bucket.
+	 *
+	 * @param index
+	 *            the index of a bucket
+	 * @return the representative value of the bucket
+	 */
+	double valueAt(final int index) {
+		return 2 * Math.pow(gamma, index) / (1 + gamma);
+	}
+
+	boolean isCompatible(final DDSketchMapping other) {
+		return Double.compare(relativeAccuracy, other.relativeAccuracy) == 0;
+	}
+}
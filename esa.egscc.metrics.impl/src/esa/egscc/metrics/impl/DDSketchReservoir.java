@@ -0,0 +1,154 @@
+package esa.egscc.metrics.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+
+import esa.egscc.metrics.api.Snapshot;
+
+/**
+ * A fixed-memory reservoir which keeps a DDSketch of all recorded values.
+ * Every quantile it reports is within a configurable relative accuracy of the
+ * true quantile, and its snapshots can be merged across threads, registries,
+ * intervals or processes, see {@link DDSketchSnapshot}.
+ * <p>
+ * The buckets cover the values from {@code 1} up to the highest trackable
+ * value; higher values are counted in the highest bucket, but still reported as
+ * the exact maximum. With the default relative accuracy of 2% and a range of
+ * one hour in nanoseconds the sketch holds about 700 buckets, or 6 KB,
+ * regardless of the number of recorded values. Recording a value is a single
+ * atomic increment of its bucket.
+ *
+ * @see <a href="https://arxiv.org/abs/1908.10693">DDSketch: A Fast and
+ *      Fully-Mergeable Quantile Sketch with Relative-Error Guarantees</a>
+ */
+public class DDSketchReservoir implements Reservoir {
+	private static final double DEFAULT_RELATIVE_ACCURACY = 0.02;
+	private static final long DEFAULT_HIGHEST_TRACKABLE_VALUE = TimeUnit.HOURS.toNanos(1);
+
+	private final DDSketchMapping mapping;
+	private final AtomicLongArray counts;
+	private final AtomicLong zeroCount = new AtomicLong();
+	private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+	// a double, so a sum of nanoseconds cannot overflow
+	private final DoubleAdder sum = new DoubleAdder();
+
+	/**
+	 * Creates a new {@link DDSketchReservoir} with a relative accuracy of 2% for
+	 * values up to one hour in nanoseconds.
+	 */
+	public DDSketchReservoir() {
+		this(DEFAULT_RELATIVE_ACCURACY, DEFAULT_HIGHEST_TRACKABLE_VALUE);
+	}
+
+	/**
+	 * Creates a new {@link DDSketchReservoir}.
+	 *
+	 * @param relativeAccuracy
+	 *            the relative accuracy of the reported quantiles, in
+	 *            {@code (0..1)}
+	 * @param highestTrackableValue
+	 *            the highest value to be tracked with that accuracy
+	 */
+	public DDSketchReservoir(final double relativeAccuracy, final long highestTrackableValue) {
+		if (highestTrackableValue < 1) {
+			throw new IllegalArgumentException("Highest trackable value must be positive: " + highestTrackableValue);
+		}
+		mapping = new DDSketchMapping(relativeAccuracy);
+		counts = new AtomicLongArray(mapping.indexOf(highestTrackableValue) + 1);
+	}
+
+	@Override
+	public int size() {
+		long size = zeroCount.get();
+		for (int i = 0; i < counts.length(); i++) {
+			size += counts.get(i);
+		}
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public void update(final long value) {
+		// extremes first, so a reader which sees the count also sees them
+		updateMin(value);
+		updateMax(value);
+		sum.add(value);
+		if (value < 1) {
+			zeroCount.incrementAndGet();
+		} else {
+			counts.incrementAndGet(indexOf(value));
+		}
+	}
+
+	/**
+	 * Adds all values of the given snapshot to this reservoir, e.g. to aggregate
+	 * the snapshots of several processes.
+	 *
+	 * @param snapshot
+	 *            a snapshot of the same relative accuracy
+	 */
+	public void merge(final DDSketchSnapshot snapshot) {
+		if (Double.compare(snapshot.getRelativeAccuracy(), mapping.relativeAccuracy()) != 0) {
+			throw new IllegalArgumentException("Cannot merge sketches of relative accuracy "
+					+ mapping.relativeAccuracy() + " and " + snapshot.getRelativeAccuracy());
+		}
+		if (snapshot.size() == 0) {
+			return;
+		}
+		updateMin(snapshot.getMin());
+		updateMax(snapshot.getMax());
+		sum.add(snapshot.getSum());
+		zeroCount.addAndGet(snapshot.zeroCount());
+		final long[] bucketCounts = snapshot.counts();
+		for (int i = 0; i < bucketCounts.length; i++) {
+			if (bucketCounts[i] > 0) {
+				final int index = Math.max(0, Math.min(snapshot.offset() + i, counts.length() - 1));
+				counts.addAndGet(index, bucketCounts[i]);
+			}
+		}
+	}
+
+	@Override
+	public Snapshot getSnapshot() {
+		int first = -1;
+		int last = -1;
+		final long[] copy = new long[counts.length()];
+		for (int i = 0; i < copy.length; i++) {
+			copy[i] = counts.get(i);
+			if (copy[i] > 0) {
+				last = i;
+				if (first < 0) {
+					first = i;
+				}
+			}
+		}
+		final long[] trimmed = first < 0 ? new long[0] : Arrays.copyOfRange(copy, first, last + 1);
+		return new DDSketchSnapshot(mapping, zeroCount.get(), Math.max(first, 0), trimmed, min.get(), max.get(),
+				sum.sum());
+	}
+
+	private int indexOf(final long value) {
+		return Math.min(mapping.indexOf(value), counts.length() - 1);
+	}
+
+	private void updateMin(final long value) {
+		long current;
+		while (value < (current = min.get())) {
+			if (min.compareAndSet(current, value)) {
+				return;
+			}
+		}
+	}
+
+	private void updateMax(final long value) {
+		long current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value)) {
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,424 @@
+package esa.egscc.metrics.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import esa.egscc.metrics.api.Snapshot;
+
+/**
+ * A statistical snapshot of a {@link DDSketchReservoir}. Quantiles carry the
+ * relative accuracy of the sketch; count, minimum, maximum and mean are exact.
+ * <p>
+ * Unlike sampled snapshots, sketches of the same relative accuracy can be
+ * merged without losing accuracy, see {@link #merge(DDSketchSnapshot)}, and
+ * exchanged between processes in a compact binary form, see
+ * {@link #toByteArray()} and {@link #fromByteArray(byte[])}.
+ */
+public class DDSketchSnapshot extends Snapshot {
+	private static final byte FORMAT_VERSION = 1;
+
+	private final DDSketchMapping mapping;
+	private final long zeroCount;
+	// counts[i] is the count of the bucket with index offset + i
+	private final int offset;
+	private final long[] counts;
+	private final long count;
+	private final long min;
+	private final long max;
+	private final double sum;
+
+	/**
+	 * Create a new {@link Snapshot} from the given bucket counts.
+	 *
+	 * @param mapping
+	 *            the mapping of the buckets
+	 * @param zeroCount
+	 *            the number of values below {@code 1}
+	 * @param offset
+	 *            the index of the bucket counted by {@code counts[0]}
+	 * @param counts
+	 *            the bucket counts; the snapshot takes ownership of the array
+	 * @param min
+	 *            the lowest recorded value
+	 * @param max
+	 *            the highest recorded value
+	 * @param sum
+	 *            the sum of the recorded values
+	 */
+	DDSketchSnapshot(final DDSketchMapping mapping, final long zeroCount, final int offset, final long[] counts,
+			final long min, final long max, final double sum) {
+		this.mapping = mapping;
+		this.zeroCount = zeroCount;
+		this.offset = offset;
+		this.counts = counts;
+		long total = zeroCount;
+		for (final long bucketCount : counts) {
+			total += bucketCount;
+		}
+		count = total;
+		this.min = total == 0 ? 0 : min;
+		this.max = total == 0 ? 0 : max;
+		this.sum = total == 0 ? 0 : sum;
+	}
+
+	/**
+	 * Returns a new snapshot holding the values of both this and the given
+	 * snapshot.
+	 *
+	 * @param other
+	 *            a snapshot of the same relative accuracy
+	 * @return the merged snapshot
+	 */
+	public DDSketchSnapshot merge(final DDSketchSnapshot other) {
+		if (!mapping.isCompatible(other.mapping)) {
+			throw new IllegalArgumentException("Cannot merge sketches of relative accuracy "
+					+ mapping.relativeAccuracy() + " and " + other.mapping.relativeAccuracy());
+		}
+		if (other.count == 0) {
+			return this;
+		}
+		if (count == 0) {
+			return other;
+		}
+
+		final long[] merged;
+		final int mergedOffset;
+		if (counts.length == 0 || other.counts.length == 0) {
+			merged = counts.length == 0 ? other.counts.clone() : counts.clone();
+			mergedOffset = counts.length == 0 ? other.offset : offset;
+		} else {
+			mergedOffset = Math.min(offset, other.offset);
+			final int end = Math.max(offset + counts.length, other.offset + other.counts.length);
+			merged = new long[end - mergedOffset];
+			for (int i = 0; i < counts.length; i++) {
+				merged[offset - mergedOffset + i] += counts[i];
+			}
+			for (int i = 0; i < other.counts.length; i++) {
+				merged[other.offset - mergedOffset + i] += other.counts[i];
+			}
+		}
+		return new DDSketchSnapshot(mapping, zeroCount + other.zeroCount, mergedOffset, merged,
+				Math.min(min, other.min), Math.max(max, other.max), sum + other.sum);
+	}
+
+	/**
+	 * Returns the value at the given quantile, within the relative accuracy of the
+	 * sketch and capped by the recorded minimum and maximum.
+	 *
+	 * @param quantile
+	 *            a given quantile, in {@code [0..1]}
+	 * @return the value in the distribution at {@code quantile}
+	 */
+	@Override
+	public double getValue(final double quantile) {
+		if (quantile < 0.0 || quantile > 1.0 || Double.isNaN(quantile)) {
+			throw new IllegalArgumentException(quantile + " is not in [0..1]");
+		}
+
+		if (count == 0) {
+			return 0.0;
+		}
+
+		if (isTopRank(quantile)) {
+			return max;
+		}
+		final double rank = quantile * (count - 1);
+		long seen = zeroCount;
+		if (seen > rank) {
+			return min;
+		}
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen > rank) {
+				return representativeValueAt(i);
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Returns the values at the given quantiles. Ascending quantiles are evaluated
+	 * in a single pass over the buckets.
+	 *
+	 * @param quantiles
+	 *            the quantiles, each in {@code [0..1]}
+	 * @return the values in the distribution at {@code quantiles}
+	 */
+	@Override
+	public double[] getValues(final double[] quantiles) {
+		if (count == 0 || !LogLinearSnapshot.isAscending(quantiles)) {
+			return super.getValues(quantiles);
+		}
+
+		final double[] values = new double[quantiles.length];
+		int next = 0;
+		long seen = zeroCount;
+		while (next < quantiles.length && seen > quantiles[next] * (count - 1)) {
+			values[next] = isTopRank(quantiles[next]) ? max : min;
+			next++;
+		}
+		for (int i = 0; i < counts.length && next < quantiles.length; i++) {
+			if (counts[i] == 0) {
+				continue;
+			}
+			seen += counts[i];
+			while (next < quantiles.length && seen > quantiles[next] * (count - 1)) {
+				values[next] = isTopRank(quantiles[next]) ? max : representativeValueAt(i);
+				next++;
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Returns the number of values in the snapshot, capped at
+	 * {@link Integer#MAX_VALUE}.
+	 *
+	 * @return the number of values
+	 */
+	@Override
+	public int size() {
+		return (int) Math.min(count, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns one representative value for every non-empty bucket, in ascending
+	 * order. A sketch does not keep the individual values.
+	 *
+	 * @return the representative values of the buckets
+	 */
+	@Override
+	public long[] getValues() {
+		final long[] values = new long[counts.length + 1];
+		int size = 0;
+		if (zeroCount > 0) {
+			values[size++] = min;
+		}
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] > 0) {
+				values[size++] = Math.round(representativeValueAt(i));
+			}
+		}
+		return Arrays.copyOf(values, size);
+	}
+
+	/**
+	 * Returns the highest value in the snapshot.
+	 *
+	 * @return the highest value
+	 */
+	@Override
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * Returns the lowest value in the snapshot.
+	 *
+	 * @return the lowest value
+	 */
+	@Override
+	public long getMin() {
+		return min;
+	}
+
+	/**
+	 * Returns the arithmetic mean of the values in the snapshot, which is exact.
+	 *
+	 * @return the arithmetic mean
+	 */
+	@Override
+	public double getMean() {
+		return count == 0 ? 0 : sum / count;
+	}
+
+	/**
+	 * Returns the standard deviation of the values in the snapshot.
+	 *
+	 * @return the standard deviation value
+	 */
+	@Override
+	public double getStdDev() {
+		if (count <= 1) {
+			return 0;
+		}
+
+		final double mean = getMean();
+		double variance = zeroCount * (min - mean) * (min - mean);
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] > 0) {
+				final double diff = representativeValueAt(i) - mean;
+				variance += diff * diff * counts[i];
+			}
+		}
+		return Math.sqrt(variance / count);
+	}
+
+	/**
+	 * Writes the representative value and count of every non-empty bucket to the
+	 * given stream, one bucket per line.
+	 *
+	 * @param output
+	 *            an output stream
+	 */
+	@Override
+	public void dump(final OutputStream output) {
+		final PrintWriter out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+		try {
+			if (zeroCount > 0) {
+				out.printf("%d\t%d%n", min, zeroCount);
+			}
+			for (int i = 0; i < counts.length; i++) {
+				if (counts[i] > 0) {
+					out.printf("%d\t%d%n", Math.round(representativeValueAt(i)), counts[i]);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Returns the sum of the values in the snapshot, as a double so that it cannot
+	 * overflow.
+	 *
+	 * @return the sum of the values
+	 */
+	public double getSum() {
+		return sum;
+	}
+
+	/**
+	 * Returns the relative accuracy of the quantiles of this snapshot.
+	 *
+	 * @return the relative accuracy, in {@code (0..1)}
+	 */
+	public double getRelativeAccuracy() {
+		return mapping.relativeAccuracy();
+	}
+
+	/**
+	 * Encodes this snapshot in a compact binary form. Counts are written as
+	 * variable-length integers, so empty and sparse buckets take a single byte.
+	 *
+	 * @return the encoded snapshot
+	 * @see #fromByteArray(byte[])
+	 */
+	public byte[] toByteArray() {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(32 + counts.length);
+		out.write(FORMAT_VERSION);
+		writeLong(out, Double.doubleToLongBits(mapping.relativeAccuracy()));
+		writeVarLong(out, zeroCount);
+		writeVarLong(out, zigZag(min));
+		writeVarLong(out, zigZag(max));
+		writeLong(out, Double.doubleToLongBits(sum));
+		writeVarLong(out, zigZag(offset));
+		writeVarLong(out, counts.length);
+		for (final long bucketCount : counts) {
+			writeVarLong(out, bucketCount);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes a snapshot encoded by {@link #toByteArray()}.
+	 *
+	 * @param bytes
+	 *            an encoded snapshot
+	 * @return the decoded snapshot
+	 * @throws IllegalArgumentException
+	 *             if {@code bytes} is not a valid encoded snapshot
+	 */
+	public static DDSketchSnapshot fromByteArray(final byte[] bytes) {
+		final ByteBuffer in = ByteBuffer.wrap(bytes);
+		try {
+			final byte version = in.get();
+			if (version != FORMAT_VERSION) {
+				throw new IllegalArgumentException("Unsupported sketch format version " + version);
+			}
+			final DDSketchMapping mapping = new DDSketchMapping(Double.longBitsToDouble(in.getLong()));
+			final long zeroCount = readVarLong(in);
+			final long min = unZigZag(readVarLong(in));
+			final long max = unZigZag(readVarLong(in));
+			final double sum = Double.longBitsToDouble(in.getLong());
+			final int offset = (int) unZigZag(readVarLong(in));
+			final long length = readVarLong(in);
+			if (length < 0 || length > in.remaining()) {
+				throw new IllegalArgumentException("Invalid number of buckets " + length);
+			}
+			final long[] counts = new long[(int) length];
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = readVarLong(in);
+			}
+			return new DDSketchSnapshot(mapping, zeroCount, offset, counts, min, max, sum);
+		} catch (final BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated sketch", e);
+		}
+	}
+
+	long zeroCount() {
+		return zeroCount;
+	}
+
+	int offset() {
+		return offset;
+	}
+
+	// not a copy, callers must not modify it
+	long[] counts() {
+		return counts;
+	}
+
+	/*
+	 * Returns whether the given quantile falls on the rank of the maximum, the only
+	 * one which is reported exactly rather than by its bucket.
+	 */
+	private boolean isTopRank(final double quantile) {
+		return quantile * (count - 1) >= count - 1;
+	}
+
+	private double representativeValueAt(final int index) {
+		return Math.max(min, Math.min(max, mapping.valueAt(offset + index)));
+	}
+
+	private static long zigZag(final long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unZigZag(final long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static void writeLong(final ByteArrayOutputStream out, final long value) {
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			out.write((int) (value >>> shift));
+		}
+	}
+
+	private static void writeVarLong(final ByteArrayOutputStream out, final long value) {
+		long remaining = value;
+		while ((remaining & ~0x7FL) != 0) {
+			out.write((int) ((remaining & 0x7F) | 0x80));
+			remaining >>>= 7;
+		}
+		out.write((int) remaining);
+	}
+
+	private static long readVarLong(final ByteBuffer in) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			final byte b = in.get();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Malformed variable-length integer");
+	}
+}
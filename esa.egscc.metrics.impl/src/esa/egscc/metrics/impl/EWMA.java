@@ -4,7 +4,6 @@ import static java.lang.Math.exp;
 
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.LongAdder;
 
 /**
  * An exponentially-weighted moving average.
@@ -29,7 +28,7 @@ public class EWMA {
 	private final AtomicBoolean initialized = new AtomicBoolean(false);
 	private volatile double rate = 0.0;
 
-	private final LongAdder uncounted = new LongAdder();
+	private final AdaptiveAdder uncounted = new AdaptiveAdder();
 	private final double alpha, interval;
 
 	/**
@@ -1,19 +1,33 @@
 package esa.egscc.metrics.impl;
 
-import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.ThreadLocalRandom;
 
+import esa.egscc.metrics.api.Bucketing;
+import esa.egscc.metrics.api.Buckets;
 import esa.egscc.metrics.api.Histogram;
 import esa.egscc.metrics.api.Snapshot;
 
 /**
- * A metric which calculates the distribution of a value.
+ * A metric which calculates the distribution of a value. If bucket bounds are
+ * given, every value is also counted into its bucket, see {@link Bucketing}.
+ * <p>
+ * With a sample rate {@code N} above one, only a random one in {@code N}
+ * values is recorded, and counted {@code N} times. The count and the buckets
+ * stay accurate on average, while the distribution is estimated from the
+ * sampled values only.
+ * <p>
+ * Created by a registry with a {@link MetricArena}, the bucket counts live off
+ * the heap and are returned to the arena by {@link #release()} when the
+ * histogram is removed.
  *
  * @see <a href="http://www.johndcook.com/standard_deviation.html">Accurately
  *      computing running variance</a>
  */
-public class HistogramImpl implements Histogram {
+public class HistogramImpl implements Histogram, Bucketing, ArenaMetric {
 	private final Reservoir reservoir;
-	private final LongAdder count;
+	private final AdaptiveAdder count;
+	private final BucketCounter buckets;
+	private final int sampleRate;
 
 	/**
 	 * Creates a new {@link HistogramImpl} with the given reservoir.
@@ -22,8 +36,66 @@ public class HistogramImpl implements Histogram {
 	 *            the reservoir to create a histogram from
 	 */
 	public HistogramImpl(final Reservoir reservoir) {
+		this(reservoir, null);
+	}
+
+	/**
+	 * Creates a new {@link HistogramImpl} with the given reservoir and bucket
+	 * bounds.
+	 *
+	 * @param reservoir
+	 *            the reservoir to create a histogram from
+	 * @param bucketBounds
+	 *            the strictly ascending upper bounds of the buckets, or
+	 *            {@code null} for a histogram without buckets
+	 */
+	public HistogramImpl(final Reservoir reservoir, final long[] bucketBounds) {
+		this(reservoir, bucketBounds, 1);
+	}
+
+	/**
+	 * Creates a new {@link HistogramImpl} with the given reservoir, bucket bounds
+	 * and sample rate.
+	 *
+	 * @param reservoir
+	 *            the reservoir to create a histogram from
+	 * @param bucketBounds
+	 *            the strictly ascending upper bounds of the buckets, or
+	 *            {@code null} for a histogram without buckets
+	 * @param sampleRate
+	 *            the rate {@code N} at which one in {@code N} values is recorded,
+	 *            {@code 1} to record every value
+	 */
+	public HistogramImpl(final Reservoir reservoir, final long[] bucketBounds, final int sampleRate) {
+		this(reservoir, bucketBounds, sampleRate, null);
+	}
+
+	/**
+	 * Creates a new {@link HistogramImpl} with the given reservoir, bucket bounds
+	 * and sample rate, keeping the bucket counts in the given arena if it has
+	 * room left.
+	 *
+	 * @param reservoir
+	 *            the reservoir to create a histogram from
+	 * @param bucketBounds
+	 *            the strictly ascending upper bounds of the buckets, or
+	 *            {@code null} for a histogram without buckets
+	 * @param sampleRate
+	 *            the rate {@code N} at which one in {@code N} values is recorded,
+	 *            {@code 1} to record every value
+	 * @param arena
+	 *            the arena to hold the bucket counts, or {@code null} to keep
+	 *            them on the heap
+	 */
+	HistogramImpl(final Reservoir reservoir, final long[] bucketBounds, final int sampleRate,
+			final MetricArena arena) {
+		if (sampleRate < 1) {
+			throw new IllegalArgumentException("Sample rate must be positive: " + sampleRate);
+		}
 		this.reservoir = reservoir;
-		count = new LongAdder();
+		this.sampleRate = sampleRate;
+		count = new AdaptiveAdder();
+		buckets = bucketBounds == null ? null : new BucketCounter(bucketBounds, arena);
 	}
 
 	/**
@@ -45,7 +117,38 @@ public class HistogramImpl implements Histogram {
 	 */
 	@Override
 	public void update(final long value) {
-		count.increment();
+		if (sampleRate == 1) {
+			update(value, 1);
+		} else if (ThreadLocalRandom.current().nextInt(sampleRate) == 0) {
+			update(value, sampleRate);
+		}
+	}
+
+	/**
+	 * Adds a recorded value standing for {@code weight} values, bypassing the
+	 * sample rate of this histogram.
+	 *
+	 * @param value
+	 *            the length of the value
+	 * @param weight
+	 *            the number of values it stands for
+	 */
+	void update(final long value, final long weight) {
+		count.add(weight);
+		reservoir.update(value);
+		if (buckets != null) {
+			buckets.update(value, weight);
+		}
+	}
+
+	/**
+	 * Adds a value to the distribution only, without counting it or counting it
+	 * into its bucket, for samples which stand for no recorded value.
+	 *
+	 * @param value
+	 *            the length of the value
+	 */
+	void updateDistribution(final long value) {
 		reservoir.update(value);
 	}
 
@@ -63,4 +166,19 @@ public class HistogramImpl implements Histogram {
 	public Snapshot getSnapshot() {
 		return reservoir.getSnapshot();
 	}
+
+	@Override
+	public Buckets getBuckets() {
+		return buckets == null ? null : buckets.getBuckets();
+	}
+
+	@Override
+	public void release() {
+		if (reservoir instanceof ArenaMetric) {
+			((ArenaMetric) reservoir).release();
+		}
+		if (buckets != null) {
+			buckets.release();
+		}
+	}
 }
@@ -0,0 +1,148 @@
+package esa.egscc.metrics.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import esa.egscc.metrics.api.IndexedMetricFamily;
+import esa.egscc.metrics.api.Metric;
+import esa.egscc.metrics.api.MetricTags;
+
+/**
+ * An {@link IndexedMetricFamily} which creates all its children up front and
+ * keeps them in an array indexed like its label values. Looking a child up by
+ * index neither hashes nor allocates; looking it up by label value goes
+ * through a map from value to index built once.
+ *
+ * @param <T>
+ *            the type of the metrics in the family
+ */
+public class IndexedMetricFamilyImpl<T extends Metric> implements IndexedMetricFamily<T>, ArenaMetric {
+	private final Class<T> type;
+	private final List<String> labelNames;
+	private final List<String> labelValues;
+	private final Map<String, Integer> indexes = new HashMap<>();
+	private final Object[] children;
+	private final MetricTags[] labels;
+
+	/**
+	 * Creates a new {@link IndexedMetricFamilyImpl} and all its children.
+	 *
+	 * @param type
+	 *            the type of the metrics in the family
+	 * @param factory
+	 *            creates a new child
+	 * @param labelName
+	 *            the name of the label, a valid Prometheus label name
+	 * @param labelValues
+	 *            the distinct values of the label, in the order of their indexes
+	 */
+	IndexedMetricFamilyImpl(final Class<T> type, final Supplier<T> factory, final String labelName,
+			final String... labelValues) {
+		if (labelValues.length == 0) {
+			throw new IllegalArgumentException("At least one label value is required");
+		}
+		this.type = type;
+		labelNames = MetricFamilyImpl.checkLabelNames(labelName);
+		this.labelValues = Collections.unmodifiableList(Arrays.asList(labelValues.clone()));
+		for (int i = 0; i < labelValues.length; i++) {
+			if (labelValues[i] == null) {
+				throw new IllegalArgumentException("Label values cannot be null");
+			}
+			if (indexes.put(labelValues[i], i) != null) {
+				throw new IllegalArgumentException("Duplicate label value: " + labelValues[i]);
+			}
+		}
+		children = new Object[labelValues.length];
+		labels = new MetricTags[labelValues.length];
+		for (int i = 0; i < children.length; i++) {
+			children[i] = factory.get();
+			labels[i] = MetricTags.of(Collections.singletonMap(labelName, labelValues[i]));
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public T get(final int index) {
+		return (T) children[index];
+	}
+
+	@Override
+	public int size() {
+		return children.length;
+	}
+
+	@Override
+	public List<String> getLabelNames() {
+		return labelNames;
+	}
+
+	@Override
+	public T labels(final String... labelValues) {
+		if (labelValues.length != 1) {
+			throw new IllegalArgumentException("Expected 1 label value, got " + labelValues.length);
+		}
+		return labels(labelValues[0]);
+	}
+
+	@Override
+	public T labels(final String labelValue) {
+		final Integer index = indexes.get(labelValue);
+		if (index == null) {
+			throw new IllegalArgumentException("Unknown label value: " + labelValue);
+		}
+		return get(index);
+	}
+
+	@Override
+	public boolean remove(final String... labelValues) {
+		throw new UnsupportedOperationException("Children of an indexed family cannot be removed");
+	}
+
+	@Override
+	public Map<List<String>, T> getChildren() {
+		final Map<List<String>, T> copy = new LinkedHashMap<>();
+		for (int i = 0; i < children.length; i++) {
+			copy.put(Collections.singletonList(labelValues.get(i)), get(i));
+		}
+		return Collections.unmodifiableMap(copy);
+	}
+
+	@Override
+	public Map<MetricTags, T> getLabeledChildren() {
+		final Map<MetricTags, T> copy = new LinkedHashMap<>();
+		for (int i = 0; i < children.length; i++) {
+			copy.put(labels[i], get(i));
+		}
+		return Collections.unmodifiableMap(copy);
+	}
+
+	@Override
+	public void release() {
+		for (final Object child : children) {
+			if (child instanceof ArenaMetric) {
+				((ArenaMetric) child).release();
+			}
+		}
+	}
+
+	/**
+	 * Returns whether this family has the given type, label name and label values.
+	 *
+	 * @param type
+	 *            the type of the metrics in the family
+	 * @param labelName
+	 *            the name of the label
+	 * @param labelValues
+	 *            the values of the label
+	 * @return {@code true} if all match
+	 */
+	boolean isFamilyOf(final Class<?> type, final String labelName, final String... labelValues) {
+		return this.type == type && labelNames.get(0).equals(labelName)
+				&& this.labelValues.equals(Arrays.asList(labelValues));
+	}
+}
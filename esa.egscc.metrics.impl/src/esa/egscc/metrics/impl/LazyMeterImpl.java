@@ -0,0 +1,145 @@
+package esa.egscc.metrics.impl;
+
+import static java.lang.Math.exp;
+
+import java.util.concurrent.TimeUnit;
+
+import esa.egscc.metrics.api.Meter;
+
+/**
+ * A meter metric whose moving averages are computed when they are read rather
+ * than ticked periodically. Marking an event is a single striped counter add.
+ * <p>
+ * Every read folds the events since the previous read into the one-, five- and
+ * fifteen-minute averages in closed form: with {@code t} the time since the
+ * previous read and {@code w} the window of an average, the old rate decays by
+ * {@code exp(-t / w)} and the mean rate of the new events enters with the
+ * remaining weight. A read after a long idle period therefore costs the same as
+ * any other read, which suits meters that are updated rarely and read only at
+ * scrape time. Like {@link EWMA}, the averages start at the mean rate of the
+ * events before the first read.
+ *
+ * @see MeterImpl
+ */
+public class LazyMeterImpl implements Meter {
+	private static final double M1_WINDOW = TimeUnit.MINUTES.toNanos(1);
+	private static final double M5_WINDOW = TimeUnit.MINUTES.toNanos(5);
+	private static final double M15_WINDOW = TimeUnit.MINUTES.toNanos(15);
+
+	private final AdaptiveAdder count = new AdaptiveAdder();
+	private final long startTime;
+	private final Clock clock;
+
+	// guarded by this; only touched by readers
+	private boolean initialized;
+	private long lastTick;
+	private long lastCount;
+	private double m1Rate;
+	private double m5Rate;
+	private double m15Rate;
+
+	/**
+	 * Creates a new {@link LazyMeterImpl}.
+	 */
+	public LazyMeterImpl() {
+		this(Clock.defaultClock());
+	}
+
+	/**
+	 * Creates a new {@link LazyMeterImpl}.
+	 *
+	 * @param clock
+	 *            the clock to use for the rates
+	 */
+	public LazyMeterImpl(final Clock clock) {
+		this.clock = clock;
+		startTime = clock.getTick();
+		lastTick = startTime;
+	}
+
+	/**
+	 * Mark the occurrence of an event.
+	 */
+	@Override
+	public void mark() {
+		count.increment();
+	}
+
+	/**
+	 * Mark the occurrence of a given number of events.
+	 *
+	 * @param n
+	 *            the number of events
+	 */
+	@Override
+	public void mark(final long n) {
+		count.add(n);
+	}
+
+	/*
+	 * Folds the events since the last read into the moving averages. Callers must
+	 * hold the lock of this meter.
+	 */
+	private void update() {
+		final long now = clock.getTick();
+		final long elapsed = now - lastTick;
+		if (elapsed <= 0) {
+			return;
+		}
+		final long current = count.sum();
+		// events per nanosecond since the last read
+		final double instantRate = (double) (current - lastCount) / elapsed;
+		if (initialized) {
+			m1Rate = decay(m1Rate, instantRate, elapsed, M1_WINDOW);
+			m5Rate = decay(m5Rate, instantRate, elapsed, M5_WINDOW);
+			m15Rate = decay(m15Rate, instantRate, elapsed, M15_WINDOW);
+		} else {
+			m1Rate = instantRate;
+			m5Rate = instantRate;
+			m15Rate = instantRate;
+			initialized = true;
+		}
+		lastTick = now;
+		lastCount = current;
+	}
+
+	private static double decay(final double rate, final double instantRate, final long elapsed,
+			final double window) {
+		final double retained = exp(-elapsed / window);
+		return rate * retained + instantRate * (1 - retained);
+	}
+
+	@Override
+	public long getCount() {
+		return count.sum();
+	}
+
+	@Override
+	public synchronized double getFifteenMinuteRate() {
+		update();
+		return m15Rate * TimeUnit.SECONDS.toNanos(1);
+	}
+
+	@Override
+	public synchronized double getFiveMinuteRate() {
+		update();
+		return m5Rate * TimeUnit.SECONDS.toNanos(1);
+	}
+
+	@Override
+	public double getMeanRate() {
+		final long count = getCount();
+		if (count == 0) {
+			return 0.0;
+		} else {
+			final double elapsed = clock.getTick() - startTime;
+			return count / elapsed * TimeUnit.SECONDS.toNanos(1);
+		}
+	}
+
+	@Override
+	public synchronized double getOneMinuteRate() {
+		update();
+		return m1Rate * TimeUnit.SECONDS.toNanos(1);
+	}
+}
@@ -0,0 +1,308 @@
+package esa.egscc.metrics.impl;
+
+import static java.lang.Math.exp;
+import static java.lang.Math.min;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import esa.egscc.metrics.api.Snapshot;
+
+import esa.egscc.metrics.impl.WeightedSnapshot.WeightedSample;
+
+/**
+ * A lock-free exponentially-decaying random reservoir of {@code long}s. Uses
+ * the same forward-decaying priority sampling as
+ * {@link ExponentiallyDecayingReservoir}, but keeps the samples in primitive
+ * arrays instead of a {@link java.util.concurrent.ConcurrentSkipListMap}.
+ * <p>
+ * Accepted samples are appended to a buffer twice the size of the reservoir.
+ * A sample whose priority is below the smallest priority retained by the last
+ * compaction can never make it into the reservoir and is rejected without
+ * touching any shared state. Once the buffer is full, the thread which claimed
+ * the first slot past its end compacts it to the {@code size} samples with the
+ * highest priority: it sorts the priorities of the buffer and copies the
+ * retained samples into a new buffer, allocating about {@code 64 * size}
+ * bytes. This happens at most once per {@code size} accepted samples, and
+ * ever more rarely as the threshold rises, so recording allocates nothing on
+ * average, but the update which fills the buffer is not cheap. Recording
+ * never takes a lock and never waits for another thread; samples which are
+ * still being written by other threads when the buffer is compacted are
+ * dropped.
+ * <p>
+ * Rescaling to a new landmark is done by {@link #getSnapshot()} once an hour,
+ * or by a compaction which is due anyway. Recording threads only rescale on
+ * their own if no snapshot has been taken for twice that long, which keeps the
+ * forward-decay weights from overflowing.
+ *
+ * @see ExponentiallyDecayingReservoir
+ */
+public class LockFreeExponentiallyDecayingReservoir implements Reservoir {
+	private static final int DEFAULT_SIZE = 1028;
+	private static final double DEFAULT_ALPHA = 0.015;
+	private static final long RESCALE_THRESHOLD = TimeUnit.HOURS.toNanos(1);
+	private static final long FORCED_RESCALE_THRESHOLD = TimeUnit.NANOSECONDS.toSeconds(2 * RESCALE_THRESHOLD);
+
+	private final double alpha;
+	private final int size;
+	private final Clock clock;
+	private volatile State state;
+
+	/**
+	 * Creates a new {@link LockFreeExponentiallyDecayingReservoir} of 1028
+	 * elements, which offers a 99.9% confidence level with a 5% margin of error
+	 * assuming a normal distribution, and an alpha factor of 0.015, which heavily
+	 * biases the reservoir to the past 5 minutes of measurements.
+	 */
+	public LockFreeExponentiallyDecayingReservoir() {
+		this(DEFAULT_SIZE, DEFAULT_ALPHA);
+	}
+
+	/**
+	 * Creates a new {@link LockFreeExponentiallyDecayingReservoir} of 1028
+	 * elements with an alpha factor of 0.015, using the given clock.
+	 *
+	 * @param clock
+	 *            the clock used to timestamp samples and track rescaling
+	 */
+	public LockFreeExponentiallyDecayingReservoir(final Clock clock) {
+		this(DEFAULT_SIZE, DEFAULT_ALPHA, clock);
+	}
+
+	/**
+	 * Creates a new {@link LockFreeExponentiallyDecayingReservoir}.
+	 *
+	 * @param size
+	 *            the number of samples to keep in the sampling reservoir
+	 * @param alpha
+	 *            the exponential decay factor; the higher this is, the more biased
+	 *            the reservoir will be towards newer values
+	 */
+	public LockFreeExponentiallyDecayingReservoir(final int size, final double alpha) {
+		this(size, alpha, Clock.defaultClock());
+	}
+
+	/**
+	 * Creates a new {@link LockFreeExponentiallyDecayingReservoir}.
+	 *
+	 * @param size
+	 *            the number of samples to keep in the sampling reservoir
+	 * @param alpha
+	 *            the exponential decay factor; the higher this is, the more biased
+	 *            the reservoir will be towards newer values
+	 * @param clock
+	 *            the clock used to timestamp samples and track rescaling
+	 */
+	public LockFreeExponentiallyDecayingReservoir(final int size, final double alpha, final Clock clock) {
+		if (size <= 0) {
+			throw new IllegalArgumentException("Reservoir size must be positive: " + size);
+		}
+		this.alpha = alpha;
+		this.size = size;
+		this.clock = clock;
+		state = new State(2 * size, currentTimeInSeconds(), clock.getTick() + RESCALE_THRESHOLD, 0.0);
+	}
+
+	@Override
+	public int size() {
+		return min(size, state.published());
+	}
+
+	@Override
+	public void update(final long value) {
+		update(value, currentTimeInSeconds());
+	}
+
+	/**
+	 * Adds an old value with a fixed timestamp to the reservoir.
+	 *
+	 * @param value
+	 *            the value to be added
+	 * @param timestamp
+	 *            the epoch timestamp of {@code value} in seconds
+	 */
+	public void update(final long value, final long timestamp) {
+		State current = state;
+		if (timestamp - current.startTime >= FORCED_RESCALE_THRESHOLD) {
+			current = rescale(current, timestamp);
+		}
+
+		final double itemWeight = weight(timestamp - current.startTime);
+		final double priority = itemWeight / ThreadLocalRandom.current().nextDouble();
+		if (priority <= current.threshold) {
+			return;
+		}
+
+		final int index = current.cursor.getAndIncrement();
+		if (index < current.capacity) {
+			current.put(index, value, itemWeight, priority);
+		} else if (index == current.capacity) {
+			// this thread filled the buffer, so it owns the compaction
+			final long now = clock.getTick();
+			if (now >= current.nextScaleTime) {
+				compact(current, current.capacity, currentTimeInSeconds(), now + RESCALE_THRESHOLD);
+			} else {
+				compact(current, current.capacity, current.startTime, current.nextScaleTime);
+			}
+			update(value, timestamp);
+		}
+		// otherwise a compaction is in progress and the sample is dropped
+	}
+
+	@Override
+	public Snapshot getSnapshot() {
+		State current = state;
+		if (clock.getTick() >= current.nextScaleTime) {
+			current = rescale(current, currentTimeInSeconds());
+		}
+
+		final int published = min(current.cursor.get(), current.capacity);
+		final double cutoff = current.cutoff(published, size);
+		final List<WeightedSample> samples = new ArrayList<>(min(published, size));
+		for (int i = 0; i < published && samples.size() < size; i++) {
+			final double priority = current.priority(i);
+			if (priority != 0.0 && priority >= cutoff) {
+				samples.add(new WeightedSample(current.values[i], current.weights[i]));
+			}
+		}
+		return new WeightedSnapshot(samples);
+	}
+
+	private long currentTimeInSeconds() {
+		return TimeUnit.MILLISECONDS.toSeconds(clock.getTime());
+	}
+
+	private double weight(final long t) {
+		return exp(alpha * t);
+	}
+
+	/*
+	 * Closes the buffer of the given state and compacts it into a new state with
+	 * the given landmark. If another thread already owns the buffer, the rescale is
+	 * left to the next caller.
+	 */
+	private State rescale(final State current, final long startTime) {
+		final int claimed = current.close();
+		if (claimed >= 0) {
+			compact(current, claimed, startTime, clock.getTick() + RESCALE_THRESHOLD);
+		}
+		return state;
+	}
+
+	/*
+	 * Replaces the given state by one which holds only the top-priority samples of
+	 * its first claimed slots, relative to the given landmark. Slots claimed but
+	 * not yet written are skipped rather than waited for. See
+	 * ExponentiallyDecayingReservoir#rescale for why moving the landmark does not
+	 * change the relative weights of the samples.
+	 */
+	private void compact(final State current, final int claimed, final long startTime, final long nextScaleTime) {
+		final double scalingFactor = exp(-alpha * (startTime - current.startTime));
+		final double cutoff = current.cutoff(claimed, size);
+		final State next;
+		if (Double.compare(scalingFactor, 0) == 0) {
+			next = new State(current.capacity, startTime, nextScaleTime, 0.0);
+		} else {
+			double threshold = current.threshold;
+			int retained = 0;
+			next = new State(current.capacity, startTime, nextScaleTime, threshold * scalingFactor);
+			for (int i = 0; i < claimed && retained < size; i++) {
+				final double priority = current.priority(i);
+				if (priority != 0.0 && priority >= cutoff) {
+					next.put(retained++, current.values[i], current.weights[i] * scalingFactor,
+							priority * scalingFactor);
+					threshold = retained == 1 ? priority : Math.min(threshold, priority);
+				}
+			}
+			next.cursor.set(retained);
+			if (retained == size) {
+				// the reservoir is full, so nothing below its lowest priority can enter it
+				next.threshold = threshold * scalingFactor;
+			}
+		}
+		state = next;
+	}
+
+	/**
+	 * One generation of the sample buffer, relative to a single landmark. Every
+	 * slot is written at most once, so readers never observe a torn sample.
+	 */
+	private static final class State {
+		private final int capacity;
+		private final long startTime;
+		private final long nextScaleTime;
+		private volatile double threshold;
+		private final AtomicInteger cursor = new AtomicInteger();
+		private final long[] values;
+		private final double[] weights;
+		// priorities double as publication flags: 0.0 marks a slot not yet written
+		private final AtomicLongArray priorities;
+
+		private State(final int capacity, final long startTime, final long nextScaleTime, final double threshold) {
+			this.capacity = capacity;
+			this.startTime = startTime;
+			this.nextScaleTime = nextScaleTime;
+			this.threshold = threshold;
+			values = new long[capacity];
+			weights = new double[capacity];
+			priorities = new AtomicLongArray(capacity);
+		}
+
+		private void put(final int index, final long value, final double weight, final double priority) {
+			values[index] = value;
+			weights[index] = weight;
+			priorities.lazySet(index, Double.doubleToRawLongBits(priority));
+		}
+
+		private double priority(final int index) {
+			return Double.longBitsToDouble(priorities.get(index));
+		}
+
+		private int published() {
+			return min(cursor.get(), capacity);
+		}
+
+		/*
+		 * Returns the number of claimed slots if the caller closed the buffer, or -1 if
+		 * it was already full and thus owned by another thread.
+		 */
+		private int close() {
+			int claimed;
+			do {
+				claimed = cursor.get();
+				if (claimed >= capacity) {
+					return -1;
+				}
+			} while (!cursor.compareAndSet(claimed, capacity + 1));
+			return claimed;
+		}
+
+		/*
+		 * Returns the lowest priority among the top limit published priorities of the
+		 * first count slots, or 0 if there are no more than limit of them.
+		 */
+		private double cutoff(final int count, final int limit) {
+			if (count <= limit) {
+				return 0.0;
+			}
+			final double[] sorted = new double[count];
+			int published = 0;
+			for (int i = 0; i < count; i++) {
+				final double priority = priority(i);
+				if (priority != 0.0) {
+					sorted[published++] = priority;
+				}
+			}
+			if (published <= limit) {
+				return 0.0;
+			}
+			Arrays.sort(sorted, 0, published);
+			return sorted[published - limit];
+		}
+	}
+}
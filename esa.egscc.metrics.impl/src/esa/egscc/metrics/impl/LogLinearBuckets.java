@@ -0,0 +1,145 @@
+package esa.egscc.metrics.impl;
+
+/**
+ * The bucket layout of a log-linear histogram, as popularized by HdrHistogram.
+ * Values are grouped into buckets whose width doubles from one bucket to the
+ * next, and every bucket is split linearly into enough sub-buckets to keep the
+ * relative error of a recorded value below the configured number of
+ * significant decimal digits.
+ * <p>
+ * The layout only maps values to indexes of a counts array and back; it holds
+ * no counts itself and can be shared by any number of histograms.
+ *
+ * @see <a href="http://hdrhistogram.org/">HdrHistogram</a>
+ */
+final class LogLinearBuckets {
+	private final long highestTrackableValue;
+	private final int significantDigits;
+	private final int subBucketHalfCountMagnitude;
+	private final int subBucketCount;
+	private final int subBucketHalfCount;
+	private final long subBucketMask;
+	private final int leadingZeroCountBase;
+	private final int length;
+
+	/**
+	 * Creates a new bucket layout.
+	 *
+	 * @param highestTrackableValue
+	 *            the highest value to be tracked; higher values are counted as this
+	 *            value
+	 * @param significantDigits
+	 *            the number of significant decimal digits to keep, in
+	 *            {@code [0..5]}
+	 */
+	LogLinearBuckets(final long highestTrackableValue, final int significantDigits) {
+		if (significantDigits < 0 || significantDigits > 5) {
+			throw new IllegalArgumentException(significantDigits + " is not in [0..5]");
+		}
+		if (highestTrackableValue < 2) {
+			throw new IllegalArgumentException("Highest trackable value must be at least 2: " + highestTrackableValue);
+		}
+		this.highestTrackableValue = highestTrackableValue;
+		this.significantDigits = significantDigits;
+
+		final long largestValueWithSingleUnitResolution = 2 * (long) Math.pow(10, significantDigits);
+		final int subBucketCountMagnitude = (int) Math.ceil(Math.log(largestValueWithSingleUnitResolution) / Math.log(2));
+		subBucketHalfCountMagnitude = Math.max(subBucketCountMagnitude, 1) - 1;
+		subBucketCount = 1 << (subBucketHalfCountMagnitude + 1);
+		subBucketHalfCount = subBucketCount / 2;
+		subBucketMask = subBucketCount - 1;
+		leadingZeroCountBase = 64 - subBucketHalfCountMagnitude - 1;
+		length = (bucketsNeeded(highestTrackableValue) + 1) * subBucketHalfCount;
+	}
+
+	private int bucketsNeeded(final long value) {
+		long smallestUntrackableValue = subBucketCount;
+		int bucketsNeeded = 1;
+		while (smallestUntrackableValue <= value) {
+			if (smallestUntrackableValue > Long.MAX_VALUE / 2) {
+				return bucketsNeeded + 1;
+			}
+			smallestUntrackableValue <<= 1;
+			bucketsNeeded++;
+		}
+		return bucketsNeeded;
+	}
+
+	/**
+	 * Returns the length of a counts array for this layout.
+	 *
+	 * @return the number of buckets
+	 */
+	int length() {
+		return length;
+	}
+
+	long highestTrackableValue() {
+		return highestTrackableValue;
+	}
+
+	int significantDigits() {
+		return significantDigits;
+	}
+
+	/**
+	 * Returns the index of the bucket counting the given value. Negative values
+	 * are counted as {@code 0}, values above the highest trackable value as that
+	 * value.
+	 *
+	 * @param value
+	 *            a recorded value
+	 * @return the index into a counts array
+	 */
+	int indexOf(final long value) {
+		final long clamped = value < 0 ? 0 : Math.min(value, highestTrackableValue);
+		final int bucketIndex = leadingZeroCountBase - Long.numberOfLeadingZeros(clamped | subBucketMask);
+		final int subBucketIndex = (int) (clamped >>> bucketIndex);
+		return ((bucketIndex + 1) << subBucketHalfCountMagnitude) + (subBucketIndex - subBucketHalfCount);
+	}
+
+	/**
+	 * Returns the lowest value counted by the bucket at the given index.
+	 *
+	 * @param index
+	 *            an index into a counts array
+	 * @return the lowest value of the bucket
+	 */
+	long lowestValueAt(final int index) {
+		int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+		int subBucketIndex = (index & (subBucketHalfCount - 1)) + subBucketHalfCount;
+		if (bucketIndex < 0) {
+			subBucketIndex -= subBucketHalfCount;
+			bucketIndex = 0;
+		}
+		return ((long) subBucketIndex) << bucketIndex;
+	}
+
+	/**
+	 * Returns the highest value counted by the bucket at the given index.
+	 *
+	 * @param index
+	 *            an index into a counts array
+	 * @return the highest value of the bucket
+	 */
+	long highestValueAt(final int index) {
+		return lowestValueAt(index) + widthAt(index) - 1;
+	}
+
+	/**
+	 * Returns the value in the middle of the bucket at the given index, which is
+	 * the value with the lowest possible error to represent the whole bucket.
+	 *
+	 * @param index
+	 *            an index into a counts array
+	 * @return the median value of the bucket
+	 */
+	long medianValueAt(final int index) {
+		return lowestValueAt(index) + (widthAt(index) >> 1);
+	}
+
+	private long widthAt(final int index) {
+		final int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+		return 1L << Math.max(bucketIndex, 0);
+	}
+}
@@ -0,0 +1,97 @@
+package esa.egscc.metrics.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The counts of a log-linear histogram together with its exact minimum and
+ * maximum. Recording is thread-safe and lock-free.
+ *
+ * @see LogLinearBuckets
+ */
+final class LogLinearRecorder {
+	private final LogLinearBuckets buckets;
+	private final AtomicLongArray counts;
+	private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+	LogLinearRecorder(final LogLinearBuckets buckets) {
+		this.buckets = buckets;
+		counts = new AtomicLongArray(buckets.length());
+	}
+
+	/**
+	 * Counts the given value.
+	 *
+	 * @param value
+	 *            a recorded value
+	 */
+	void record(final long value) {
+		// extremes first, so a reader which sees the count also sees them
+		updateMin(value);
+		updateMax(value);
+		counts.incrementAndGet(buckets.indexOf(value));
+	}
+
+	private void updateMin(final long value) {
+		long current;
+		while (value < (current = min.get())) {
+			if (min.compareAndSet(current, value)) {
+				return;
+			}
+		}
+	}
+
+	private void updateMax(final long value) {
+		long current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of recorded values.
+	 *
+	 * @return the sum of all counts
+	 */
+	long count() {
+		long count = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * Adds the counts of this recorder to the given array.
+	 *
+	 * @param target
+	 *            an array of {@link LogLinearBuckets#length()} counts
+	 */
+	void addTo(final long[] target) {
+		for (int i = 0; i < target.length; i++) {
+			target[i] += counts.get(i);
+		}
+	}
+
+	long getMin() {
+		return min.get();
+	}
+
+	long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Clears all counts. Must not race with {@link #record(long)}.
+	 */
+	void reset() {
+		for (int i = 0; i < counts.length(); i++) {
+			counts.lazySet(i, 0);
+		}
+		min.set(Long.MAX_VALUE);
+		max.set(Long.MIN_VALUE);
+	}
+}
@@ -0,0 +1,66 @@
+package esa.egscc.metrics.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import esa.egscc.metrics.api.Snapshot;
+
+/**
+ * A fixed-memory reservoir which counts every recorded value in a log-linear
+ * bucketed histogram. Unlike the sampling reservoirs it keeps the whole
+ * distribution since its creation, so tail quantiles are not subject to sampling
+ * bias. Their relative error is bounded by the configured number of significant
+ * digits, while count, minimum and maximum are exact.
+ * <p>
+ * Recording a value is a single atomic increment of its bucket; the minimum and
+ * maximum are only written when a new extreme is seen.
+ *
+ * @see LogLinearSnapshot
+ */
+public class LogLinearReservoir implements Reservoir {
+	private static final long DEFAULT_HIGHEST_TRACKABLE_VALUE = TimeUnit.HOURS.toNanos(1);
+	private static final int DEFAULT_SIGNIFICANT_DIGITS = 2;
+
+	private final LogLinearBuckets buckets;
+	private final LogLinearRecorder recorder;
+
+	/**
+	 * Creates a new {@link LogLinearReservoir} which tracks values up to one hour
+	 * in nanoseconds with two significant digits, i.e. with a relative error of at
+	 * most 1%.
+	 */
+	public LogLinearReservoir() {
+		this(DEFAULT_HIGHEST_TRACKABLE_VALUE, DEFAULT_SIGNIFICANT_DIGITS);
+	}
+
+	/**
+	 * Creates a new {@link LogLinearReservoir}.
+	 *
+	 * @param highestTrackableValue
+	 *            the highest value to be tracked; higher values are counted in the
+	 *            highest bucket, but still reported as the exact maximum
+	 * @param significantDigits
+	 *            the number of significant decimal digits to keep, in
+	 *            {@code [0..5]}
+	 */
+	public LogLinearReservoir(final long highestTrackableValue, final int significantDigits) {
+		buckets = new LogLinearBuckets(highestTrackableValue, significantDigits);
+		recorder = new LogLinearRecorder(buckets);
+	}
+
+	@Override
+	public int size() {
+		return (int) Math.min(recorder.count(), Integer.MAX_VALUE);
+	}
+
+	@Override
+	public void update(final long value) {
+		recorder.record(value);
+	}
+
+	@Override
+	public Snapshot getSnapshot() {
+		final long[] counts = new long[buckets.length()];
+		recorder.addTo(counts);
+		return new LogLinearSnapshot(buckets, counts, recorder.getMin(), recorder.getMax());
+	}
+}
@@ -0,0 +1,242 @@
+package esa.egscc.metrics.impl;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import esa.egscc.metrics.api.Snapshot;
+
+/**
+ * A statistical snapshot of a log-linear bucketed histogram. The count, the
+ * minimum and the maximum are exact; quantiles, mean and standard deviation are
+ * derived from the buckets and carry the relative error of the bucket layout.
+ *
+ * @see LogLinearReservoir
+ */
+public class LogLinearSnapshot extends Snapshot {
+	private final LogLinearBuckets buckets;
+	private final long[] counts;
+	private final long count;
+	private final long min;
+	private final long max;
+
+	/**
+	 * Create a new {@link Snapshot} from the given bucket counts.
+	 *
+	 * @param buckets
+	 *            the layout of {@code counts}
+	 * @param counts
+	 *            the bucket counts; the snapshot takes ownership of the array
+	 * @param min
+	 *            the lowest recorded value
+	 * @param max
+	 *            the highest recorded value
+	 */
+	LogLinearSnapshot(final LogLinearBuckets buckets, final long[] counts, final long min, final long max) {
+		this.buckets = buckets;
+		this.counts = counts;
+		long total = 0;
+		for (final long bucketCount : counts) {
+			total += bucketCount;
+		}
+		count = total;
+		this.min = total == 0 ? 0 : min;
+		this.max = total == 0 ? 0 : max;
+	}
+
+	/**
+	 * Returns the value at the given quantile. The value is the highest value of
+	 * the bucket containing the quantile, capped by the recorded maximum.
+	 *
+	 * @param quantile
+	 *            a given quantile, in {@code [0..1]}
+	 * @return the value in the distribution at {@code quantile}
+	 */
+	@Override
+	public double getValue(final double quantile) {
+		if (quantile < 0.0 || quantile > 1.0 || Double.isNaN(quantile)) {
+			throw new IllegalArgumentException(quantile + " is not in [0..1]");
+		}
+
+		if (count == 0) {
+			return 0.0;
+		}
+
+		final long rank = rankOf(quantile);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen == count) {
+				// the last bucket also holds the values above the trackable range
+				return max;
+			}
+			if (seen >= rank) {
+				return Math.max(min, Math.min(max, buckets.highestValueAt(i)));
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Returns the values at the given quantiles. Ascending quantiles are evaluated
+	 * in a single pass over the buckets.
+	 *
+	 * @param quantiles
+	 *            the quantiles, each in {@code [0..1]}
+	 * @return the values in the distribution at {@code quantiles}
+	 */
+	@Override
+	public double[] getValues(final double[] quantiles) {
+		if (count == 0 || !isAscending(quantiles)) {
+			return super.getValues(quantiles);
+		}
+
+		final double[] values = new double[quantiles.length];
+		int next = 0;
+		long seen = 0;
+		for (int i = 0; i < counts.length && next < quantiles.length; i++) {
+			if (counts[i] == 0) {
+				continue;
+			}
+			seen += counts[i];
+			while (next < quantiles.length && (seen == count || seen >= rankOf(quantiles[next]))) {
+				values[next++] = seen == count ? max : Math.max(min, Math.min(max, buckets.highestValueAt(i)));
+			}
+		}
+		return values;
+	}
+
+	private long rankOf(final double quantile) {
+		return Math.max(1, (long) Math.ceil(quantile * count));
+	}
+
+	static boolean isAscending(final double[] quantiles) {
+		for (int i = 0; i < quantiles.length; i++) {
+			if (quantiles[i] < 0.0 || quantiles[i] > 1.0 || Double.isNaN(quantiles[i])) {
+				throw new IllegalArgumentException(quantiles[i] + " is not in [0..1]");
+			}
+			if (i > 0 && quantiles[i] < quantiles[i - 1]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of values in the snapshot, capped at
+	 * {@link Integer#MAX_VALUE}.
+	 *
+	 * @return the number of values
+	 */
+	@Override
+	public int size() {
+		return (int) Math.min(count, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns one representative value for every non-empty bucket, in ascending
+	 * order. A bucketed histogram does not keep the individual values.
+	 *
+	 * @return the representative values of the buckets
+	 */
+	@Override
+	public long[] getValues() {
+		final long[] values = new long[counts.length];
+		int size = 0;
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] > 0) {
+				values[size++] = representativeValueAt(i);
+			}
+		}
+		return Arrays.copyOf(values, size);
+	}
+
+	/**
+	 * Returns the highest value in the snapshot.
+	 *
+	 * @return the highest value
+	 */
+	@Override
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * Returns the lowest value in the snapshot.
+	 *
+	 * @return the lowest value
+	 */
+	@Override
+	public long getMin() {
+		return min;
+	}
+
+	/**
+	 * Returns the arithmetic mean of the values in the snapshot.
+	 *
+	 * @return the arithmetic mean
+	 */
+	@Override
+	public double getMean() {
+		if (count == 0) {
+			return 0;
+		}
+
+		double sum = 0;
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] > 0) {
+				sum += (double) representativeValueAt(i) * counts[i];
+			}
+		}
+		return sum / count;
+	}
+
+	/**
+	 * Returns the standard deviation of the values in the snapshot.
+	 *
+	 * @return the standard deviation value
+	 */
+	@Override
+	public double getStdDev() {
+		if (count <= 1) {
+			return 0;
+		}
+
+		final double mean = getMean();
+		double variance = 0;
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] > 0) {
+				final double diff = representativeValueAt(i) - mean;
+				variance += diff * diff * counts[i];
+			}
+		}
+		return Math.sqrt(variance / count);
+	}
+
+	/**
+	 * Writes the representative value and count of every non-empty bucket to the
+	 * given stream, one bucket per line.
+	 *
+	 * @param output
+	 *            an output stream
+	 */
+	@Override
+	public void dump(final OutputStream output) {
+		final PrintWriter out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+		try {
+			for (int i = 0; i < counts.length; i++) {
+				if (counts[i] > 0) {
+					out.printf("%d\t%d%n", representativeValueAt(i), counts[i]);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private long representativeValueAt(final int index) {
+		return Math.max(min, Math.min(max, buckets.medianValueAt(index)));
+	}
+}
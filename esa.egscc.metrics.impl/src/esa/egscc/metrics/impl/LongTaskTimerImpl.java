@@ -0,0 +1,116 @@
+package esa.egscc.metrics.impl;
+
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import esa.egscc.metrics.api.LongTaskTimer;
+
+/**
+ * A {@link LongTaskTimer} which keeps its active tasks in a
+ * {@link ConcurrentSkipListSet} ordered by their start tick. Starting and
+ * stopping a task are lock-free insertions and removals, the longest running
+ * task is the first of the set, and the total duration is summed over the
+ * active tasks when it is read. Reads therefore cost time proportional to the
+ * number of active tasks, which is expected to be small compared to the number
+ * of tasks started between two reads.
+ */
+public class LongTaskTimerImpl implements LongTaskTimer {
+	/**
+	 * A task of a {@link LongTaskTimerImpl}. Tasks started at the same tick are
+	 * told apart by their sequence number.
+	 */
+	public static class Sample implements LongTaskTimer.Sample, Comparable<Sample> {
+		private final LongTaskTimerImpl timer;
+		private final long startTick;
+		private final long sequence;
+		private final AtomicBoolean stopped = new AtomicBoolean();
+
+		private Sample(final LongTaskTimerImpl timer) {
+			this.timer = timer;
+			startTick = timer.clock.getTick();
+			sequence = timer.sequence.getAndIncrement();
+		}
+
+		/**
+		 * Marks the task as completed. Only the first call has an effect.
+		 *
+		 * @return the duration of the task in nanoseconds, or {@code -1} if it was
+		 *         already stopped
+		 */
+		@Override
+		public long stop() {
+			if (!stopped.compareAndSet(false, true)) {
+				return -1;
+			}
+			timer.active.remove(this);
+			return timer.clock.getTick() - startTick;
+		}
+
+		/** Equivalent to calling {@link #stop()}. */
+		@Override
+		public void close() {
+			stop();
+		}
+
+		@Override
+		public int compareTo(final Sample other) {
+			// ticks may wrap around, so compare their difference
+			final int byTick = Long.signum(startTick - other.startTick);
+			return byTick != 0 ? byTick : Long.compare(sequence, other.sequence);
+		}
+	}
+
+	private final ConcurrentSkipListSet<Sample> active = new ConcurrentSkipListSet<>();
+	private final AtomicLong sequence = new AtomicLong();
+	private final Clock clock;
+
+	/**
+	 * Creates a new {@link LongTaskTimerImpl} using the default {@link Clock}.
+	 */
+	public LongTaskTimerImpl() {
+		this(Clock.defaultClock());
+	}
+
+	/**
+	 * Creates a new {@link LongTaskTimerImpl} using the given {@link Clock}.
+	 *
+	 * @param clock
+	 *            the {@link Clock} implementation the timer should use
+	 */
+	public LongTaskTimerImpl(final Clock clock) {
+		this.clock = clock;
+	}
+
+	@Override
+	public Sample start() {
+		final Sample sample = new Sample(this);
+		active.add(sample);
+		return sample;
+	}
+
+	@Override
+	public int getActiveTasks() {
+		return active.size();
+	}
+
+	@Override
+	public long getDuration() {
+		final long now = clock.getTick();
+		long duration = 0;
+		for (final Sample sample : active) {
+			duration += Math.max(0, now - sample.startTick);
+		}
+		return duration;
+	}
+
+	@Override
+	public long getMaxDuration() {
+		final long now = clock.getTick();
+		for (final Sample sample : active) {
+			// the oldest task, unless it is stopped concurrently
+			return Math.max(0, now - sample.startTick);
+		}
+		return 0;
+	}
+}
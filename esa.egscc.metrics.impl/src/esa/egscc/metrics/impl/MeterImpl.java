@@ -2,7 +2,6 @@ package esa.egscc.metrics.impl;
 
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.LongAdder;
 
 import esa.egscc.metrics.api.Meter;
 
@@ -19,7 +18,7 @@ public class MeterImpl implements Meter {
 	private final EWMA m5Rate = EWMA.fiveMinuteEWMA();
 	private final EWMA m15Rate = EWMA.fifteenMinuteEWMA();
 
-	private final LongAdder count = new LongAdder();
+	private final AdaptiveAdder count = new AdaptiveAdder();
 	private final long startTime;
 	private final AtomicLong lastTick;
 	private final Clock clock;
@@ -59,7 +58,20 @@ public class MeterImpl implements Meter {
 	 */
 	@Override
 	public void mark(final long n) {
-		tickIfNecessary();
+		mark(n, clock.getTick());
+	}
+
+	/**
+	 * Mark the occurrence of a given number of events at a tick already read from
+	 * this meter's clock.
+	 *
+	 * @param n
+	 *            the number of events
+	 * @param tick
+	 *            the current tick of the clock
+	 */
+	void mark(final long n, final long tick) {
+		tickIfNecessary(tick);
 		count.add(n);
 		m1Rate.update(n);
 		m5Rate.update(n);
@@ -67,8 +79,11 @@ public class MeterImpl implements Meter {
 	}
 
 	private void tickIfNecessary() {
+		tickIfNecessary(clock.getTick());
+	}
+
+	private void tickIfNecessary(final long newTick) {
 		final long oldTick = lastTick.get();
-		final long newTick = clock.getTick();
 		final long age = newTick - oldTick;
 		if (age > TICK_INTERVAL) {
 			final long newIntervalStartTick = newTick - age % TICK_INTERVAL;
@@ -0,0 +1,82 @@
+package esa.egscc.metrics.impl;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Ticks the moving averages of any number of {@link TickedMeterImpl}s from a
+ * single background thread, every five seconds. Meters are only weakly
+ * referenced, so a meter which is no longer used elsewhere is dropped.
+ */
+public class MeterTicker {
+	private static final long TICK_INTERVAL = 5;
+	private static final String THREAD_NAME = "EGSCC Metrics Meter Ticker";
+
+	private final Logger logger = LoggerFactory.getLogger(MeterTicker.class);
+
+	private final Queue<WeakReference<TickedMeterImpl>> meters = new ConcurrentLinkedQueue<>();
+	private final ScheduledExecutorService executor;
+
+	/**
+	 * Creates a new {@link MeterTicker} and starts its thread.
+	 */
+	public MeterTicker() {
+		executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, THREAD_NAME);
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleAtFixedRate(this::tickAll, TICK_INTERVAL, TICK_INTERVAL, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Adds a meter to be ticked.
+	 *
+	 * @param meter
+	 *            the meter
+	 */
+	void register(final TickedMeterImpl meter) {
+		meters.add(new WeakReference<>(meter));
+	}
+
+	private void tickAll() {
+		final Iterator<WeakReference<TickedMeterImpl>> iterator = meters.iterator();
+		while (iterator.hasNext()) {
+			final TickedMeterImpl meter = iterator.next().get();
+			if (meter == null) {
+				iterator.remove();
+				continue;
+			}
+			try {
+				meter.tick();
+			} catch (final RuntimeException e) {
+				// never let one meter stop the ticks of all others
+				logger.warn("Could not tick meter.", e);
+			}
+		}
+	}
+
+	/**
+	 * Stops the thread. Meters registered with this ticker keep counting, but
+	 * their moving averages are no longer updated.
+	 */
+	public void shutdown() {
+		try {
+			executor.shutdown();
+			if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+				executor.shutdownNow();
+			}
+		} catch (final InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+}
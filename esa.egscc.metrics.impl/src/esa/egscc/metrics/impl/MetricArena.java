@@ -0,0 +1,347 @@
+package esa.egscc.metrics.impl;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A region of off-heap memory holding the values of metrics, so that a registry
+ * with many series keeps their values in one buffer instead of in many small
+ * heap objects the garbage collector has to trace. The arena is backed by a
+ * direct or a memory mapped {@link ByteBuffer}. Values are longs in native byte
+ * order. A mapped arena has no header and no directory of the metrics in it; the
+ * file only backs the memory and is not meant to be read by other processes.
+ * <p>
+ * Memory is handed out in blocks of whole cache lines, so the values of two
+ * metrics never share a cache line. Atomic access goes through
+ * {@code sun.misc.Unsafe}, looked up reflectively and bound to method handles
+ * the JIT compiler inlines; if it is not available, {@link #isSupported()}
+ * returns {@code false} and no arena can be created.
+ * <p>
+ * A block is attached to the metric which holds its offset, and is only handed
+ * out again once that metric has been garbage collected. A thread still
+ * updating a released metric therefore always writes to memory no other metric
+ * owns, however long it was descheduled. To keep the metric reachable until its
+ * access to the block is done, the metric calls
+ * {@link #reachabilityFence(Object)} after each access.
+ */
+final class MetricArena {
+	/** The size of a cache line, the unit in which memory is handed out. */
+	static final int LINE_SIZE = 64;
+
+	private static final Object UNSAFE = unsafe();
+	private static final MethodHandle GET_LONG = handle("getLong", Object.class, long.class);
+	private static final MethodHandle GET_LONG_VOLATILE = handle("getLongVolatile", Object.class, long.class);
+	private static final MethodHandle PUT_LONG_VOLATILE = handle("putLongVolatile", Object.class, long.class,
+			long.class);
+	private static final MethodHandle GET_AND_ADD_LONG = handle("getAndAddLong", Object.class, long.class,
+			long.class);
+	private static final MethodHandle COMPARE_AND_SWAP_LONG = handle("compareAndSwapLong", Object.class, long.class,
+			long.class, long.class);
+	private static final MethodHandle SET_MEMORY = handle("setMemory", long.class, long.class, byte.class);
+	private static final MethodHandle OBJECT_FIELD_OFFSET = handle("objectFieldOffset", Field.class);
+
+	// never set; only read to keep a metric reachable
+	private static volatile Object fence;
+
+	// keeps the memory reachable as long as the arena is
+	private final ByteBuffer buffer;
+	private final long base;
+	private final long capacity;
+
+	// guarded by this: free blocks by offset, and the attached blocks, which are
+	// enqueued once their metric has been collected
+	private final TreeMap<Long, Long> free = new TreeMap<>();
+	private final Set<Block> attached = new HashSet<>();
+	private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+
+	/**
+	 * Creates a new {@link MetricArena} in the given buffer.
+	 *
+	 * @param buffer
+	 *            a direct or mapped buffer
+	 */
+	MetricArena(final ByteBuffer buffer) {
+		if (!isSupported()) {
+			throw new IllegalStateException("Off-heap metrics are not supported by this JVM");
+		}
+		if (!buffer.isDirect()) {
+			throw new IllegalArgumentException("Buffer must be direct");
+		}
+		this.buffer = buffer;
+		final long address = address(buffer);
+		base = (address + LINE_SIZE - 1) & -LINE_SIZE;
+		capacity = (buffer.capacity() - (base - address)) & -LINE_SIZE;
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Buffer is too small: " + buffer.capacity() + " bytes");
+		}
+		free.put(0L, capacity);
+	}
+
+	/**
+	 * Creates a new {@link MetricArena} in direct memory.
+	 *
+	 * @param size
+	 *            the size of the arena in bytes
+	 * @return a new arena
+	 */
+	static MetricArena allocateDirect(final int size) {
+		return new MetricArena(ByteBuffer.allocateDirect(size + LINE_SIZE));
+	}
+
+	/**
+	 * Creates a new {@link MetricArena} in a file mapped into memory. The file
+	 * holds the raw blocks of the metrics only.
+	 *
+	 * @param file
+	 *            the file, created if it does not exist
+	 * @param size
+	 *            the size of the arena in bytes
+	 * @return a new arena
+	 * @throws IOException
+	 *             if the file cannot be mapped
+	 */
+	static MetricArena map(final Path file, final int size) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			// the mapping stays valid after the channel is closed
+			return new MetricArena(channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+		}
+	}
+
+	/**
+	 * Returns whether this JVM supports off-heap metrics.
+	 *
+	 * @return {@code true} if arenas can be created
+	 */
+	static boolean isSupported() {
+		return GET_LONG != null && GET_LONG_VOLATILE != null && PUT_LONG_VOLATILE != null
+				&& GET_AND_ADD_LONG != null && COMPARE_AND_SWAP_LONG != null && SET_MEMORY != null && OBJECT_FIELD_OFFSET != null;
+	}
+
+	/**
+	 * Allocates a zeroed block of longs, aligned to a cache line.
+	 *
+	 * @param longs
+	 *            the number of longs
+	 * @return the offset of the block, or {@code -1} if the arena is full
+	 */
+	synchronized long allocate(final int longs) {
+		final long size = sizeOf(longs);
+		reclaim();
+		for (final Map.Entry<Long, Long> block : free.entrySet()) {
+			if (block.getValue() >= size) {
+				final long offset = block.getKey();
+				free.remove(offset);
+				if (block.getValue() > size) {
+					free.put(offset + size, block.getValue() - size);
+				}
+				clear(base + offset, size);
+				return offset;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Attaches a block allocated by {@link #allocate(int)} to the metric which
+	 * holds its offset. The block is freed once the metric has been garbage
+	 * collected.
+	 *
+	 * @param owner
+	 *            the metric
+	 * @param offset
+	 *            the offset of the block
+	 * @param longs
+	 *            the number of longs it was allocated for
+	 */
+	synchronized void attach(final Object owner, final long offset, final int longs) {
+		attached.add(new Block(owner, collected, offset, sizeOf(longs)));
+	}
+
+	/**
+	 * Keeps the given metric reachable until this call, like
+	 * {@code Reference.reachabilityFence} of later Java versions. Called by a
+	 * metric after it accessed its block, so the block cannot be freed while the
+	 * access is in progress.
+	 *
+	 * @param owner
+	 *            the metric
+	 */
+	static void reachabilityFence(final Object owner) {
+		// never true, but the comparison needs the owner after the access
+		if (fence == owner) {
+			fence = null;
+		}
+	}
+
+	/**
+	 * Returns the long at the given offset.
+	 *
+	 * @param offset
+	 *            an offset within an allocated block
+	 * @return the current value
+	 */
+	long get(final long offset) {
+		try {
+			return (long) GET_LONG_VOLATILE.invokeExact((Object) null, base + offset);
+		} catch (final Throwable e) {
+			throw propagate(e);
+		}
+	}
+
+	/**
+	 * Sets the long at the given offset.
+	 *
+	 * @param offset
+	 *            an offset within an allocated block
+	 * @param value
+	 *            the new value
+	 */
+	void set(final long offset, final long value) {
+		try {
+			PUT_LONG_VOLATILE.invokeExact((Object) null, base + offset, value);
+		} catch (final Throwable e) {
+			throw propagate(e);
+		}
+	}
+
+	/**
+	 * Atomically adds to the long at the given offset.
+	 *
+	 * @param offset
+	 *            an offset within an allocated block
+	 * @param delta
+	 *            the value to add
+	 * @return the previous value
+	 */
+	long add(final long offset, final long delta) {
+		try {
+			return (long) GET_AND_ADD_LONG.invokeExact((Object) null, base + offset, delta);
+		} catch (final Throwable e) {
+			throw propagate(e);
+		}
+	}
+
+	/**
+	 * Atomically adds to the double stored as raw long bits at the given offset.
+	 *
+	 * @param offset
+	 *            an offset within an allocated block
+	 * @param delta
+	 *            the value to add
+	 */
+	void addDouble(final long offset, final double delta) {
+		try {
+			long bits;
+			do {
+				bits = (long) GET_LONG_VOLATILE.invokeExact((Object) null, base + offset);
+			} while (!(boolean) COMPARE_AND_SWAP_LONG.invokeExact((Object) null, base + offset, bits,
+					Double.doubleToRawLongBits(Double.longBitsToDouble(bits) + delta)));
+		} catch (final Throwable e) {
+			throw propagate(e);
+		}
+	}
+
+	/*
+	 * Frees the blocks whose metric has been collected, merging them with adjacent
+	 * free blocks. Callers must hold the lock.
+	 */
+	private void reclaim() {
+		Block block;
+		while ((block = (Block) collected.poll()) != null) {
+			attached.remove(block);
+			long offset = block.offset;
+			long size = block.size;
+			final Map.Entry<Long, Long> before = free.floorEntry(offset);
+			if (before != null && before.getKey() + before.getValue() == offset) {
+				offset = before.getKey();
+				size += before.getValue();
+			}
+			final Long after = free.remove(offset + size);
+			if (after != null) {
+				size += after;
+			}
+			free.put(offset, size);
+		}
+	}
+
+	private static long sizeOf(final int longs) {
+		if (longs <= 0) {
+			throw new IllegalArgumentException("Number of longs must be positive: " + longs);
+		}
+		return ((long) longs * Long.BYTES + LINE_SIZE - 1) & -LINE_SIZE;
+	}
+
+	private static long address(final Buffer buffer) {
+		try {
+			final long offset = (long) OBJECT_FIELD_OFFSET.invokeExact(Buffer.class.getDeclaredField("address"));
+			return (long) GET_LONG.invokeExact((Object) buffer, offset);
+		} catch (final Throwable e) {
+			throw propagate(e);
+		}
+	}
+
+	private static void clear(final long address, final long bytes) {
+		try {
+			SET_MEMORY.invokeExact(address, bytes, (byte) 0);
+		} catch (final Throwable e) {
+			throw propagate(e);
+		}
+	}
+
+	private static RuntimeException propagate(final Throwable e) {
+		if (e instanceof Error) {
+			throw (Error) e;
+		}
+		return e instanceof RuntimeException ? (RuntimeException) e : new IllegalStateException(e);
+	}
+
+	private static Object unsafe() {
+		try {
+			final Field field = Class.forName("sun.misc.Unsafe", false, null).getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			return field.get(null);
+		} catch (final ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	private static MethodHandle handle(final String name, final Class<?>... parameterTypes) {
+		if (UNSAFE == null) {
+			return null;
+		}
+		try {
+			return MethodHandles.lookup().unreflect(UNSAFE.getClass().getMethod(name, parameterTypes))
+					.bindTo(UNSAFE);
+		} catch (final ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * A block attached to a metric, enqueued once the metric has been collected.
+	 */
+	private static final class Block extends PhantomReference<Object> {
+		private final long offset;
+		private final long size;
+
+		private Block(final Object owner, final ReferenceQueue<Object> queue, final long offset, final long size) {
+			super(owner, queue);
+			this.offset = offset;
+			this.size = size;
+		}
+	}
+}
@@ -0,0 +1,335 @@
+package esa.egscc.metrics.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import esa.egscc.metrics.api.Metric;
+import esa.egscc.metrics.api.MetricFamily;
+import esa.egscc.metrics.api.MetricTags;
+
+/**
+ * A {@link MetricFamily} which keeps its children in a hash map keyed by their
+ * label values. Looking up an existing child hashes the given values in place,
+ * through a key reused by the calling thread, so it allocates nothing; only
+ * creating a child copies them, into the {@link MetricTags} of the child,
+ * which interns them so children sharing a value share one string, and renders
+ * its Prometheus labels once.
+ * <p>
+ * A family may be limited to a number of children, and its children may count
+ * against the series limits of its registry through a {@link SeriesBudget}.
+ * Once either is reached, new label values get a shared overflow child whose
+ * label values are all {@value #OVERFLOW}, which counts against neither.
+ * Children are created under the lock of the family, so the limits are never
+ * exceeded; looking up an existing child takes no lock.
+ *
+ * @param <T>
+ *            the type of the metrics in the family
+ */
+public class MetricFamilyImpl<T extends Metric> implements MetricFamily<T>, ArenaMetric {
+	/** The label value of the overflow child. */
+	static final String OVERFLOW = "overflow";
+
+	private static final Pattern LABEL_NAME = Pattern.compile("[a-zA-Z_][a-zA-Z0-9_]*");
+	private static final ThreadLocal<Probe> PROBES = ThreadLocal.withInitial(Probe::new);
+
+	private final Class<T> type;
+	private final Supplier<T> factory;
+	private final int maxChildren;
+	private final Runnable overflowed;
+	private final List<String> labelNames;
+	private final LabelValues overflowKey;
+	private final ConcurrentMap<LabelValues, T> children = new ConcurrentHashMap<>();
+	// guarded by this
+	private SeriesBudget budget;
+	// the number of children counted against the limits, guarded by this
+	private int reserved;
+
+	/**
+	 * Creates a new {@link MetricFamilyImpl}.
+	 *
+	 * @param type
+	 *            the type of the metrics in the family
+	 * @param factory
+	 *            creates a new child
+	 * @param maxChildren
+	 *            the maximum number of children, or 0 for no limit
+	 * @param overflowed
+	 *            called whenever new label values are redirected to the overflow
+	 *            child
+	 * @param labelNames
+	 *            the names of the labels, valid Prometheus label names
+	 */
+	MetricFamilyImpl(final Class<T> type, final Supplier<T> factory, final int maxChildren,
+			final Runnable overflowed, final String... labelNames) {
+		this(type, factory, maxChildren, SeriesBudget.UNLIMITED, overflowed, labelNames);
+	}
+
+	/**
+	 * Creates a new {@link MetricFamilyImpl} whose children count against the
+	 * given series budget.
+	 *
+	 * @param type
+	 *            the type of the metrics in the family
+	 * @param factory
+	 *            creates a new child
+	 * @param maxChildren
+	 *            the maximum number of children, or 0 for no limit
+	 * @param budget
+	 *            the series limits the children count against, until the family
+	 *            is released
+	 * @param overflowed
+	 *            called whenever new label values are redirected to the overflow
+	 *            child
+	 * @param labelNames
+	 *            the names of the labels, valid Prometheus label names
+	 */
+	MetricFamilyImpl(final Class<T> type, final Supplier<T> factory, final int maxChildren,
+			final SeriesBudget budget, final Runnable overflowed, final String... labelNames) {
+		this.type = type;
+		this.budget = budget;
+		this.factory = factory;
+		this.maxChildren = maxChildren;
+		this.overflowed = overflowed;
+		this.labelNames = checkLabelNames(labelNames);
+		final String[] overflow = new String[labelNames.length];
+		Arrays.fill(overflow, OVERFLOW);
+		overflowKey = new LabelValues(overflow, overflow.length).withLabels(this.labelNames);
+	}
+
+	/**
+	 * Checks that the given label names are valid Prometheus label names, and
+	 * that there is at least one and no duplicate.
+	 *
+	 * @param labelNames
+	 *            the names of the labels
+	 * @return an unmodifiable copy of the names
+	 */
+	static List<String> checkLabelNames(final String... labelNames) {
+		if (labelNames.length == 0) {
+			throw new IllegalArgumentException("At least one label name is required");
+		}
+		for (final String labelName : labelNames) {
+			if (labelName == null || !LABEL_NAME.matcher(labelName).matches()) {
+				throw new IllegalArgumentException("Invalid label name: " + labelName);
+			}
+		}
+		if (Arrays.stream(labelNames).distinct().count() != labelNames.length) {
+			throw new IllegalArgumentException("Duplicate label names: " + Arrays.toString(labelNames));
+		}
+		return Collections.unmodifiableList(Arrays.asList(labelNames.clone()));
+	}
+
+	@Override
+	public List<String> getLabelNames() {
+		return labelNames;
+	}
+
+	@Override
+	public T labels(final String... labelValues) {
+		final Probe probe = PROBES.get();
+		final T child = children.get(probe.key.set(labelValues, labelNames.size()));
+		probe.clear();
+		return child != null ? child : create(labelValues);
+	}
+
+	@Override
+	public T labels(final String labelValue) {
+		final Probe probe = PROBES.get();
+		probe.one[0] = labelValue;
+		final T child = children.get(probe.key.set(probe.one, labelNames.size()));
+		probe.clear();
+		return child != null ? child : create(new String[] { labelValue });
+	}
+
+	@Override
+	public T labels(final String first, final String second) {
+		final Probe probe = PROBES.get();
+		probe.two[0] = first;
+		probe.two[1] = second;
+		final T child = children.get(probe.key.set(probe.two, labelNames.size()));
+		probe.clear();
+		return child != null ? child : create(new String[] { first, second });
+	}
+
+	/*
+	 * Returns the child with the given label values, which was missing when the
+	 * caller looked it up, creating it or the overflow child.
+	 */
+	private T create(final String[] labelValues) {
+		final LabelValues key = new LabelValues(labelValues, labelNames.size());
+		if (!key.equals(overflowKey)) {
+			synchronized (this) {
+				final T existing = children.get(key);
+				if (existing != null) {
+					return existing;
+				}
+				if ((maxChildren <= 0 || reserved < maxChildren) && budget.reserve()) {
+					final T child = factory.get();
+					children.put(key.withLabels(labelNames), child);
+					reserved++;
+					return child;
+				}
+			}
+			overflowed.run();
+		}
+		final T overflow = children.get(overflowKey);
+		return overflow != null ? overflow : children.computeIfAbsent(overflowKey, k -> factory.get());
+	}
+
+	@Override
+	public boolean remove(final String... labelValues) {
+		final LabelValues key = new LabelValues(labelValues, labelNames.size());
+		final T child;
+		synchronized (this) {
+			child = children.remove(key);
+			if (child != null && !key.equals(overflowKey)) {
+				reserved--;
+				budget.release(1);
+			}
+		}
+		if (child instanceof ArenaMetric) {
+			((ArenaMetric) child).release();
+		}
+		return child != null;
+	}
+
+	@Override
+	public Map<List<String>, T> getChildren() {
+		final Map<List<String>, T> copy = new HashMap<>();
+		for (final Map.Entry<LabelValues, T> child : children.entrySet()) {
+			copy.put(child.getKey().toList(), child.getValue());
+		}
+		return Collections.unmodifiableMap(copy);
+	}
+
+	@Override
+	public Map<MetricTags, T> getLabeledChildren() {
+		final Map<MetricTags, T> copy = new HashMap<>();
+		for (final Map.Entry<LabelValues, T> child : children.entrySet()) {
+			copy.put(child.getKey().labels, child.getValue());
+		}
+		return Collections.unmodifiableMap(copy);
+	}
+
+	/**
+	 * Releases the memory of the children and stops counting them against the
+	 * series budget. Children created afterwards are no longer counted.
+	 */
+	@Override
+	public void release() {
+		synchronized (this) {
+			budget.release(reserved);
+			reserved = 0;
+			budget = SeriesBudget.UNLIMITED;
+		}
+		for (final T child : children.values()) {
+			if (child instanceof ArenaMetric) {
+				((ArenaMetric) child).release();
+			}
+		}
+	}
+
+	/**
+	 * Returns whether this family has the given type and label names.
+	 *
+	 * @param type
+	 *            the type of the metrics in the family
+	 * @param labelNames
+	 *            the names of the labels
+	 * @return {@code true} if both match
+	 */
+	boolean isFamilyOf(final Class<?> type, final String... labelNames) {
+		return this.type == type && this.labelNames.equals(Arrays.asList(labelNames));
+	}
+
+	/**
+	 * The label values of a child, compared by value. The keys of the map are
+	 * never changed; only the key of a {@link Probe} is set to the values being
+	 * looked up.
+	 */
+	private static final class LabelValues {
+		private String[] values;
+		private int hash;
+		// only set on the keys of the map
+		private MetricTags labels;
+
+		private LabelValues() {
+		}
+
+		private LabelValues(final String[] values, final int expected) {
+			set(values, expected);
+		}
+
+		private LabelValues set(final String[] values, final int expected) {
+			if (values.length != expected) {
+				throw new IllegalArgumentException("Expected " + expected + " label values, got " + values.length);
+			}
+			for (final String value : values) {
+				if (value == null) {
+					throw new IllegalArgumentException("Label values cannot be null");
+				}
+			}
+			this.values = values;
+			hash = Arrays.hashCode(values);
+			return this;
+		}
+
+		/*
+		 * Returns a copy holding the interned values of the labels, which the caller
+		 * can no longer change.
+		 */
+		private LabelValues withLabels(final List<String> labelNames) {
+			final Map<String, String> tags = new LinkedHashMap<>();
+			for (int i = 0; i < values.length; i++) {
+				tags.put(labelNames.get(i), values[i]);
+			}
+			final MetricTags interned = MetricTags.of(tags);
+			final LabelValues copy = new LabelValues(interned.asMap().values().toArray(new String[0]), values.length);
+			copy.labels = interned;
+			return copy;
+		}
+
+		private List<String> toList() {
+			return Collections.unmodifiableList(Arrays.asList(values));
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			return obj instanceof LabelValues && Arrays.equals(values, ((LabelValues) obj).values);
+		}
+	}
+
+	/**
+	 * The lookup key of a thread, with arrays for the label values of one and two
+	 * labels.
+	 */
+	private static final class Probe {
+		private final LabelValues key = new LabelValues();
+		private final String[] one = new String[1];
+		private final String[] two = new String[2];
+
+		/*
+		 * Drops the references to the looked up values, so the thread does not keep
+		 * them alive.
+		 */
+		private void clear() {
+			key.values = null;
+			one[0] = null;
+			two[0] = null;
+			two[1] = null;
+		}
+	}
+}
@@ -2,47 +2,456 @@ package esa.egscc.metrics.impl;
 
 import static java.util.Objects.requireNonNull;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
-//import com.google.common.collect.ImmutableSortedSet;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import esa.egscc.metrics.api.Buckets;
 import esa.egscc.metrics.api.Counter;
 import esa.egscc.metrics.api.Gauge;
 import esa.egscc.metrics.api.Histogram;
+import esa.egscc.metrics.api.IndexedMetricFamily;
+import esa.egscc.metrics.api.LongTaskTimer;
 import esa.egscc.metrics.api.Metadata;
 import esa.egscc.metrics.api.Meter;
 import esa.egscc.metrics.api.Metric;
+import esa.egscc.metrics.api.MetricFamily;
 import esa.egscc.metrics.api.MetricFilter;
 import esa.egscc.metrics.api.MetricRegistry;
+import esa.egscc.metrics.api.MetricRegistryEvent;
+import esa.egscc.metrics.api.MetricRegistryListener;
 import esa.egscc.metrics.api.MetricType;
+import esa.egscc.metrics.api.SettableGauge;
 import esa.egscc.metrics.api.Timer;
 
-@Component(name = "MetricRegistry", immediate = true, service = MetricRegistry.class)
+/**
+ * The {@link MetricRegistry} service. Its optional configuration
+ * {@code esa.egscc.metrics.registry} supports the following keys:
+ * <ul>
+ * <li>{@code RESERVOIR}: the {@link ReservoirType} of the histograms and timers
+ * created by the registry, {@code EXPONENTIALLY_DECAYING} by default</li>
+ * <li>{@code SLIDING_WINDOW}: the window in seconds of a
+ * {@code SLIDING_TIME_WINDOW} reservoir, 60 by default</li>
+ * <li>{@code HISTOGRAM_BUCKETS}: the comma separated bucket bounds of histograms
+ * whose {@link Metadata} has none, whole numbers in the unit of the recorded
+ * values, no buckets by default</li>
+ * <li>{@code TIMER_BUCKETS}: the comma separated bucket bounds in seconds of
+ * timers whose {@link Metadata} has none, which may be fractions down to a
+ * nanosecond, no buckets by default</li>
+ * <li>{@code METER}: the {@link MeterType} of the meters and timers created by
+ * the registry, {@code TICK_ON_UPDATE} by default</li>
+ * <li>{@code CLOCK}: the {@link ClockType} of the metrics created by the
+ * registry, {@code SYSTEM} by default</li>
+ * <li>{@code CLOCK_RESOLUTION}: the resolution in milliseconds of a
+ * {@code CACHED} clock, 1 by default</li>
+ * <li>{@code SAMPLE_RATE}: the rate {@code N} at which histograms and timers
+ * whose {@link Metadata} has none sample one in {@code N} events, 1 by
+ * default</li>
+ * <li>{@code ARENA_SIZE}: the size in kilobytes of a {@link MetricArena} holding
+ * the values of the counters and settable gauges, the bucket counts of
+ * histograms and timers and the counts of {@code LOG_LINEAR} reservoirs off the
+ * heap, 0 (no arena) by default. Metrics created once the arena is full live on
+ * the heap.</li>
+ * <li>{@code ARENA_FILE}: the file to map the arena to, direct memory by
+ * default. The file only backs the memory; it has no header or directory other
+ * processes could read the metrics from.</li>
+ * <li>{@code MAX_SERIES}: the maximum number of series in the registry, 0 (no
+ * limit) by default</li>
+ * <li>{@code SERIES_LIMITS}: comma separated {@code prefix=limit} pairs, the
+ * maximum number of series whose name starts with a prefix, none by
+ * default</li>
+ * <li>{@code MAX_FAMILY_SERIES}: the maximum number of children of a labeled
+ * metric family, 0 (no limit) by default</li>
+ * </ul>
+ * Once a limit is reached, the registry hands out a shared overflow metric of
+ * the requested type, named {@code registry.series.overflow.<type>}, instead of
+ * creating a new one, and a family hands out a child labeled
+ * {@code overflow}. The counter {@code registry.series.rejected} counts the
+ * redirected requests. A series is a metric or a child of a labeled family,
+ * which counts against the limits of the name of its family; a family itself is
+ * not a series. Series created by the getters never exceed the limits. Metrics
+ * registered explicitly count towards the limits but are never redirected, and
+ * the metrics named {@code registry.series.*} and the overflow children of the
+ * families are not counted at all, so the registry can always report its
+ * overflows. The children of indexed families are not counted either, since
+ * their label values are fixed up front.
+ */
+@Component(name = "MetricRegistry", configurationPid = "esa.egscc.metrics.registry", immediate = true, service = MetricRegistry.class)
 public final class MetricRegistryImpl extends MetricRegistry {
 	private static final String FILTER_NON_NULL = "Filter cannot be null";
+	private static final long DEFAULT_SLIDING_WINDOW = 60;
+	private static final long DEFAULT_CLOCK_RESOLUTION = 1;
+	private static final String SERIES_METRICS = "registry.series.";
+	private static final String SERIES_OVERFLOW = SERIES_METRICS + "overflow.";
+	private static final String SERIES_REJECTED = SERIES_METRICS + "rejected";
 
 	private final Logger logger = LoggerFactory.getLogger(MetricRegistryImpl.class);
 
 	private ConcurrentMap<String, Metric> metrics;
 	private ConcurrentMap<String, Metadata> metadata;
+	// bumped after every change
+	private final AtomicLong version = new AtomicLong();
+	// bumped after every registration or removal, but not on a change of tags,
+	// which leaves the index valid; guards the index rebuild
+	private final AtomicLong membership = new AtomicLong();
+	// guards the changes of the metrics, so they get their versions and are
+	// queued for the listeners in the order they were made
+	private final Object changes = new Object();
+	private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+	private final Queue<Delivery> pending = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean delivering = new AtomicBoolean();
+	private volatile RegistryIndex index;
+
+	private ReservoirType reservoirType = ReservoirType.EXPONENTIALLY_DECAYING;
+	private long slidingWindow = DEFAULT_SLIDING_WINDOW;
+	private long[] histogramBuckets;
+	private long[] timerBuckets;
+	private MeterType meterType = MeterType.TICK_ON_UPDATE;
+	private MeterTicker meterTicker;
+	private Clock clock = Clock.defaultClock();
+	private int sampleRate = 1;
+	private MetricArena arena;
+	private SeriesLimiter limiter = new SeriesLimiter(0, Collections.<String, Integer>emptyMap(), 0);
+
+	/**
+	 * The kinds of {@link Reservoir} the registry can back its histograms and
+	 * timers with.
+	 */
+	public enum ReservoirType {
+		/** A {@link LockFreeExponentiallyDecayingReservoir}. */
+		EXPONENTIALLY_DECAYING,
+		/** A {@link SlidingTimeWindowReservoir}. */
+		SLIDING_TIME_WINDOW,
+		/** A {@link LogLinearReservoir}. */
+		LOG_LINEAR,
+		/** A {@link StripedLogLinearReservoir}. */
+		STRIPED_LOG_LINEAR,
+		/** A {@link DDSketchReservoir}. */
+		DDSKETCH
+	}
+
+	/**
+	 * The kinds of {@link Meter} the registry can create for its meters and
+	 * timers.
+	 */
+	public enum MeterType {
+		/** A {@link MeterImpl}, whose updates tick its moving averages. */
+		TICK_ON_UPDATE,
+		/**
+		 * A {@link TickedMeterImpl}, whose moving averages are ticked by a background
+		 * thread shared by all meters of the registry.
+		 */
+		SCHEDULED,
+		/**
+		 * A {@link LazyMeterImpl}, whose moving averages are computed in closed form
+		 * when they are read.
+		 */
+		LAZY
+	}
+
+	/**
+	 * The kinds of {@link Clock} the metrics of the registry can use.
+	 */
+	public enum ClockType {
+		/** The {@link Clock#defaultClock()}, which reads the system clock. */
+		SYSTEM,
+		/**
+		 * A {@link Clock.CachedClock} shared by all metrics of the registry, which
+		 * trades precision for cheaper reads.
+		 */
+		CACHED
+	}
+
+	private enum ConfigKey {
+		RESERVOIR, SLIDING_WINDOW, HISTOGRAM_BUCKETS, TIMER_BUCKETS, METER, CLOCK, CLOCK_RESOLUTION, SAMPLE_RATE, ARENA_SIZE, ARENA_FILE, MAX_SERIES, SERIES_LIMITS, MAX_FAMILY_SERIES
+	}
 
 	@Activate
-	protected void activate() {
+	protected void activate(final Map<String, Object> properties) {
 		logger.debug("Activating MetricRegistry.");
 
 		metrics = new ConcurrentHashMap<>();
+		version.incrementAndGet();
+		membership.incrementAndGet();
 		metadata = new ConcurrentHashMap<>();
+
+		final Object reservoir = properties.get(ConfigKey.RESERVOIR.name());
+		if (reservoir != null) {
+			try {
+				reservoirType = ReservoirType.valueOf(reservoir.toString().trim().toUpperCase());
+			} catch (final IllegalArgumentException e) {
+				logger.warn("Unknown reservoir type {}, using {}.", reservoir, reservoirType);
+			}
+		}
+		final Object window = properties.get(ConfigKey.SLIDING_WINDOW.name());
+		if (window != null) {
+			try {
+				slidingWindow = Long.parseLong(window.toString().trim());
+			} catch (final NumberFormatException e) {
+				logger.warn("Invalid sliding window {}, using {} seconds.", window, slidingWindow);
+			}
+		}
+		final Object meter = properties.get(ConfigKey.METER.name());
+		if (meter != null) {
+			try {
+				meterType = MeterType.valueOf(meter.toString().trim().toUpperCase());
+			} catch (final IllegalArgumentException e) {
+				logger.warn("Unknown meter type {}, using {}.", meter, meterType);
+			}
+		}
+		if (meterType == MeterType.SCHEDULED) {
+			meterTicker = new MeterTicker();
+		}
+		final Object clockType = properties.get(ConfigKey.CLOCK.name());
+		if (clockType != null) {
+			try {
+				if (ClockType.valueOf(clockType.toString().trim().toUpperCase()) == ClockType.CACHED) {
+					clock = new Clock.CachedClock(parseClockResolution(properties), TimeUnit.MILLISECONDS);
+				}
+			} catch (final IllegalArgumentException e) {
+				logger.warn("Unknown clock type {}, using {}.", clockType, ClockType.SYSTEM);
+			}
+		}
+		final Object rate = properties.get(ConfigKey.SAMPLE_RATE.name());
+		if (rate != null) {
+			try {
+				sampleRate = Math.max(1, Integer.parseInt(rate.toString().trim()));
+			} catch (final NumberFormatException e) {
+				logger.warn("Invalid sample rate {}, using {}.", rate, sampleRate);
+			}
+		}
+		final Object arenaSize = properties.get(ConfigKey.ARENA_SIZE.name());
+		if (arenaSize != null) {
+			arena = createArena(arenaSize, properties.get(ConfigKey.ARENA_FILE.name()));
+		}
+		histogramBuckets = parseBuckets(properties.get(ConfigKey.HISTOGRAM_BUCKETS.name()), 1);
+		timerBuckets = parseBuckets(properties.get(ConfigKey.TIMER_BUCKETS.name()), TimeUnit.SECONDS.toNanos(1));
+		limiter = new SeriesLimiter(parseLimit(properties.get(ConfigKey.MAX_SERIES.name())),
+				parseSeriesLimits(properties.get(ConfigKey.SERIES_LIMITS.name())),
+				parseLimit(properties.get(ConfigKey.MAX_FAMILY_SERIES.name())));
+	}
+
+	@Deactivate
+	protected void deactivate() {
+		logger.debug("Deactivating MetricRegistry.");
+
+		if (meterTicker != null) {
+			meterTicker.shutdown();
+		}
+		if (clock instanceof Clock.CachedClock) {
+			((Clock.CachedClock) clock).stop();
+		}
+	}
+
+	private long parseClockResolution(final Map<String, Object> properties) {
+		final Object resolution = properties.get(ConfigKey.CLOCK_RESOLUTION.name());
+		if (resolution != null) {
+			try {
+				final long parsed = Long.parseLong(resolution.toString().trim());
+				if (parsed > 0) {
+					return parsed;
+				}
+			} catch (final NumberFormatException e) {
+				// logged below
+			}
+			logger.warn("Invalid clock resolution {}, using {} ms.", resolution, DEFAULT_CLOCK_RESOLUTION);
+		}
+		return DEFAULT_CLOCK_RESOLUTION;
+	}
+
+	private MetricArena createArena(final Object size, final Object file) {
+		final int kilobytes;
+		try {
+			kilobytes = Integer.parseInt(size.toString().trim());
+		} catch (final NumberFormatException e) {
+			logger.warn("Invalid arena size {}, using none.", size);
+			return null;
+		}
+		if (kilobytes <= 0) {
+			return null;
+		}
+		if (!MetricArena.isSupported()) {
+			logger.warn("Off-heap metrics are not supported by this JVM, using none.");
+			return null;
+		}
+		try {
+			final int bytes = Math.multiplyExact(kilobytes, 1024);
+			return file == null ? MetricArena.allocateDirect(bytes) : MetricArena.map(Paths.get(file.toString()), bytes);
+		} catch (final IOException | RuntimeException e) {
+			logger.warn("Cannot create arena of {} KB, using none.", kilobytes, e);
+			return null;
+		}
+	}
+
+	/*
+	 * Parses a series limit. Returns 0, no limit, if there is none or it is
+	 * invalid.
+	 */
+	private int parseLimit(final Object value) {
+		if (value == null) {
+			return 0;
+		}
+		try {
+			return Math.max(0, Integer.parseInt(value.toString().trim()));
+		} catch (final NumberFormatException e) {
+			logger.warn("Invalid series limit {}, using none.", value);
+			return 0;
+		}
+	}
+
+	/*
+	 * Parses comma separated prefix=limit pairs, skipping invalid ones.
+	 */
+	private Map<String, Integer> parseSeriesLimits(final Object value) {
+		final Map<String, Integer> limits = new LinkedHashMap<>();
+		if (value == null) {
+			return limits;
+		}
+		for (final String pair : value.toString().split(",")) {
+			final int separator = pair.lastIndexOf('=');
+			final int limit = separator > 0 ? parseLimit(pair.substring(separator + 1)) : 0;
+			if (limit > 0) {
+				limits.put(pair.substring(0, separator).trim(), limit);
+			} else if (!pair.trim().isEmpty()) {
+				logger.warn("Invalid series limit {}, ignoring it.", pair);
+			}
+		}
+		return limits;
+	}
+
+	/*
+	 * Parses comma separated bucket bounds and scales them to the unit of the
+	 * recorded values. Returns null if there are none or they are invalid.
+	 */
+	private long[] parseBuckets(final Object value, final long scale) {
+		if (value == null) {
+			return null;
+		}
+		try {
+			return Buckets.parseUpperBounds(value.toString(), scale);
+		} catch (final IllegalArgumentException e) {
+			logger.warn("Invalid bucket bounds {}, using none.", value, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Creates a new {@link Reservoir} of the configured {@link ReservoirType}.
+	 *
+	 * @return a new reservoir
+	 */
+	Reservoir newReservoir() {
+		switch (reservoirType) {
+		case SLIDING_TIME_WINDOW:
+			return new SlidingTimeWindowReservoir(slidingWindow, TimeUnit.SECONDS, clock);
+		case LOG_LINEAR:
+			final Reservoir offHeap = arena == null ? null : ArenaLogLinearReservoir.allocate(arena);
+			return offHeap != null ? offHeap : new LogLinearReservoir();
+		case STRIPED_LOG_LINEAR:
+			return new StripedLogLinearReservoir();
+		case DDSKETCH:
+			return new DDSketchReservoir();
+		case EXPONENTIALLY_DECAYING:
+		default:
+			return new LockFreeExponentiallyDecayingReservoir(clock);
+		}
+	}
+
+	/**
+	 * Creates a new {@link Meter} of the configured {@link MeterType}.
+	 *
+	 * @return a new meter
+	 */
+	Meter newMeter() {
+		switch (meterType) {
+		case SCHEDULED:
+			return new TickedMeterImpl(meterTicker, clock);
+		case LAZY:
+			return new LazyMeterImpl(clock);
+		case TICK_ON_UPDATE:
+		default:
+			return new MeterImpl(clock);
+		}
+	}
+
+	/**
+	 * Creates a new {@link Counter}, in the arena if there is one with room left.
+	 *
+	 * @return a new counter
+	 */
+	Counter newCounter() {
+		final long offset = arena == null ? -1 : arena.allocate(1);
+		return offset < 0 ? new CounterImpl() : new ArenaCounter(arena, offset);
+	}
+
+	/**
+	 * Creates a new {@link SettableGauge}, in the arena if there is one with room
+	 * left.
+	 *
+	 * @return a new settable gauge
+	 */
+	SettableGauge newSettableGauge() {
+		final long offset = arena == null ? -1 : arena.allocate(1);
+		return offset < 0 ? new SettableGaugeImpl() : new ArenaGauge(arena, offset);
+	}
+
+	/**
+	 * Returns the bucket bounds of the given histogram or timer: its own if its
+	 * metadata has any, otherwise the configured default for its type.
+	 *
+	 * @param metadata
+	 *            the metadata of the metric
+	 * @param type
+	 *            the type of the metric, {@link MetricType#HISTOGRAM} or
+	 *            {@link MetricType#TIMER}
+	 * @return the bucket bounds, or {@code null} if the metric has no buckets
+	 */
+	long[] bucketsFor(final Metadata metadata, final MetricType type) {
+		final long[] buckets = metadata.getBuckets();
+		if (buckets != null) {
+			return buckets;
+		}
+		return type == MetricType.TIMER ? timerBuckets : histogramBuckets;
+	}
+
+	/**
+	 * Returns the sample rate of the given histogram or timer: its own if its
+	 * metadata has one, otherwise the configured default.
+	 *
+	 * @param metadata
+	 *            the metadata of the metric
+	 * @return the sample rate, at least {@code 1}
+	 */
+	int sampleRateFor(final Metadata metadata) {
+		final int rate = metadata.getSampleRate();
+		return rate > 0 ? rate : sampleRate;
 	}
 
 	@Override
@@ -63,27 +472,47 @@ public final class MetricRegistryImpl extends MetricRegistry {
 
 		logger.debug("Registering metric {} with type {}", name, metric.getClass().getName());
 
-		final Metric existing = metrics.putIfAbsent(name, metric);
-		// Create copy of the metadata object so it can't be changed after its
-		// registered
-		final Metadata metadataCopy = new Metadata(metadata.getName(), metadata.getDisplayName(),
-				metadata.getDescription(), metadata.getTypeRaw(), metadata.getUnit());
-		for (final String tag : metadata.getTags().keySet()) {
-			metadataCopy.getTags().put(tag, metadata.getTags().get(tag));
-		}
-
-		this.metadata.putIfAbsent(name, metadataCopy);
+		register(name, metric, metadata, false);
+		return metric;
+	}
 
-		if (existing != null) {
-			logger.debug("Metric {} exists already.", name);
+	/*
+	 * Registers the metric unless its name is taken, counting it against the
+	 * series limits unless the caller reserved its series already. Returns the
+	 * metric registered under the name, which a concurrent removal cannot take
+	 * away before the caller sees it.
+	 */
+	private Metric register(final String name, final Metric metric, final Metadata metadata,
+			final boolean reserved) {
+		synchronized (changes) {
+			final Metric existing = metrics.get(name);
+			if (existing != null) {
+				// the metadata of the existing metric stays as it is, so there is
+				// nothing to copy
+				logger.debug("Metric {} exists already.", name);
+				return existing;
+			}
+			metrics.put(name, metric);
+			if (!reserved && isSeries(name, metric)) {
+				limiter.added(name);
+			}
+			// Keep an immutable copy of the metadata object so it can't be changed after
+			// its registered, and its tags are rendered once
+			final Metadata registered = metadata.toImmutable();
+			this.metadata.put(name, registered);
+			changed(MetricRegistryEvent.Type.ADDED, name, metric, registered);
 		}
-
+		deliver();
 		return metric;
 	}
 
 	@Override
 	public Counter counter(final String name) {
 		requireNonNull(name, "Counter name cannot be null");
+		final Metric metric = metrics.get(name);
+		if (metric instanceof Counter) {
+			return (Counter) metric;
+		}
 		return this.counter(new Metadata(name, MetricType.COUNTER));
 	}
 
@@ -96,6 +525,10 @@ public final class MetricRegistryImpl extends MetricRegistry {
 	@Override
 	public Histogram histogram(final String name) {
 		requireNonNull(name, "Histogram name cannot be null");
+		final Metric metric = metrics.get(name);
+		if (metric instanceof Histogram) {
+			return (Histogram) metric;
+		}
 		return this.histogram(new Metadata(name, MetricType.HISTOGRAM));
 	}
 
@@ -108,6 +541,10 @@ public final class MetricRegistryImpl extends MetricRegistry {
 	@Override
 	public Meter meter(final String name) {
 		requireNonNull(name, "Meter name cannot be null");
+		final Metric metric = metrics.get(name);
+		if (metric instanceof Meter) {
+			return (Meter) metric;
+		}
 		return this.meter(new Metadata(name, MetricType.METERED));
 	}
 
@@ -120,6 +557,10 @@ public final class MetricRegistryImpl extends MetricRegistry {
 	@Override
 	public Timer timer(final String name) {
 		requireNonNull(name, "Timer name cannot be null");
+		final Metric metric = metrics.get(name);
+		if (metric instanceof Timer) {
+			return (Timer) metric;
+		}
 		return timer(new Metadata(name, MetricType.TIMER));
 	}
 
@@ -129,12 +570,82 @@ public final class MetricRegistryImpl extends MetricRegistry {
 		return getOrAdd(metadata, MetricBuilder.TIMERS);
 	}
 
+	@Override
+	public LongTaskTimer longTaskTimer(final String name) {
+		requireNonNull(name, "Long task timer name cannot be null");
+		final Metric metric = metrics.get(name);
+		if (metric instanceof LongTaskTimer) {
+			return (LongTaskTimer) metric;
+		}
+		return longTaskTimer(new Metadata(name, MetricType.LONG_TASK_TIMER));
+	}
+
+	@Override
+	public LongTaskTimer longTaskTimer(final Metadata metadata) {
+		requireNonNull(metadata, "Long task timer metadata cannot be null");
+		return getOrAdd(metadata, MetricBuilder.LONG_TASK_TIMERS);
+	}
+
+	@Override
+	public SettableGauge settableGauge(final String name) {
+		requireNonNull(name, "Gauge name cannot be null");
+		final Metric metric = metrics.get(name);
+		if (metric instanceof SettableGauge) {
+			return (SettableGauge) metric;
+		}
+		return settableGauge(new Metadata(name, MetricType.GAUGE));
+	}
+
+	@Override
+	public SettableGauge settableGauge(final Metadata metadata) {
+		requireNonNull(metadata, "Gauge metadata cannot be null");
+		return getOrAdd(metadata, MetricBuilder.SETTABLE_GAUGES);
+	}
+
+	@Override
+	public MetricFamily<Counter> counterFamily(final Metadata metadata, final String... labelNames) {
+		requireNonNull(metadata, "Counter family metadata cannot be null");
+		return getOrAddFamily(metadata, Counter.class, MetricBuilder.COUNTERS, labelNames);
+	}
+
+	@Override
+	public MetricFamily<SettableGauge> settableGaugeFamily(final Metadata metadata, final String... labelNames) {
+		requireNonNull(metadata, "Gauge family metadata cannot be null");
+		return getOrAddFamily(metadata, SettableGauge.class, MetricBuilder.SETTABLE_GAUGES, labelNames);
+	}
+
+	@Override
+	public MetricFamily<Histogram> histogramFamily(final Metadata metadata, final String... labelNames) {
+		requireNonNull(metadata, "Histogram family metadata cannot be null");
+		return getOrAddFamily(metadata, Histogram.class, MetricBuilder.HISTOGRAMS, labelNames);
+	}
+
+	@Override
+	public MetricFamily<Meter> meterFamily(final Metadata metadata, final String... labelNames) {
+		requireNonNull(metadata, "Meter family metadata cannot be null");
+		return getOrAddFamily(metadata, Meter.class, MetricBuilder.METERS, labelNames);
+	}
+
+	@Override
+	public MetricFamily<Timer> timerFamily(final Metadata metadata, final String... labelNames) {
+		requireNonNull(metadata, "Timer family metadata cannot be null");
+		return getOrAddFamily(metadata, Timer.class, MetricBuilder.TIMERS, labelNames);
+	}
+
 	@Override
 	public boolean remove(final String name) {
 		requireNonNull(name, "Metric name cannot be null");
-		final Metric metric = metrics.remove(name);
-		metadata.remove(name);
-		return metric != null;
+		final Metric metric;
+		synchronized (changes) {
+			metric = metrics.remove(name);
+			if (metric == null) {
+				return false;
+			}
+			changed(MetricRegistryEvent.Type.REMOVED, name, metric, metadata.remove(name));
+		}
+		deliver();
+		release(metric);
+		return true;
 	}
 
 	@Override
@@ -144,16 +655,142 @@ public final class MetricRegistryImpl extends MetricRegistry {
 		while (iterator.hasNext()) {
 			final Map.Entry<String, Metric> entry = iterator.next();
 			if (filter.matches(entry.getKey(), entry.getValue())) {
-				metadata.remove(entry.getKey());
-				iterator.remove();
+				synchronized (changes) {
+					// skip metrics replaced or removed since they were iterated
+					if (!metrics.remove(entry.getKey(), entry.getValue())) {
+						continue;
+					}
+					changed(MetricRegistryEvent.Type.REMOVED, entry.getKey(), entry.getValue(),
+							metadata.remove(entry.getKey()));
+				}
+				deliver();
+				release(entry.getValue());
+			}
+		}
+	}
+
+	@Override
+	public boolean updateTags(final String name, final Map<String, String> tags) {
+		requireNonNull(name, "Metric name cannot be null");
+		requireNonNull(tags, "Tags cannot be null");
+		synchronized (changes) {
+			final Metric metric = metrics.get(name);
+			final Metadata registered = metadata.get(name);
+			if (metric == null || registered == null) {
+				return false;
+			}
+			// a new copy, so the metadata handed out before keeps its tags
+			final Metadata updated = registered.withTags(tags);
+			metadata.put(name, updated);
+			changed(MetricRegistryEvent.Type.METADATA_CHANGED, name, metric, updated);
+		}
+		deliver();
+		return true;
+	}
+
+	@Override
+	@Reference(cardinality = ReferenceCardinality.MULTIPLE, policy = ReferencePolicy.DYNAMIC)
+	public void addListener(final MetricRegistryListener listener) {
+		requireNonNull(listener, "Listener cannot be null");
+		synchronized (changes) {
+			// the listener catches up on the metrics at the current version through
+			// the queue, and only gets the events of later changes after that
+			final Subscription subscription = new Subscription(listener, version.get());
+			// listeners bound before activation have nothing to catch up on
+			if (metrics != null) {
+				for (final Map.Entry<String, Metric> entry : metrics.entrySet()) {
+					pending.add(new Delivery(new MetricRegistryEvent(MetricRegistryEvent.Type.ADDED, entry.getKey(),
+							entry.getValue(), metadata.get(entry.getKey()), subscription.since), subscription));
+				}
 			}
+			subscriptions.add(subscription);
+		}
+		deliver();
+	}
+
+	@Override
+	public void removeListener(final MetricRegistryListener listener) {
+		for (final Subscription subscription : subscriptions) {
+			if (subscription.listener.equals(listener)) {
+				subscription.removed = true;
+				subscriptions.remove(subscription);
+			}
+		}
+	}
+
+	@Override
+	public long getVersion() {
+		return version.get();
+	}
+
+	/*
+	 * Stops counting a removed metric against the series limits, bumps the
+	 * versions and queues the event for the listeners. Callers must hold the
+	 * changes lock and deliver the queued events once they released it.
+	 */
+	private void changed(final MetricRegistryEvent.Type type, final String name, final Metric metric,
+			final Metadata metadata) {
+		if (type == MetricRegistryEvent.Type.ADDED) {
+			membership.incrementAndGet();
+		} else if (type == MetricRegistryEvent.Type.REMOVED) {
+			if (isSeries(name, metric)) {
+				limiter.removed(name);
+			}
+			membership.incrementAndGet();
+		}
+		final long current = version.incrementAndGet();
+		if (!subscriptions.isEmpty()) {
+			pending.add(new Delivery(new MetricRegistryEvent(type, name, metric, metadata, current), null));
+		}
+	}
+
+	/*
+	 * Delivers the queued events, unless another thread is delivering them
+	 * already. Events are delivered one at a time, in the order they were queued;
+	 * an event queued by a listener is delivered once it returned.
+	 */
+	private void deliver() {
+		while (!pending.isEmpty() && delivering.compareAndSet(false, true)) {
+			try {
+				Delivery delivery;
+				while ((delivery = pending.poll()) != null) {
+					if (delivery.target != null) {
+						notify(delivery.target, delivery.event);
+					} else {
+						for (final Subscription subscription : subscriptions) {
+							// skip the changes a new listener caught up on already
+							if (delivery.event.getVersion() > subscription.since) {
+								notify(subscription, delivery.event);
+							}
+						}
+					}
+				}
+			} finally {
+				delivering.set(false);
+			}
+		}
+	}
+
+	private void notify(final Subscription subscription, final MetricRegistryEvent event) {
+		if (subscription.removed) {
+			return;
+		}
+		try {
+			subscription.listener.registryChanged(event);
+		} catch (final RuntimeException e) {
+			logger.warn("Listener {} failed on {}.", subscription.listener, event, e);
+		}
+	}
+
+	private static void release(final Metric metric) {
+		if (metric instanceof ArenaMetric) {
+			((ArenaMetric) metric).release();
 		}
 	}
 
 	@Override
 	public SortedSet<String> getNames() {
-		return (SortedSet<String>) Collections.unmodifiableSortedSet((SortedSet<?>) metrics.keySet());
-//		return ImmutableSortedSet.copyOf(metrics.keySet());
+		return index().names;
 	}
 
 	@Override
@@ -211,34 +848,169 @@ public final class MetricRegistryImpl extends MetricRegistry {
 		return getMetrics(Timer.class, filter);
 	}
 
+	@Override
+	public SortedMap<String, LongTaskTimer> getLongTaskTimers() {
+		return getLongTaskTimers(MetricFilter.ALL);
+	}
+
+	@Override
+	public SortedMap<String, LongTaskTimer> getLongTaskTimers(final MetricFilter filter) {
+		requireNonNull(filter, FILTER_NON_NULL);
+		return getMetrics(LongTaskTimer.class, filter);
+	}
+
+	/*
+	 * Returns the metric with the name of the given metadata, creating it if it
+	 * does not exist yet. The series of a new metric is reserved before it is
+	 * created, so a flood of rejected series does not create metrics only to drop
+	 * them, and concurrent getters cannot exceed the limits.
+	 */
 	@SuppressWarnings("unchecked")
 	private <T extends Metric> T getOrAdd(final Metadata metadata, final MetricBuilder<T> builder) {
-		final Metric metric = metrics.get(metadata.getName());
+		final String name = metadata.getName();
+		final Metric metric = metrics.get(name);
 		if (builder.isInstance(metric)) {
 			return (T) metric;
 		} else if (metric == null) {
-			try {
-				return register(metadata.getName(), builder.newMetric(), metadata);
-			} catch (final IllegalArgumentException e) {
-				final Metric added = metrics.get(metadata.getName());
-				if (builder.isInstance(added)) {
-					return (T) added;
-				}
+			final boolean counted = !name.startsWith(SERIES_METRICS);
+			final SeriesBudget budget = counted ? limiter.budgetFor(name) : SeriesBudget.UNLIMITED;
+			if (!budget.reserve()) {
+				return overflow(builder);
+			}
+			final T created = builder.newMetric(this, metadata);
+			final Metric added = register(name, created, metadata, counted);
+			if (added != created) {
+				// lost the race against another thread registering the name
+				release(created);
+				budget.release(1);
+			}
+			if (builder.isInstance(added)) {
+				return (T) added;
+			}
+		}
+		throw new IllegalArgumentException(name + " is already used for a different type of metric");
+	}
+
+	/*
+	 * Counts a rejected series and returns the overflow metric of its type.
+	 */
+	private <T extends Metric> T overflow(final MetricBuilder<T> builder) {
+		getOrAddUnlimited(SERIES_REJECTED, MetricBuilder.COUNTERS).inc();
+		return getOrAddUnlimited(SERIES_OVERFLOW + builder.type().toString(), builder);
+	}
+
+	/*
+	 * Returns one of the metrics the registry keeps about itself, which are not
+	 * counted against the series limits.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T extends Metric> T getOrAddUnlimited(final String name, final MetricBuilder<T> builder) {
+		final Metric metric = metrics.get(name);
+		if (builder.isInstance(metric)) {
+			return (T) metric;
+		}
+		return getOrAdd(new Metadata(name, builder.type()), builder);
+	}
+
+	/*
+	 * Returns whether the metric registered under the given name counts against
+	 * the series limits: families count their children instead, and the metrics
+	 * about the limits themselves are not counted.
+	 */
+	private static boolean isSeries(final String name, final Metric metric) {
+		return !name.startsWith(SERIES_METRICS) && !(metric instanceof MetricFamily);
+	}
+
+	private <T extends Metric> MetricFamily<T> getOrAddFamily(final Metadata metadata, final Class<T> type,
+			final MetricBuilder<T> builder, final String... labelNames) {
+		requireNonNull(labelNames, "Label names cannot be null");
+		final String name = metadata.getName();
+		final AtomicBoolean warned = new AtomicBoolean();
+		final Runnable overflowed = () -> {
+			limiter.familyFull(name, warned);
+			getOrAddUnlimited(SERIES_REJECTED, MetricBuilder.COUNTERS).inc();
+		};
+		return getOrAddFamily(metadata,
+				registered -> new MetricFamilyImpl<>(type, () -> builder.newMetric(this, registered),
+						limiter.getMaxFamilySeries(), limiter.budgetFor(name), overflowed, labelNames),
+				metric -> metric instanceof MetricFamilyImpl
+						&& ((MetricFamilyImpl<?>) metric).isFamilyOf(type, labelNames));
+	}
+
+	@Override
+	public <T extends Metric> IndexedMetricFamily<T> indexedFamily(final Metadata metadata, final Class<T> type,
+			final String labelName, final String... labelValues) {
+		requireNonNull(metadata, "Indexed family metadata cannot be null");
+		requireNonNull(labelValues, "Label values cannot be null");
+		final MetricBuilder<T> builder = MetricBuilder.of(type);
+		return getOrAddFamily(metadata,
+				registered -> new IndexedMetricFamilyImpl<>(type, () -> builder.newMetric(this, registered),
+						labelName, labelValues),
+				metric -> metric instanceof IndexedMetricFamilyImpl
+						&& ((IndexedMetricFamilyImpl<?>) metric).isFamilyOf(type, labelName, labelValues));
+	}
+
+	/*
+	 * Returns the family with the name of the given metadata, creating it if it
+	 * does not exist yet. A new family gets the immutable copy of the metadata
+	 * which is registered with it, and creates its children from that copy, so
+	 * they can still be created after the family was removed.
+	 */
+	@SuppressWarnings("unchecked")
+	private <F extends Metric> F getOrAddFamily(final Metadata metadata, final Function<Metadata, F> newFamily,
+			final Predicate<Metric> matches) {
+		final String name = metadata.getName();
+		Metric metric = metrics.get(name);
+		if (metric == null) {
+			final Metadata registered = metadata.toImmutable();
+			final F family = newFamily.apply(registered);
+			metric = register(name, family, registered, false);
+			if (metric != family) {
+				// lost the race against another thread registering the name
+				release(family);
 			}
 		}
-		throw new IllegalArgumentException(metadata.getName() + " is already used for a different type of metric");
+		if (matches.test(metric)) {
+			return (F) metric;
+		}
+		throw new IllegalArgumentException(
+				name + " is already used for a different type of metric or with different labels");
 	}
 
 	@SuppressWarnings("unchecked")
 	private <T extends Metric> SortedMap<String, T> getMetrics(final Class<T> clazz, final MetricFilter filter) {
-		final TreeMap<String, T> timers = new TreeMap<>();
-		for (final Map.Entry<String, Metric> entry : metrics.entrySet()) {
-			if (clazz.isInstance(entry.getValue()) && filter.matches(entry.getKey(), entry.getValue())) {
-				timers.put(entry.getKey(), (T) entry.getValue());
+		final SortedMap<String, Metric> partition = index().partition(clazz);
+		if (filter == MetricFilter.ALL) {
+			return (SortedMap<String, T>) partition;
+		}
+		final TreeMap<String, T> matching = new TreeMap<>();
+		for (final Map.Entry<String, Metric> entry : partition.entrySet()) {
+			if (filter.matches(entry.getKey(), entry.getValue())) {
+				matching.put(entry.getKey(), (T) entry.getValue());
 			}
 		}
 
-		return (SortedMap<String, T>) Collections.unmodifiableMap(timers);
+		return Collections.unmodifiableSortedMap(matching);
+	}
+
+	/*
+	 * Returns the index of the current version of the registry, rebuilding it if
+	 * metrics were registered or removed since it was last built.
+	 */
+	private RegistryIndex index() {
+		RegistryIndex current = index;
+		if (current == null || current.version != membership.get()) {
+			synchronized (membership) {
+				current = index;
+				final long latest = membership.get();
+				if (current == null || current.version != latest) {
+					// changes after reading the version are caught by the next read
+					current = new RegistryIndex(latest, metrics);
+					index = current;
+				}
+			}
+		}
+		return current;
 	}
 
 	@Override
@@ -255,61 +1027,209 @@ public final class MetricRegistryImpl extends MetricRegistry {
 		return metadata.get(name);
 	}
 
+	/**
+	 * A listener and the version of the registry when it was added.
+	 */
+	private static final class Subscription {
+		private final MetricRegistryListener listener;
+		private final long since;
+		private volatile boolean removed;
+
+		private Subscription(final MetricRegistryListener listener, final long since) {
+			this.listener = listener;
+			this.since = since;
+		}
+	}
+
+	/**
+	 * A queued event, for all listeners or only the one catching up.
+	 */
+	private static final class Delivery {
+		private final MetricRegistryEvent event;
+		private final Subscription target;
+
+		private Delivery(final MetricRegistryEvent event, final Subscription target) {
+			this.event = event;
+			this.target = target;
+		}
+	}
+
+	/**
+	 * An immutable, sorted view of the metrics of the registry at one version of
+	 * its membership, partitioned by the types the getters return. Readers share
+	 * the view until the next registration or removal; changes of tags keep it.
+	 */
+	private static final class RegistryIndex {
+		private static final Class<?>[] TYPES = { Gauge.class, Counter.class, Histogram.class, Meter.class,
+				Timer.class, LongTaskTimer.class };
+
+		private final long version;
+		private final TreeMap<String, Metric> sorted;
+		private final SortedSet<String> names;
+		private final Map<Class<?>, SortedMap<String, Metric>> partitions = new HashMap<>();
+
+		private RegistryIndex(final long version, final Map<String, Metric> metrics) {
+			this.version = version;
+			sorted = new TreeMap<>(metrics);
+			names = Collections.unmodifiableSortedSet(sorted.navigableKeySet());
+			for (final Class<?> type : TYPES) {
+				partitions.put(type, partitionOf(type));
+			}
+		}
+
+		private SortedMap<String, Metric> partition(final Class<?> type) {
+			final SortedMap<String, Metric> partition = partitions.get(type);
+			return partition != null ? partition : partitionOf(type);
+		}
+
+		private SortedMap<String, Metric> partitionOf(final Class<?> type) {
+			final TreeMap<String, Metric> partition = new TreeMap<>();
+			for (final Map.Entry<String, Metric> entry : sorted.entrySet()) {
+				if (type.isInstance(entry.getValue())) {
+					partition.put(entry.getKey(), entry.getValue());
+				}
+			}
+			return Collections.unmodifiableSortedMap(partition);
+		}
+	}
+
 	/**
 	 * A quick and easy way of capturing the notion of default metrics.
 	 */
 	private interface MetricBuilder<T extends Metric> {
 		MetricBuilder<Counter> COUNTERS = new MetricBuilder<Counter>() {
 			@Override
-			public Counter newMetric() {
-				return new CounterImpl();
+			public Counter newMetric(final MetricRegistryImpl registry, final Metadata metadata) {
+				return registry.newCounter();
 			}
 
 			@Override
 			public boolean isInstance(final Metric metric) {
 				return Counter.class.isInstance(metric);
 			}
+
+			@Override
+			public MetricType type() {
+				return MetricType.COUNTER;
+			}
 		};
 
 		MetricBuilder<Histogram> HISTOGRAMS = new MetricBuilder<Histogram>() {
 			@Override
-			public Histogram newMetric() {
-				return new HistogramImpl(new ExponentiallyDecayingReservoir());
+			public Histogram newMetric(final MetricRegistryImpl registry, final Metadata metadata) {
+				return new HistogramImpl(registry.newReservoir(), registry.bucketsFor(metadata, MetricType.HISTOGRAM),
+						registry.sampleRateFor(metadata), registry.arena);
 			}
 
 			@Override
 			public boolean isInstance(final Metric metric) {
 				return Histogram.class.isInstance(metric);
 			}
+
+			@Override
+			public MetricType type() {
+				return MetricType.HISTOGRAM;
+			}
 		};
 
 		MetricBuilder<Meter> METERS = new MetricBuilder<Meter>() {
 			@Override
-			public Meter newMetric() {
-				return new MeterImpl();
+			public Meter newMetric(final MetricRegistryImpl registry, final Metadata metadata) {
+				return registry.newMeter();
 			}
 
 			@Override
 			public boolean isInstance(final Metric metric) {
 				return Meter.class.isInstance(metric);
 			}
+
+			@Override
+			public MetricType type() {
+				return MetricType.METERED;
+			}
 		};
 
 		MetricBuilder<Timer> TIMERS = new MetricBuilder<Timer>() {
 			@Override
-			public Timer newMetric() {
-				return new TimerImpl();
+			public Timer newMetric(final MetricRegistryImpl registry, final Metadata metadata) {
+				return new TimerImpl(registry.newReservoir(), registry.bucketsFor(metadata, MetricType.TIMER),
+						metadata.getExpectedInterval(), registry.sampleRateFor(metadata), registry.newMeter(),
+						registry.clock, registry.arena);
 			}
 
 			@Override
 			public boolean isInstance(final Metric metric) {
 				return Timer.class.isInstance(metric);
 			}
+
+			@Override
+			public MetricType type() {
+				return MetricType.TIMER;
+			}
+		};
+
+		MetricBuilder<LongTaskTimer> LONG_TASK_TIMERS = new MetricBuilder<LongTaskTimer>() {
+			@Override
+			public LongTaskTimer newMetric(final MetricRegistryImpl registry, final Metadata metadata) {
+				return new LongTaskTimerImpl(registry.clock);
+			}
+
+			@Override
+			public boolean isInstance(final Metric metric) {
+				return LongTaskTimer.class.isInstance(metric);
+			}
+
+			@Override
+			public MetricType type() {
+				return MetricType.LONG_TASK_TIMER;
+			}
+		};
+
+		MetricBuilder<SettableGauge> SETTABLE_GAUGES = new MetricBuilder<SettableGauge>() {
+			@Override
+			public SettableGauge newMetric(final MetricRegistryImpl registry, final Metadata metadata) {
+				return registry.newSettableGauge();
+			}
+
+			@Override
+			public boolean isInstance(final Metric metric) {
+				return SettableGauge.class.isInstance(metric);
+			}
+
+			@Override
+			public MetricType type() {
+				return MetricType.GAUGE;
+			}
 		};
 
-		T newMetric();
+		/**
+		 * Returns the builder of the metrics of the given type, one of the types a
+		 * family can hold.
+		 */
+		@SuppressWarnings("unchecked")
+		static <T extends Metric> MetricBuilder<T> of(final Class<T> type) {
+			final MetricBuilder<?> builder;
+			if (type == Counter.class) {
+				builder = COUNTERS;
+			} else if (type == SettableGauge.class) {
+				builder = SETTABLE_GAUGES;
+			} else if (type == Histogram.class) {
+				builder = HISTOGRAMS;
+			} else if (type == Meter.class) {
+				builder = METERS;
+			} else if (type == Timer.class) {
+				builder = TIMERS;
+			} else {
+				throw new IllegalArgumentException("Unsupported family type: " + type);
+			}
+			return (MetricBuilder<T>) builder;
+		}
+
+		T newMetric(MetricRegistryImpl registry, Metadata metadata);
 
 		boolean isInstance(Metric metric);
+
+		MetricType type();
 	}
 
 }
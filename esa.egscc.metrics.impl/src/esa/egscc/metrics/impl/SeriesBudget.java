@@ -0,0 +1,36 @@
+package esa.egscc.metrics.impl;
+
+/**
+ * The series limits a new series counts against, as handed out by a
+ * {@link SeriesLimiter} for a metric name.
+ */
+interface SeriesBudget {
+	/** A budget without limits, which counts nothing. */
+	SeriesBudget UNLIMITED = new SeriesBudget() {
+		@Override
+		public boolean reserve() {
+			return true;
+		}
+
+		@Override
+		public void release(final int series) {
+		}
+	};
+
+	/**
+	 * Atomically counts one more series against all limits, unless one of them is
+	 * reached.
+	 *
+	 * @return {@code true} if the series was counted, {@code false} if it was
+	 *         rejected and nothing was counted
+	 */
+	boolean reserve();
+
+	/**
+	 * Stops counting series reserved before.
+	 *
+	 * @param series
+	 *            the number of series
+	 */
+	void release(int series);
+}
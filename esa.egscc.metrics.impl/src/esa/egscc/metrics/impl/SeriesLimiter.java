@@ -0,0 +1,187 @@
+package esa.egscc.metrics.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounds the number of series a {@link MetricRegistryImpl} creates: in total,
+ * per name prefix and per labeled metric family. The registry reserves a
+ * series before it creates a metric or a family child, and redirects the
+ * rejected ones to an overflow metric. Each limit logs a warning the first time
+ * it is hit only, so a flood of rejections costs a few comparisons each.
+ * <p>
+ * A reservation increments the count of every limit the name falls under by
+ * compare-and-swap, and rolls the increments back if one of them is reached,
+ * so concurrent reservations never exceed a limit. Metrics registered
+ * explicitly are counted without being checked, and the overflow metrics of
+ * the registry itself are not counted at all. The registry stops counting a
+ * series only when it was actually removed.
+ */
+final class SeriesLimiter {
+	private final Logger logger = LoggerFactory.getLogger(SeriesLimiter.class);
+
+	// null if the registry has no limit
+	private final Limit total;
+	private final Limit[] prefixLimits;
+	private final int maxFamilySeries;
+
+	/**
+	 * Creates a new {@link SeriesLimiter}.
+	 *
+	 * @param maxSeries
+	 *            the maximum number of series in the registry, or 0 for no limit
+	 * @param prefixLimits
+	 *            the maximum number of series whose name starts with a prefix,
+	 *            by prefix
+	 * @param maxFamilySeries
+	 *            the maximum number of children of a labeled family, or 0 for no
+	 *            limit
+	 */
+	SeriesLimiter(final int maxSeries, final Map<String, Integer> prefixLimits, final int maxFamilySeries) {
+		total = maxSeries > 0 ? new Limit("the registry", "", maxSeries) : null;
+		this.prefixLimits = prefixLimits.entrySet().stream()
+				.map(limit -> new Limit("prefix " + limit.getKey(), limit.getKey(), limit.getValue()))
+				.toArray(Limit[]::new);
+		this.maxFamilySeries = maxFamilySeries;
+	}
+
+	/**
+	 * Returns the limits the series of the given name count against, for the
+	 * metric itself or for the children of a family of that name.
+	 *
+	 * @param name
+	 *            the name of the metric or family
+	 * @return the budget of the name
+	 */
+	SeriesBudget budgetFor(final String name) {
+		final List<Limit> limits = new ArrayList<>();
+		if (total != null) {
+			limits.add(total);
+		}
+		for (final Limit limit : prefixLimits) {
+			if (name.startsWith(limit.prefix)) {
+				limits.add(limit);
+			}
+		}
+		return limits.isEmpty() ? SeriesBudget.UNLIMITED : new Budget(limits.toArray(new Limit[0]));
+	}
+
+	/**
+	 * Counts a metric registered explicitly, which is never rejected.
+	 *
+	 * @param name
+	 *            the name of the metric
+	 */
+	void added(final String name) {
+		if (total != null) {
+			total.count.incrementAndGet();
+		}
+		for (final Limit limit : prefixLimits) {
+			if (name.startsWith(limit.prefix)) {
+				limit.count.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Stops counting a removed metric.
+	 *
+	 * @param name
+	 *            the name of the metric
+	 */
+	void removed(final String name) {
+		budgetFor(name).release(1);
+	}
+
+	/**
+	 * Returns the maximum number of children of a labeled family.
+	 *
+	 * @return the limit, or 0 for no limit
+	 */
+	int getMaxFamilySeries() {
+		return maxFamilySeries;
+	}
+
+	/**
+	 * Warns that a family reached its limit, unless it has been warned about
+	 * already.
+	 *
+	 * @param family
+	 *            the name of the family
+	 * @param warned
+	 *            whether the family has been warned about
+	 */
+	void familyFull(final String family, final AtomicBoolean warned) {
+		warnOnce(warned, "family " + family, maxFamilySeries);
+	}
+
+	private void warnOnce(final AtomicBoolean warned, final String scope, final int max) {
+		if (!warned.get() && warned.compareAndSet(false, true)) {
+			logger.warn("Reached the limit of {} series for {}, redirecting new series to overflow metrics.", max,
+					scope);
+		}
+	}
+
+	/**
+	 * The limits a name falls under.
+	 */
+	private final class Budget implements SeriesBudget {
+		private final Limit[] limits;
+
+		private Budget(final Limit[] limits) {
+			this.limits = limits;
+		}
+
+		@Override
+		public boolean reserve() {
+			for (int i = 0; i < limits.length; i++) {
+				if (!limits[i].acquire()) {
+					for (int j = 0; j < i; j++) {
+						limits[j].count.decrementAndGet();
+					}
+					warnOnce(limits[i].warned, limits[i].scope, limits[i].max);
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public void release(final int series) {
+			for (final Limit limit : limits) {
+				limit.count.addAndGet(-series);
+			}
+		}
+	}
+
+	private static final class Limit {
+		private final String scope;
+		private final String prefix;
+		private final int max;
+		private final AtomicInteger count = new AtomicInteger();
+		private final AtomicBoolean warned = new AtomicBoolean();
+
+		private Limit(final String scope, final String prefix, final int max) {
+			this.scope = scope;
+			this.prefix = prefix;
+			this.max = max;
+		}
+
+		private boolean acquire() {
+			int current;
+			do {
+				current = count.get();
+				if (current >= max) {
+					return false;
+				}
+			} while (!count.compareAndSet(current, current + 1));
+			return true;
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package esa.egscc.metrics.impl;
+
+import esa.egscc.metrics.api.SettableGauge;
+
+/**
+ * A gauge whose value is set by the instrumented code.
+ */
+public class SettableGaugeImpl implements SettableGauge {
+	private volatile long value;
+
+	@Override
+	public void set(final long value) {
+		this.value = value;
+	}
+
+	@Override
+	public Long getValue() {
+		return value;
+	}
+}
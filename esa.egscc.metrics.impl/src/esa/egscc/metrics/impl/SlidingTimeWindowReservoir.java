@@ -0,0 +1,216 @@
+package esa.egscc.metrics.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import esa.egscc.metrics.api.Snapshot;
+
+import esa.egscc.metrics.impl.WeightedSnapshot.WeightedSample;
+
+/**
+ * A reservoir of the values recorded within a sliding window of time. The
+ * window is covered by a ring of fixed-duration chunks; a chunk is reused as
+ * soon as it falls out of the window, so whole chunks expire in constant time
+ * and the reservoir never has to evict single values.
+ * <p>
+ * Every chunk keeps at most a fixed number of values in primitive arrays. Once a
+ * chunk is full, further values replace random ones so that the chunk stays a
+ * uniform sample of its period, and the snapshot weights each chunk by the
+ * number of values it has seen. Recording is lock-free and never allocates.
+ */
+public class SlidingTimeWindowReservoir implements Reservoir {
+	private static final long DEFAULT_CHUNK_DURATION = TimeUnit.SECONDS.toNanos(1);
+	private static final int DEFAULT_CHUNK_CAPACITY = 128;
+
+	// a chunk's state packs its epoch and the number of values it has seen
+	private static final int SEEN_BITS = 31;
+	private static final long SEEN_MASK = (1L << SEEN_BITS) - 1;
+
+	private final Clock clock;
+	private final long startTick;
+	private final long chunkDuration;
+	private final int chunkCapacity;
+	private final long chunksPerWindow;
+	private final Chunk[] chunks;
+
+	/**
+	 * Creates a new {@link SlidingTimeWindowReservoir} with chunks of one second
+	 * holding up to 128 values each.
+	 *
+	 * @param window
+	 *            the length of the window
+	 * @param windowUnit
+	 *            the unit of {@code window}
+	 */
+	public SlidingTimeWindowReservoir(final long window, final TimeUnit windowUnit) {
+		this(window, windowUnit, Math.min(windowUnit.toNanos(window), DEFAULT_CHUNK_DURATION), TimeUnit.NANOSECONDS,
+				DEFAULT_CHUNK_CAPACITY);
+	}
+
+	/**
+	 * Creates a new {@link SlidingTimeWindowReservoir} with chunks of one second
+	 * holding up to 128 values each, using the given clock.
+	 *
+	 * @param window
+	 *            the length of the window
+	 * @param windowUnit
+	 *            the unit of {@code window}
+	 * @param clock
+	 *            the clock used to assign values to chunks
+	 */
+	public SlidingTimeWindowReservoir(final long window, final TimeUnit windowUnit, final Clock clock) {
+		this(window, windowUnit, Math.min(windowUnit.toNanos(window), DEFAULT_CHUNK_DURATION), TimeUnit.NANOSECONDS,
+				DEFAULT_CHUNK_CAPACITY, clock);
+	}
+
+	/**
+	 * Creates a new {@link SlidingTimeWindowReservoir}.
+	 *
+	 * @param window
+	 *            the length of the window
+	 * @param windowUnit
+	 *            the unit of {@code window}
+	 * @param chunkDuration
+	 *            the period covered by one chunk; the window is rounded up to a
+	 *            multiple of it
+	 * @param chunkUnit
+	 *            the unit of {@code chunkDuration}
+	 * @param chunkCapacity
+	 *            the maximum number of values kept per chunk
+	 */
+	public SlidingTimeWindowReservoir(final long window, final TimeUnit windowUnit, final long chunkDuration,
+			final TimeUnit chunkUnit, final int chunkCapacity) {
+		this(window, windowUnit, chunkDuration, chunkUnit, chunkCapacity, Clock.defaultClock());
+	}
+
+	/**
+	 * Creates a new {@link SlidingTimeWindowReservoir}.
+	 *
+	 * @param window
+	 *            the length of the window
+	 * @param windowUnit
+	 *            the unit of {@code window}
+	 * @param chunkDuration
+	 *            the period covered by one chunk; the window is rounded up to a
+	 *            multiple of it
+	 * @param chunkUnit
+	 *            the unit of {@code chunkDuration}
+	 * @param chunkCapacity
+	 *            the maximum number of values kept per chunk
+	 * @param clock
+	 *            the clock used to assign values to chunks
+	 */
+	public SlidingTimeWindowReservoir(final long window, final TimeUnit windowUnit, final long chunkDuration,
+			final TimeUnit chunkUnit, final int chunkCapacity, final Clock clock) {
+		this.chunkDuration = chunkUnit.toNanos(chunkDuration);
+		if (this.chunkDuration <= 0 || windowUnit.toNanos(window) <= 0) {
+			throw new IllegalArgumentException("Window and chunk duration must be positive");
+		}
+		if (chunkCapacity <= 0) {
+			throw new IllegalArgumentException("Chunk capacity must be positive: " + chunkCapacity);
+		}
+		this.chunkCapacity = chunkCapacity;
+		this.clock = clock;
+		chunksPerWindow = (windowUnit.toNanos(window) + this.chunkDuration - 1) / this.chunkDuration;
+		// one spare chunk, so the chunk being reset is never one still in the window
+		chunks = new Chunk[(int) chunksPerWindow + 1];
+		for (int i = 0; i < chunks.length; i++) {
+			chunks[i] = new Chunk(chunkCapacity);
+		}
+		startTick = clock.getTick();
+	}
+
+	@Override
+	public int size() {
+		final long epoch = currentEpoch();
+		long size = 0;
+		for (final Chunk chunk : chunks) {
+			final long state = chunk.state.get();
+			if (isLive(state >>> SEEN_BITS, epoch)) {
+				size += Math.min(state & SEEN_MASK, chunkCapacity);
+			}
+		}
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public void update(final long value) {
+		final long epoch = currentEpoch();
+		final Chunk chunk = chunks[(int) (epoch % chunks.length)];
+		long state;
+		long seen;
+		do {
+			state = chunk.state.get();
+			final long chunkEpoch = state >>> SEEN_BITS;
+			if (chunkEpoch > epoch) {
+				// time moved on while this thread was descheduled
+				return;
+			}
+			seen = chunkEpoch == epoch ? state & SEEN_MASK : 0;
+		} while (!chunk.state.compareAndSet(state, (epoch << SEEN_BITS) | Math.min(seen + 1, SEEN_MASK)));
+
+		final long slot = seen < chunkCapacity ? seen : ThreadLocalRandom.current().nextLong(seen + 1);
+		if (slot < chunkCapacity) {
+			chunk.values.set((int) slot, value);
+			chunk.epochs.set((int) slot, epoch);
+		}
+	}
+
+	@Override
+	public Snapshot getSnapshot() {
+		final long epoch = currentEpoch();
+		final List<WeightedSample> samples = new ArrayList<>();
+		final long[] values = new long[chunkCapacity];
+		for (final Chunk chunk : chunks) {
+			final long state = chunk.state.get();
+			final long chunkEpoch = state >>> SEEN_BITS;
+			if (!isLive(chunkEpoch, epoch)) {
+				continue;
+			}
+			final long seen = state & SEEN_MASK;
+			int kept = 0;
+			for (int i = 0; i < Math.min(seen, chunkCapacity); i++) {
+				if (chunk.epochs.get(i) == chunkEpoch) {
+					values[kept++] = chunk.values.get(i);
+				}
+			}
+			// the values kept by a full chunk stand for all the values it has seen
+			final double weight = kept == 0 ? 0 : (double) seen / kept;
+			for (int i = 0; i < kept; i++) {
+				samples.add(new WeightedSample(values[i], weight));
+			}
+		}
+		return new WeightedSnapshot(samples);
+	}
+
+	private long currentEpoch() {
+		return (clock.getTick() - startTick) / chunkDuration;
+	}
+
+	private boolean isLive(final long chunkEpoch, final long epoch) {
+		return chunkEpoch <= epoch && chunkEpoch > epoch - chunksPerWindow;
+	}
+
+	/**
+	 * The values recorded in one period of the window. Every slot is stamped with
+	 * the epoch it was written in, so values left over from an earlier use of the
+	 * chunk are never reported.
+	 */
+	private static final class Chunk {
+		private final AtomicLong state = new AtomicLong();
+		private final AtomicLongArray values;
+		private final AtomicLongArray epochs;
+
+		private Chunk(final int capacity) {
+			values = new AtomicLongArray(capacity);
+			epochs = new AtomicLongArray(capacity);
+			for (int i = 0; i < capacity; i++) {
+				epochs.set(i, -1);
+			}
+		}
+	}
+}
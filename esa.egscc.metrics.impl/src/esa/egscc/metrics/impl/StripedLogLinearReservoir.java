@@ -0,0 +1,181 @@
+package esa.egscc.metrics.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import esa.egscc.metrics.api.Snapshot;
+
+/**
+ * A {@link LogLinearReservoir} for histograms updated by many threads at once.
+ * Every thread records into one of a fixed number of stripes, chosen by its
+ * thread id, and every stripe owns a private pair of recorders. Threads mapped
+ * to different stripes therefore never write to the same cache lines.
+ * <p>
+ * Stripes are large: with the default one hour and two significant digits, a
+ * recorder holds 4608 counts, so a stripe takes about 73 KB and the reservoir
+ * another 36 KB for its totals. A stripe is therefore only allocated when the
+ * first thread mapped to it records a value, and the default number of stripes
+ * is capped at eight, so a reservoir updated by a single thread costs about
+ * 110 KB and one updated by many at most about 620 KB, whatever the number of
+ * processors.
+ * <p>
+ * Writers only ever touch the active recorder of their stripe. A snapshot
+ * swaps the active and the inactive recorder of each stripe, waits until no
+ * writer is left in the recorder it swapped out, and folds that recorder into
+ * the running totals of the reservoir. The handshake is a writer-reader phaser:
+ * writers enter and leave a critical section with one atomic increment each
+ * and never wait, while the reader pays for the swap and the merge once per
+ * snapshot.
+ *
+ * @see <a href=
+ *      "http://stuff-gil-says.blogspot.com/2014/11/writerreaderphaser-story-about-new.html">WriterReaderPhaser</a>
+ */
+public class StripedLogLinearReservoir implements Reservoir {
+	private static final long DEFAULT_HIGHEST_TRACKABLE_VALUE = TimeUnit.HOURS.toNanos(1);
+	private static final int DEFAULT_SIGNIFICANT_DIGITS = 2;
+	private static final int MAX_DEFAULT_STRIPES = 8;
+
+	private final LogLinearBuckets buckets;
+	// allocated when first used
+	private final AtomicReferenceArray<Stripe> stripes;
+	private final int mask;
+
+	// guarded by this; only touched by readers
+	private final long[] totals;
+	private long min = Long.MAX_VALUE;
+	private long max = Long.MIN_VALUE;
+
+	/**
+	 * Creates a new {@link StripedLogLinearReservoir} which tracks values up to
+	 * one hour in nanoseconds with two significant digits, using one stripe per
+	 * available processor, but no more than eight.
+	 */
+	public StripedLogLinearReservoir() {
+		this(DEFAULT_HIGHEST_TRACKABLE_VALUE, DEFAULT_SIGNIFICANT_DIGITS,
+				Math.min(Runtime.getRuntime().availableProcessors(), MAX_DEFAULT_STRIPES));
+	}
+
+	/**
+	 * Creates a new {@link StripedLogLinearReservoir}.
+	 *
+	 * @param highestTrackableValue
+	 *            the highest value to be tracked; higher values are counted in the
+	 *            highest bucket, but still reported as the exact maximum
+	 * @param significantDigits
+	 *            the number of significant decimal digits to keep, in
+	 *            {@code [0..5]}
+	 * @param stripes
+	 *            the maximum number of stripes, rounded up to a power of two
+	 */
+	public StripedLogLinearReservoir(final long highestTrackableValue, final int significantDigits,
+			final int stripes) {
+		if (stripes <= 0) {
+			throw new IllegalArgumentException("Number of stripes must be positive: " + stripes);
+		}
+		buckets = new LogLinearBuckets(highestTrackableValue, significantDigits);
+		final int length = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+		this.stripes = new AtomicReferenceArray<>(length);
+		mask = length - 1;
+		totals = new long[buckets.length()];
+	}
+
+	@Override
+	public int size() {
+		long size;
+		synchronized (this) {
+			size = 0;
+			for (final long count : totals) {
+				size += count;
+			}
+		}
+		for (int i = 0; i < stripes.length(); i++) {
+			final Stripe stripe = stripes.get(i);
+			if (stripe != null) {
+				size += stripe.active.count();
+			}
+		}
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public void update(final long value) {
+		final Stripe stripe = stripe(stripeIndex());
+		final long epoch = stripe.startEpoch.getAndIncrement();
+		try {
+			stripe.active.record(value);
+		} finally {
+			(epoch < 0 ? stripe.oddEndEpoch : stripe.evenEndEpoch).getAndIncrement();
+		}
+	}
+
+	@Override
+	public synchronized Snapshot getSnapshot() {
+		for (int i = 0; i < stripes.length(); i++) {
+			final Stripe stripe = stripes.get(i);
+			if (stripe == null) {
+				// a stripe allocated meanwhile is drained by the next snapshot
+				continue;
+			}
+			final LogLinearRecorder drained = stripe.swap();
+			drained.addTo(totals);
+			min = Math.min(min, drained.getMin());
+			max = Math.max(max, drained.getMax());
+			drained.reset();
+		}
+		return new LogLinearSnapshot(buckets, totals.clone(), min, max);
+	}
+
+	private Stripe stripe(final int index) {
+		final Stripe stripe = stripes.get(index);
+		if (stripe != null) {
+			return stripe;
+		}
+		final Stripe created = new Stripe(buckets);
+		return stripes.compareAndSet(index, null, created) ? created : stripes.get(index);
+	}
+
+	private int stripeIndex() {
+		// spread sequential thread ids over the stripes
+		final long h = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 32) & mask;
+	}
+
+	/**
+	 * The recorders of one stripe and the phaser guarding their swap. The start
+	 * epoch is positive during even phases and negative during odd ones, so a
+	 * writer knows from the value it entered with which end epoch to increment.
+	 */
+	private static final class Stripe {
+		private final AtomicLong startEpoch = new AtomicLong();
+		private final AtomicLong evenEndEpoch = new AtomicLong();
+		private final AtomicLong oddEndEpoch = new AtomicLong(Long.MIN_VALUE);
+		private volatile LogLinearRecorder active;
+		private LogLinearRecorder inactive;
+
+		private Stripe(final LogLinearBuckets buckets) {
+			active = new LogLinearRecorder(buckets);
+			inactive = new LogLinearRecorder(buckets);
+		}
+
+		/*
+		 * Makes the inactive recorder the active one and returns the previously active
+		 * recorder once no writer is left in it. Callers must hold the reservoir lock.
+		 */
+		private LogLinearRecorder swap() {
+			final LogLinearRecorder drained = active;
+			active = inactive;
+			inactive = drained;
+
+			final boolean nextPhaseIsEven = startEpoch.get() < 0;
+			final long initialStartValue = nextPhaseIsEven ? 0 : Long.MIN_VALUE;
+			(nextPhaseIsEven ? evenEndEpoch : oddEndEpoch).set(initialStartValue);
+			final long startValueAtFlip = startEpoch.getAndSet(initialStartValue);
+			final AtomicLong endEpoch = nextPhaseIsEven ? oddEndEpoch : evenEndEpoch;
+			while (endEpoch.get() != startValueAtFlip) {
+				Thread.yield();
+			}
+			return drained;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package esa.egscc.metrics.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import esa.egscc.metrics.api.Meter;
+
+/**
+ * A meter metric whose moving averages are ticked by a shared
+ * {@link MeterTicker} instead of by the marking threads. Marking an event is a
+ * single striped counter add; the ticker derives the events of the last
+ * interval from the difference of the count to its previous tick.
+ *
+ * @see MeterImpl
+ */
+public class TickedMeterImpl implements Meter {
+	private final EWMA m1Rate = EWMA.oneMinuteEWMA();
+	private final EWMA m5Rate = EWMA.fiveMinuteEWMA();
+	private final EWMA m15Rate = EWMA.fifteenMinuteEWMA();
+
+	private final AdaptiveAdder count = new AdaptiveAdder();
+	private final long startTime;
+	private final Clock clock;
+	// only accessed by the ticker thread
+	private long lastTickCount;
+
+	/**
+	 * Creates a new {@link TickedMeterImpl} and registers it with the given
+	 * ticker.
+	 *
+	 * @param ticker
+	 *            the ticker to tick the moving averages
+	 */
+	public TickedMeterImpl(final MeterTicker ticker) {
+		this(ticker, Clock.defaultClock());
+	}
+
+	/**
+	 * Creates a new {@link TickedMeterImpl} and registers it with the given
+	 * ticker.
+	 *
+	 * @param ticker
+	 *            the ticker to tick the moving averages
+	 * @param clock
+	 *            the clock to use for the mean rate
+	 */
+	public TickedMeterImpl(final MeterTicker ticker, final Clock clock) {
+		this.clock = clock;
+		startTime = clock.getTick();
+		ticker.register(this);
+	}
+
+	/**
+	 * Mark the occurrence of an event.
+	 */
+	@Override
+	public void mark() {
+		count.increment();
+	}
+
+	/**
+	 * Mark the occurrence of a given number of events.
+	 *
+	 * @param n
+	 *            the number of events
+	 */
+	@Override
+	public void mark(final long n) {
+		count.add(n);
+	}
+
+	/**
+	 * Feeds the events since the last tick into the moving averages and decays
+	 * them. Called by the {@link MeterTicker} only.
+	 */
+	void tick() {
+		final long current = count.sum();
+		final long delta = current - lastTickCount;
+		lastTickCount = current;
+		m1Rate.update(delta);
+		m5Rate.update(delta);
+		m15Rate.update(delta);
+		m1Rate.tick();
+		m5Rate.tick();
+		m15Rate.tick();
+	}
+
+	@Override
+	public long getCount() {
+		return count.sum();
+	}
+
+	@Override
+	public double getFifteenMinuteRate() {
+		return m15Rate.getRate(TimeUnit.SECONDS);
+	}
+
+	@Override
+	public double getFiveMinuteRate() {
+		return m5Rate.getRate(TimeUnit.SECONDS);
+	}
+
+	@Override
+	public double getMeanRate() {
+		final long count = getCount();
+		if (count == 0) {
+			return 0.0;
+		} else {
+			final double elapsed = clock.getTick() - startTime;
+			return count / elapsed * TimeUnit.SECONDS.toNanos(1);
+		}
+	}
+
+	@Override
+	public double getOneMinuteRate() {
+		return m1Rate.getRate(TimeUnit.SECONDS);
+	}
+}
@@ -1,18 +1,42 @@
 package esa.egscc.metrics.impl;
 
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
-import esa.egscc.metrics.api.Histogram;
+import esa.egscc.metrics.api.Bucketing;
+import esa.egscc.metrics.api.Buckets;
 import esa.egscc.metrics.api.Meter;
 import esa.egscc.metrics.api.Snapshot;
 import esa.egscc.metrics.api.Timer;
 
 /**
  * A timer metric which aggregates timing durations and provides duration
- * statistics, plus throughput statistics via {@link Meter}.
+ * statistics, plus throughput statistics via {@link Meter}. If bucket bounds
+ * in nanoseconds are given, durations are also counted into their bucket, see
+ * {@link Bucketing}.
+ * <p>
+ * If an expected interval between two durations is given, the timer corrects
+ * its distribution for coordinated omission: a duration longer than the
+ * interval is also recorded reduced by one, two, ... intervals, standing for
+ * the requests which queued up behind it. These samples only enter the
+ * reservoir, and thus the snapshot and its quantiles. The count, the rates and
+ * the buckets, including their count and sum, only reflect the recorded
+ * durations, so a timer reports the same count whether it is exported with
+ * buckets or as a summary. The cost of recording a duration grows with the
+ * number of intervals it spans.
+ * <p>
+ * With a sample rate {@code N} above one, only a random one in {@code N}
+ * events is timed: the others neither read the clock nor touch the reservoir,
+ * and every sampled event is counted {@code N} times, so the count and the
+ * rates stay accurate on average. A tick returned by {@link #start()} must
+ * therefore only be passed to the {@link #stopFrom(long)} of the same timer;
+ * {@link #timeAsync(Supplier, Timer)} records failures into the other timer
+ * with the weight of this one.
  */
-public class TimerImpl implements Timer {
+public class TimerImpl implements Timer, Bucketing, ArenaMetric {
 	/**
 	 * A timing context.
 	 *
@@ -20,13 +44,11 @@ public class TimerImpl implements Timer {
 	 */
 	public static class Context implements Timer.Context {
 		private final TimerImpl timer;
-		private final Clock clock;
 		private final long startTime;
 
-		private Context(final TimerImpl timer, final Clock clock) {
+		private Context(final TimerImpl timer) {
 			this.timer = timer;
-			this.clock = clock;
-			startTime = clock.getTick();
+			startTime = timer.start();
 		}
 
 		/**
@@ -34,13 +56,12 @@ public class TimerImpl implements Timer {
 		 * this method will not reset the start time. Multiple calls result in multiple
 		 * updates.
 		 *
-		 * @return the elapsed time in nanoseconds
+		 * @return the elapsed time in nanoseconds, or {@code -1} if the event was
+		 *         not sampled
 		 */
 		@Override
 		public long stop() {
-			final long elapsed = clock.getTick() - startTime;
-			timer.update(elapsed, TimeUnit.NANOSECONDS);
-			return elapsed;
+			return timer.stopFrom(startTime);
 		}
 
 		/** Equivalent to calling {@link #stop()}. */
@@ -50,16 +71,21 @@ public class TimerImpl implements Timer {
 		}
 	}
 
+	// the start tick of an event which is not sampled
+	private static final long NOT_SAMPLED = Long.MIN_VALUE;
+
 	private final Meter meter;
-	private final Histogram histogram;
+	private final HistogramImpl histogram;
 	private final Clock clock;
+	private final long expectedInterval;
+	private final int sampleRate;
 
 	/**
-	 * Creates a new {@link TimerImpl} using an
-	 * {@link ExponentiallyDecayingReservoir} and the default {@link Clock}.
+	 * Creates a new {@link TimerImpl} using a
+	 * {@link LockFreeExponentiallyDecayingReservoir} and the default {@link Clock}.
 	 */
 	public TimerImpl() {
-		this(new ExponentiallyDecayingReservoir());
+		this(new LockFreeExponentiallyDecayingReservoir());
 	}
 
 	/**
@@ -72,6 +98,20 @@ public class TimerImpl implements Timer {
 		this(reservoir, Clock.defaultClock());
 	}
 
+	/**
+	 * Creates a new {@link TimerImpl} that uses the given {@link Reservoir} and
+	 * bucket bounds.
+	 *
+	 * @param reservoir
+	 *            the {@link Reservoir} implementation the timer should use
+	 * @param bucketBounds
+	 *            the strictly ascending upper bounds of the buckets in
+	 *            nanoseconds, or {@code null} for a timer without buckets
+	 */
+	public TimerImpl(final Reservoir reservoir, final long[] bucketBounds) {
+		this(reservoir, bucketBounds, Clock.defaultClock());
+	}
+
 	/**
 	 * Creates a new {@link TimerImpl} that uses the given {@link Reservoir} and
 	 * {@link Clock}.
@@ -82,9 +122,62 @@ public class TimerImpl implements Timer {
 	 *            the {@link Clock} implementation the timer should use
 	 */
 	TimerImpl(final Reservoir reservoir, final Clock clock) {
-		meter = new MeterImpl(clock);
+		this(reservoir, null, clock);
+	}
+
+	/**
+	 * Creates a new {@link TimerImpl} that uses the given {@link Reservoir},
+	 * bucket bounds and {@link Clock}.
+	 *
+	 * @param reservoir
+	 *            the {@link Reservoir} implementation the timer should use
+	 * @param bucketBounds
+	 *            the strictly ascending upper bounds of the buckets in
+	 *            nanoseconds, or {@code null} for a timer without buckets
+	 * @param clock
+	 *            the {@link Clock} implementation the timer should use
+	 */
+	TimerImpl(final Reservoir reservoir, final long[] bucketBounds, final Clock clock) {
+		this(reservoir, bucketBounds, 0, 1, new MeterImpl(clock), clock, null);
+	}
+
+	/**
+	 * Creates a new {@link TimerImpl} that uses the given {@link Reservoir},
+	 * bucket bounds, {@link Meter} and {@link Clock}.
+	 *
+	 * @param reservoir
+	 *            the {@link Reservoir} implementation the timer should use
+	 * @param bucketBounds
+	 *            the strictly ascending upper bounds of the buckets in
+	 *            nanoseconds, or {@code null} for a timer without buckets
+	 * @param expectedInterval
+	 *            the expected interval between two durations in nanoseconds, or
+	 *            {@code 0} to not correct for coordinated omission
+	 * @param sampleRate
+	 *            the rate {@code N} at which one in {@code N} events is timed,
+	 *            {@code 1} to time every event
+	 * @param meter
+	 *            the {@link Meter} to measure the throughput of the timer; a
+	 *            {@link MeterImpl} must use the same {@link Clock}
+	 * @param clock
+	 *            the {@link Clock} implementation the timer should use
+	 * @param arena
+	 *            the arena to hold the bucket counts, or {@code null} to keep
+	 *            them on the heap
+	 */
+	TimerImpl(final Reservoir reservoir, final long[] bucketBounds, final long expectedInterval,
+			final int sampleRate, final Meter meter, final Clock clock, final MetricArena arena) {
+		if (expectedInterval < 0) {
+			throw new IllegalArgumentException("Expected interval must not be negative: " + expectedInterval);
+		}
+		if (sampleRate < 1) {
+			throw new IllegalArgumentException("Sample rate must be positive: " + sampleRate);
+		}
+		this.expectedInterval = expectedInterval;
+		this.sampleRate = sampleRate;
+		this.meter = meter;
 		this.clock = clock;
-		histogram = new HistogramImpl(reservoir);
+		histogram = new HistogramImpl(reservoir, bucketBounds, 1, arena);
 	}
 
 	/**
@@ -97,7 +190,94 @@ public class TimerImpl implements Timer {
 	 */
 	@Override
 	public void update(final long duration, final TimeUnit unit) {
-		update(unit.toNanos(duration));
+		recordNanos(unit.toNanos(duration));
+	}
+
+	/**
+	 * Adds a recorded duration in nanoseconds.
+	 *
+	 * @param nanos
+	 *            the length of the duration in nanoseconds
+	 */
+	@Override
+	public void recordNanos(final long nanos) {
+		if (nanos >= 0 && isSampled()) {
+			updateHistogram(nanos, sampleRate);
+			meter.mark(sampleRate);
+		}
+	}
+
+	/**
+	 * Starts timing an event without allocating a {@link Context}.
+	 *
+	 * @return the start tick of this timer's {@link Clock}, or a marker if the
+	 *         event is not sampled
+	 */
+	@Override
+	public long start() {
+		return isSampled() ? clock.getTick() : NOT_SAMPLED;
+	}
+
+	/**
+	 * Records the duration of an event started with {@link #start()}. Together
+	 * with {@link #start()}, the timer itself reads its clock twice and allocates
+	 * no context. The reservoir and the meter the duration is recorded in may
+	 * still read their own clocks, and some reservoirs occasionally allocate, for
+	 * example when {@link LockFreeExponentiallyDecayingReservoir} compacts its
+	 * buffer.
+	 *
+	 * @param startTick
+	 *            the tick returned by {@link #start()}
+	 * @return the elapsed time in nanoseconds, or {@code -1} if the event was not
+	 *         sampled
+	 */
+	@Override
+	public long stopFrom(final long startTick) {
+		if (startTick == NOT_SAMPLED) {
+			return -1;
+		}
+		final long now = clock.getTick();
+		final long elapsed = now - startTick;
+		record(elapsed, sampleRate, now);
+		return elapsed;
+	}
+
+	/**
+	 * Times an asynchronous operation like {@link Timer#timeAsync(Supplier, Timer)}.
+	 * Whether the operation is timed is decided by this timer's sample rate, so a
+	 * failure is recorded into {@code failures} with the weight of this timer,
+	 * whatever the sample rate of {@code failures}.
+	 *
+	 * @param operation
+	 *            a {@link Supplier} which starts the operation and returns its
+	 *            stage
+	 * @param failures
+	 *            the timer to record failed operations; a timer which is not a
+	 *            {@link TimerImpl} cannot be weighted, so it is only accepted if
+	 *            this timer times every event
+	 * @param <S>
+	 *            the type of the stage
+	 * @return the stage returned by {@code operation}
+	 * @throws IllegalArgumentException
+	 *             if {@code failures} cannot record the events sampled by this
+	 *             timer
+	 */
+	@Override
+	public <S extends CompletionStage<?>> S timeAsync(final Supplier<S> operation, final Timer failures) {
+		if (sampleRate != 1 && !(failures instanceof TimerImpl)) {
+			throw new IllegalArgumentException("A timer sampling one in " + sampleRate
+					+ " events cannot record its failures into " + failures);
+		}
+		final long startTick = start();
+		final S stage;
+		try {
+			stage = operation.get();
+		} catch (RuntimeException | Error e) {
+			stopFrom(startTick, failures);
+			throw e;
+		}
+		stage.whenComplete((result, failure) -> stopFrom(startTick, failure == null ? this : failures));
+		return stage;
 	}
 
 	/**
@@ -114,11 +294,11 @@ public class TimerImpl implements Timer {
 	 */
 	@Override
 	public <T> T time(final Callable<T> event) throws Exception {
-		final long startTime = clock.getTick();
+		final long startTime = start();
 		try {
 			return event.call();
 		} finally {
-			update(clock.getTick() - startTime);
+			stopFrom(startTime);
 		}
 	}
 
@@ -131,11 +311,11 @@ public class TimerImpl implements Timer {
 	 */
 	@Override
 	public void time(final Runnable event) {
-		final long startTime = clock.getTick();
+		final long startTime = start();
 		try {
 			event.run();
 		} finally {
-			update(clock.getTick() - startTime);
+			stopFrom(startTime);
 		}
 	}
 
@@ -147,12 +327,12 @@ public class TimerImpl implements Timer {
 	 */
 	@Override
 	public Context time() {
-		return new Context(this, clock);
+		return new Context(this);
 	}
 
 	@Override
 	public long getCount() {
-		return histogram.getCount();
+		return meter.getCount();
 	}
 
 	@Override
@@ -180,10 +360,74 @@ public class TimerImpl implements Timer {
 		return histogram.getSnapshot();
 	}
 
-	private void update(final long duration) {
+	@Override
+	public Buckets getBuckets() {
+		return histogram.getBuckets();
+	}
+
+	@Override
+	public void release() {
+		histogram.release();
+	}
+
+	private boolean isSampled() {
+		return sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+	}
+
+	private void updateHistogram(final long duration, final long weight) {
+		histogram.update(duration, weight);
+		if (expectedInterval > 0) {
+			for (long missing = duration - expectedInterval; missing >= expectedInterval; missing -= expectedInterval) {
+				histogram.updateDistribution(missing);
+			}
+		}
+	}
+
+	/*
+	 * Records a duration measured with this timer's clock, handing the tick it
+	 * already read to meters which would otherwise read the clock again.
+	 */
+	private void record(final long duration, final long weight, final long tick) {
+		if (duration >= 0) {
+			updateHistogram(duration, weight);
+			if (meter instanceof MeterImpl) {
+				((MeterImpl) meter).mark(weight, tick);
+			} else {
+				meter.mark(weight);
+			}
+		}
+	}
+
+	/**
+	 * Records a duration sampled by another timer, counted with the weight of
+	 * that timer's sample rate instead of this one's.
+	 *
+	 * @param duration
+	 *            the length of the duration in nanoseconds
+	 * @param weight
+	 *            the number of events the duration stands for
+	 */
+	void record(final long duration, final long weight) {
 		if (duration >= 0) {
-			histogram.update(duration);
-			meter.mark();
+			updateHistogram(duration, weight);
+			meter.mark(weight);
+		}
+	}
+
+	/*
+	 * Records the duration of an event started and sampled by this timer into the
+	 * given timer, with the weight of this timer's sample rate.
+	 */
+	private void stopFrom(final long startTick, final Timer target) {
+		if (target == this) {
+			stopFrom(startTick);
+		} else if (startTick != NOT_SAMPLED) {
+			final long elapsed = clock.getTick() - startTick;
+			if (target instanceof TimerImpl) {
+				((TimerImpl) target).record(elapsed, sampleRate);
+			} else {
+				target.recordNanos(elapsed);
+			}
 		}
 	}
 }
@@ -0,0 +1,100 @@
+package esa.egscc.metrics.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class AdaptiveAdderTest {
+	private static final int WRITERS = 8;
+
+	@Test
+	public void sumsSingleThreadedUpdates() {
+		final AdaptiveAdder adder = new AdaptiveAdder();
+		for (int i = 0; i < 1000; i++) {
+			adder.add(i);
+		}
+		assertEquals(499500, adder.sum());
+		assertEquals(499500, adder.sumThenReset());
+		assertEquals(0, adder.sum());
+		assertFalse(adder.isInflated());
+	}
+
+	@Test
+	public void losesNoUpdatesWhileGrowingAndDeflating() throws InterruptedException {
+		// no quiet period, so the reader deflates the adder whenever it can while
+		// the writers keep inflating and growing it
+		final AdaptiveAdder adder = new AdaptiveAdder(0, 64);
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicBoolean contended = new AtomicBoolean();
+		final AtomicLong written = new AtomicLong();
+		final AtomicLong reset = new AtomicLong();
+		final AtomicBoolean inflated = new AtomicBoolean();
+		final AtomicLong deflations = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		final Thread[] writers = new Thread[WRITERS];
+		for (int w = 0; w < WRITERS; w++) {
+			final int writer = w;
+			writers[w] = new Thread(() -> {
+				await(start);
+				long local = 0;
+				while (!stop.get()) {
+					// all writers contend while contended, else only the first one
+					// writes, so the adder keeps inflating, growing and deflating
+					if (writer == 0 || contended.get()) {
+						for (int i = 0; i < 1000; i++) {
+							adder.increment();
+						}
+						local += 1000;
+					} else {
+						Thread.yield();
+					}
+				}
+				written.addAndGet(local);
+			});
+			writers[w].start();
+		}
+		final Thread reader = new Thread(() -> {
+			await(start);
+			for (int i = 0; !stop.get(); i++) {
+				final boolean before = adder.isInflated();
+				inflated.compareAndSet(false, before);
+				if ((i & 7) == 0) {
+					reset.addAndGet(adder.sumThenReset());
+				} else {
+					adder.sum();
+				}
+				if (before && !adder.isInflated()) {
+					deflations.incrementAndGet();
+				}
+			}
+		});
+		reader.start();
+		start.countDown();
+		for (int i = 0; i < 100; i++) {
+			contended.set((i & 1) == 0);
+			Thread.sleep(20);
+		}
+		stop.set(true);
+		for (final Thread writer : writers) {
+			writer.join();
+		}
+		reader.join();
+		assertTrue("adder never inflated", inflated.get());
+		assertTrue("adder never deflated", deflations.get() > 0);
+		assertEquals(written.get(), reset.get() + adder.sum());
+	}
+
+	private static void await(final CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package esa.egscc.metrics.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+import esa.egscc.metrics.api.Buckets;
+
+public class BucketCounterTest {
+	private static final long[] BOUNDS = { 10, 100 };
+
+	@Test
+	public void countsOnTheHeap() {
+		check(new BucketCounter(BOUNDS));
+	}
+
+	@Test
+	public void countsInTheArena() {
+		assumeTrue(MetricArena.isSupported());
+		check(new BucketCounter(BOUNDS, MetricArena.allocateDirect(4096)));
+	}
+
+	private static void check(final BucketCounter counter) {
+		counter.update(5);
+		counter.update(100, 2);
+		// a sum of nanoseconds beyond Long.MAX_VALUE
+		counter.update(Long.MAX_VALUE, 4);
+		final Buckets buckets = counter.getBuckets();
+		assertArrayEquals(new long[] { 1, 3 }, buckets.getCounts());
+		assertEquals(7, buckets.getCount());
+		assertEquals(4.0 * Long.MAX_VALUE + 205, buckets.getSum(), Math.ulp(4.0 * Long.MAX_VALUE));
+	}
+}
@@ -0,0 +1,54 @@
+package esa.egscc.metrics.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import esa.egscc.metrics.api.Snapshot;
+
+public class DDSketchSnapshotTest {
+	@Test
+	public void reportsTheMaximumOnlyForTheTopRank() {
+		final DDSketchReservoir reservoir = new DDSketchReservoir();
+		final DDSketchMapping mapping = new DDSketchMapping(0.02);
+		// the highest value sharing the bucket of 1000
+		long top = 1000;
+		while (mapping.indexOf(top + 1) == mapping.indexOf(1000)) {
+			top++;
+		}
+		for (int i = 0; i < 100; i++) {
+			reservoir.update(1000);
+		}
+		reservoir.update(top);
+		final Snapshot snapshot = reservoir.getSnapshot();
+
+		assertEquals(top, snapshot.getMax());
+		assertEquals(top, snapshot.getValue(1.0), 0.0);
+		assertTrue(snapshot.getValue(0.5) < top);
+		assertTrue(snapshot.getValue(0.99) < top);
+		assertEquals(1000, snapshot.getValue(0.5), 1000 * 0.02);
+		final double[] quantiles = { 0.0, 0.5, 0.99, 1.0 };
+		final double[] values = new double[quantiles.length];
+		for (int i = 0; i < quantiles.length; i++) {
+			values[i] = snapshot.getValue(quantiles[i]);
+		}
+		assertArrayEquals(values, snapshot.getValues(quantiles), 0.0);
+	}
+
+	@Test
+	public void sumsBeyondTheRangeOfALong() {
+		final DDSketchReservoir reservoir = new DDSketchReservoir();
+		for (int i = 0; i < 4; i++) {
+			reservoir.update(Long.MAX_VALUE);
+		}
+		final DDSketchSnapshot snapshot = (DDSketchSnapshot) reservoir.getSnapshot();
+		assertEquals(4.0 * Long.MAX_VALUE, snapshot.getSum(), 0.0);
+		assertEquals(Long.MAX_VALUE, snapshot.getMean(), Math.ulp((double) Long.MAX_VALUE));
+
+		final DDSketchSnapshot decoded = DDSketchSnapshot.fromByteArray(snapshot.toByteArray());
+		assertEquals(snapshot.getSum(), decoded.getSum(), 0.0);
+		assertEquals(8.0 * Long.MAX_VALUE, snapshot.merge(decoded).getSum(), 0.0);
+	}
+}
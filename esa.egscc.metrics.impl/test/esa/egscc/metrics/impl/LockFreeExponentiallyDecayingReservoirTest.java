@@ -0,0 +1,126 @@
+package esa.egscc.metrics.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import esa.egscc.metrics.api.Snapshot;
+
+public class LockFreeExponentiallyDecayingReservoirTest {
+	private static final int SIZE = 100;
+	private static final int WRITERS = 4;
+
+	@Test
+	public void keepsAtMostSizeSamples() {
+		final LockFreeExponentiallyDecayingReservoir reservoir = new LockFreeExponentiallyDecayingReservoir(SIZE,
+				0.015, new ManualClock());
+		for (int i = 0; i < 10 * SIZE; i++) {
+			reservoir.update(i);
+		}
+		assertEquals(SIZE, reservoir.size());
+		assertEquals(SIZE, reservoir.getSnapshot().size());
+	}
+
+	@Test
+	public void recordsConcurrentlyAcrossRescales() throws InterruptedException {
+		final ManualClock clock = new ManualClock();
+		final LockFreeExponentiallyDecayingReservoir reservoir = new LockFreeExponentiallyDecayingReservoir(SIZE,
+				0.015, clock);
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Thread> threads = new ArrayList<>();
+		for (int w = 0; w < WRITERS; w++) {
+			final long writer = w;
+			threads.add(new Thread(() -> {
+				await(start);
+				for (long i = 0; !stop.get(); i++) {
+					// every writer records the values of its own range
+					reservoir.update(writer * 1_000_000_000L + i % 1_000_000_000L);
+				}
+			}));
+		}
+		// moves time forward by ten minutes at a time, so the reservoir rescales
+		// both on snapshots and, while none is taken, on its own
+		threads.add(new Thread(() -> {
+			await(start);
+			for (int i = 0; !stop.get(); i++) {
+				clock.advance(TimeUnit.MINUTES.toNanos(10));
+				if (i % 20 == 0) {
+					try {
+						checkSnapshot(reservoir.getSnapshot());
+					} catch (final Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+				Thread.yield();
+			}
+		}));
+		for (final Thread thread : threads) {
+			thread.start();
+		}
+		start.countDown();
+		Thread.sleep(1000);
+		stop.set(true);
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+
+		// after a long pause, the new samples outweigh all earlier ones
+		clock.advance(TimeUnit.HOURS.toNanos(10));
+		for (int i = 0; i < 10 * SIZE; i++) {
+			reservoir.update(-1);
+		}
+		final Snapshot snapshot = reservoir.getSnapshot();
+		checkSnapshot(snapshot);
+		assertEquals(SIZE, snapshot.size());
+		assertEquals(-1, snapshot.getMax());
+		assertEquals(-1.0, snapshot.getMean(), 1e-9);
+	}
+
+	private static void checkSnapshot(final Snapshot snapshot) {
+		assertTrue("too many samples: " + snapshot.size(), snapshot.size() <= SIZE);
+		for (final long value : snapshot.getValues()) {
+			assertTrue("unexpected value " + value, value >= -1 && value < WRITERS * 1_000_000_000L);
+		}
+		assertTrue("invalid mean " + snapshot.getMean(), !Double.isNaN(snapshot.getMean()));
+	}
+
+	private static void await(final CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static final class ManualClock extends Clock {
+		private final AtomicLong tick = new AtomicLong();
+
+		private void advance(final long nanos) {
+			tick.addAndGet(nanos);
+		}
+
+		@Override
+		public long getTick() {
+			return tick.get();
+		}
+
+		@Override
+		public long getTime() {
+			return TimeUnit.NANOSECONDS.toMillis(tick.get());
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package esa.egscc.metrics.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetricArenaTest {
+	private MetricArena arena;
+
+	@Before
+	public void setUp() {
+		assumeTrue(MetricArena.isSupported());
+		// room for a single block, wherever the buffer is aligned
+		arena = new MetricArena(ByteBuffer.allocateDirect(2 * MetricArena.LINE_SIZE - 1));
+	}
+
+	@Test
+	public void keepsTheBlockOfAReleasedMetricWhileItIsReachable() {
+		final ArenaCounter counter = newCounter();
+		counter.inc(3);
+		counter.release();
+		assertEquals(-1, arena.allocate(1));
+		// a late update of the released counter neither fails nor counts
+		counter.inc();
+		assertEquals(3, counter.getCount());
+	}
+
+	@Test
+	public void reusesTheBlockOnceTheMetricWasCollected() throws InterruptedException {
+		newCounter().release();
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		long offset;
+		while ((offset = arena.allocate(1)) < 0 && System.nanoTime() < deadline) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertTrue("block not reused", offset >= 0);
+		assertEquals(0, arena.get(offset));
+	}
+
+	private ArenaCounter newCounter() {
+		final long offset = arena.allocate(1);
+		assertEquals(0, offset);
+		return new ArenaCounter(arena, offset);
+	}
+}
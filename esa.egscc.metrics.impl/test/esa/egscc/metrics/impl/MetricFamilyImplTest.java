@@ -0,0 +1,67 @@
+package esa.egscc.metrics.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import esa.egscc.metrics.api.Counter;
+import esa.egscc.metrics.api.MetricTags;
+
+public class MetricFamilyImplTest {
+
+	@Test
+	public void looksUpTheSameChildThroughEveryOverload() {
+		final MetricFamilyImpl<Counter> one = new MetricFamilyImpl<>(Counter.class, CounterImpl::new, 0, () -> {
+		}, "method");
+		assertSame(one.labels("GET"), one.labels(new String[] { "GET" }));
+		assertNotSame(one.labels("GET"), one.labels("PUT"));
+
+		final MetricFamilyImpl<Counter> two = new MetricFamilyImpl<>(Counter.class, CounterImpl::new, 0, () -> {
+		}, "method", "status");
+		assertSame(two.labels("GET", "200"), two.labels(new String[] { "GET", "200" }));
+		assertNotSame(two.labels("GET", "200"), two.labels("200", "GET"));
+		assertEquals(2, two.getChildren().size());
+		assertSame(two.labels("GET", "200"), two.getChildren().get(Arrays.asList("GET", "200")));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsTheWrongNumberOfValues() {
+		new MetricFamilyImpl<>(Counter.class, CounterImpl::new, 0, () -> {
+		}, "method", "status").labels("GET");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsNullValues() {
+		new MetricFamilyImpl<>(Counter.class, CounterImpl::new, 0, () -> {
+		}, "method").labels((String) null);
+	}
+
+	@Test
+	public void keepsTheLabelsOfEveryChild() {
+		final MetricFamilyImpl<Counter> family = new MetricFamilyImpl<>(Counter.class, CounterImpl::new, 0, () -> {
+		}, "method", "path");
+		final Counter child = family.labels("GET", "/a\"b");
+		final MetricTags labels = family.getLabeledChildren().keySet().iterator().next();
+		assertEquals("method=\"GET\",path=\"/a\\\"b\"", labels.getPrometheusLabels());
+		assertSame(child, family.getLabeledChildren().get(labels));
+	}
+
+	@Test
+	public void redirectsToTheOverflowChildOnceFull() {
+		final AtomicInteger overflowed = new AtomicInteger();
+		final MetricFamilyImpl<Counter> family = new MetricFamilyImpl<>(Counter.class, CounterImpl::new, 2,
+				overflowed::incrementAndGet, "method");
+		family.labels("GET");
+		family.labels("PUT");
+		final Counter overflow = family.labels("POST");
+		assertSame(overflow, family.labels("DELETE"));
+		assertSame(overflow, family.labels(MetricFamilyImpl.OVERFLOW));
+		assertEquals(2, overflowed.get());
+		assertEquals(3, family.getChildren().size());
+	}
+}
@@ -0,0 +1,347 @@
+package esa.egscc.metrics.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import esa.egscc.metrics.api.Bucketing;
+import esa.egscc.metrics.api.Counter;
+import esa.egscc.metrics.api.Histogram;
+import esa.egscc.metrics.api.Metadata;
+import esa.egscc.metrics.api.Metric;
+import esa.egscc.metrics.api.MetricFamily;
+import esa.egscc.metrics.api.MetricRegistryEvent;
+import esa.egscc.metrics.api.MetricRegistryListener;
+import esa.egscc.metrics.api.MetricType;
+import esa.egscc.metrics.api.Timer;
+
+public class MetricRegistryImplTest {
+	private static final int THREADS = 4;
+	private static final int NAMES = 8;
+
+	private MetricRegistryImpl registry;
+
+	@Before
+	public void setUp() {
+		registry = new MetricRegistryImpl();
+		registry.activate(Collections.<String, Object>emptyMap());
+	}
+
+	@After
+	public void tearDown() {
+		registry.deactivate();
+	}
+
+	@Test
+	public void catchesUpOnRegisteredMetrics() {
+		registry.counter("a");
+		registry.counter("b");
+		final Tracker tracker = new Tracker();
+		registry.addListener(tracker);
+		assertEquals(registry.getMetrics(), tracker.metrics);
+		registry.remove("a");
+		registry.counter("c");
+		assertEquals(registry.getMetrics(), tracker.metrics);
+		assertTrue(tracker.errors.toString(), tracker.errors.isEmpty());
+	}
+
+	@Test
+	public void keepsTheIndexWhenTagsChange() {
+		registry.counter("a");
+		final long version = registry.getVersion();
+		final Object names = registry.getNames();
+		assertTrue(registry.updateTags("a", Collections.singletonMap("k", "v")));
+		assertTrue(registry.getVersion() > version);
+		assertSame(names, registry.getNames());
+		registry.counter("b");
+		assertNotSame(names, registry.getNames());
+	}
+
+	@Test
+	public void replacesTheMetadataWhenTagsChange() {
+		registry.counter("a");
+		final Metadata before = registry.getMetadata("a");
+		final List<Metadata> changed = new ArrayList<>();
+		registry.addListener(event -> {
+			if (event.getType() == MetricRegistryEvent.Type.METADATA_CHANGED) {
+				changed.add(event.getMetadata());
+			}
+		});
+		try {
+			before.setTags(new HashMap<>(Collections.singletonMap("k", "v")));
+			fail("registered metadata changed");
+		} catch (final UnsupportedOperationException e) {
+			// expected
+		}
+		assertTrue(registry.updateTags("a", Collections.singletonMap("k", "v")));
+		final Metadata after = registry.getMetadata("a");
+		assertTrue(before.getTags().isEmpty());
+		assertEquals(Collections.singletonMap("k", "v"), after.getTags());
+		assertEquals("k=\"v\"", after.getTagsAsString());
+		assertEquals(1, changed.size());
+		assertSame(after, changed.get(0));
+	}
+
+	@Test
+	public void parsesBucketBoundsInTheUnitOfTheValues() {
+		final Map<String, Object> properties = new HashMap<>();
+		properties.put("TIMER_BUCKETS", "0.5, 1");
+		properties.put("HISTOGRAM_BUCKETS", "0.5, 1");
+		final MetricRegistryImpl configured = new MetricRegistryImpl();
+		configured.activate(properties);
+		try {
+			assertArrayEquals(new long[] { 500_000_000L, 1_000_000_000L },
+					((Bucketing) configured.timer("timer")).getBuckets().getUpperBounds());
+			// fractions of a histogram's unit are rejected rather than rounded
+			assertNull(((Bucketing) configured.histogram("histogram")).getBuckets());
+		} finally {
+			configured.deactivate();
+		}
+
+		final Map<String, String> metadata = new HashMap<>();
+		metadata.put("name", "histogram");
+		metadata.put("type", "histogram");
+		metadata.put("buckets", "10, 1, 10");
+		assertArrayEquals(new long[] { 1, 10 }, new Metadata(metadata).getBuckets());
+		metadata.put("buckets", "1.5");
+		try {
+			new Metadata(metadata);
+			fail("fractional bound accepted");
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void createsFamilyChildrenAfterTheFamilyWasRemoved() {
+		final Metadata metadata = new Metadata("latency", MetricType.TIMER);
+		metadata.setBuckets(1000, 2000);
+		final MetricFamily<Timer> timers = registry.timerFamily(metadata, "method");
+		final MetricFamily<Histogram> histograms = registry.histogramFamily(
+				new Metadata("sizes", MetricType.HISTOGRAM), "method");
+		assertTrue(registry.remove("latency"));
+		assertTrue(registry.remove("sizes"));
+		assertArrayEquals(new long[] { 1000, 2000 },
+				((Bucketing) timers.labels("GET")).getBuckets().getUpperBounds());
+		histograms.labels("GET").update(1);
+	}
+
+	@Test
+	public void deliversConcurrentChangesInOrder() throws InterruptedException {
+		final Tracker early = new Tracker();
+		registry.addListener(early);
+		final List<Tracker> late = Collections.synchronizedList(new ArrayList<>());
+		final AtomicBoolean stop = new AtomicBoolean();
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			final int thread = t;
+			threads.add(new Thread(() -> {
+				await(start);
+				for (int i = thread; !stop.get(); i++) {
+					final String name = "metric." + (i % NAMES);
+					if ((i & 1) == 0) {
+						registry.counter(name);
+					} else {
+						registry.remove(name);
+					}
+				}
+			}));
+		}
+		// adds listeners while metrics come and go, so they catch up concurrently
+		threads.add(new Thread(() -> {
+			await(start);
+			while (!stop.get()) {
+				final Tracker tracker = new Tracker();
+				registry.addListener(tracker);
+				late.add(tracker);
+				Thread.yield();
+			}
+		}));
+		for (final Thread thread : threads) {
+			thread.start();
+		}
+		start.countDown();
+		Thread.sleep(1000);
+		stop.set(true);
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+
+		assertTrue(early.errors.toString(), early.errors.isEmpty());
+		assertEquals(registry.getMetrics(), early.metrics);
+		assertEquals(registry.getVersion(), early.version);
+		assertTrue("no listener was added concurrently", !late.isEmpty());
+		for (final Tracker tracker : late) {
+			assertTrue(tracker.errors.toString(), tracker.errors.isEmpty());
+			assertEquals(registry.getMetrics(), tracker.metrics);
+		}
+	}
+
+	@Test
+	public void neverExceedsTheSeriesLimits() throws InterruptedException {
+		final Map<String, Object> properties = new HashMap<>();
+		properties.put("MAX_SERIES", "12");
+		properties.put("SERIES_LIMITS", "p.=4");
+		final MetricRegistryImpl limited = new MetricRegistryImpl();
+		limited.activate(properties);
+		// replays the changes in order, so it sees every state the registry was in
+		final AtomicInteger series = new AtomicInteger();
+		final AtomicInteger prefixed = new AtomicInteger();
+		final AtomicInteger maxSeries = new AtomicInteger();
+		final AtomicInteger maxPrefixed = new AtomicInteger();
+		limited.addListener(event -> {
+			if (event.getName().startsWith("registry.series.")) {
+				// the overflow metrics are not counted against the limits
+				return;
+			}
+			final int delta = event.getType() == MetricRegistryEvent.Type.ADDED ? 1
+					: event.getType() == MetricRegistryEvent.Type.REMOVED ? -1 : 0;
+			maxSeries.accumulateAndGet(series.addAndGet(delta), Math::max);
+			if (event.getName().startsWith("p.")) {
+				maxPrefixed.accumulateAndGet(prefixed.addAndGet(delta), Math::max);
+			}
+		});
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+		final AtomicBoolean stop = new AtomicBoolean();
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			final int thread = t;
+			final Thread worker = new Thread(() -> {
+				await(start);
+				for (int i = thread; !stop.get(); i++) {
+					// all threads create and remove the same names, so removals race too
+					limited.counter("p." + (i % NAMES));
+					limited.counter("q." + (i % NAMES));
+					limited.remove("p." + ((i + 1) % NAMES));
+					limited.remove("q." + ((i + 3) % NAMES));
+				}
+			});
+			worker.setUncaughtExceptionHandler((failed, e) -> failures.add(e));
+			threads.add(worker);
+		}
+		try {
+			for (final Thread thread : threads) {
+				thread.start();
+			}
+			start.countDown();
+			Thread.sleep(1000);
+			stop.set(true);
+			for (final Thread thread : threads) {
+				thread.join();
+			}
+
+			assertTrue(failures.toString(), failures.isEmpty());
+			assertTrue("limit exceeded: " + maxSeries, maxSeries.get() <= 12);
+			assertTrue("prefix limit exceeded: " + maxPrefixed, maxPrefixed.get() <= 4);
+			// the counts were only decremented for removals which happened
+			limited.removeMatching((name, metric) -> name.startsWith("p."));
+			for (int i = 0; i < 4; i++) {
+				limited.counter("p.new." + i);
+				assertTrue(limited.getMetrics().containsKey("p.new." + i));
+			}
+			limited.counter("p.rejected");
+			assertTrue(!limited.getMetrics().containsKey("p.rejected"));
+		} finally {
+			limited.deactivate();
+		}
+	}
+
+	@Test
+	public void countsFamilyChildrenAgainstTheSeriesLimits() {
+		final Map<String, Object> properties = new HashMap<>();
+		properties.put("MAX_SERIES", "3");
+		properties.put("SERIES_LIMITS", "f.=2");
+		final MetricRegistryImpl limited = new MetricRegistryImpl();
+		limited.activate(properties);
+		try {
+			final MetricFamily<Counter> family = limited.counterFamily(new Metadata("f.requests", MetricType.COUNTER),
+					"status");
+			family.labels("a");
+			family.labels("b");
+			// the prefix limit is reached
+			assertSame(family.labels("overflow"), family.labels("c"));
+			assertTrue(family.getChildren().containsKey(Collections.singletonList("b")));
+			assertTrue(!family.getChildren().containsKey(Collections.singletonList("c")));
+			// the registry limit is reached, the overflow metrics do not count
+			limited.counter("g");
+			limited.counter("h");
+			assertTrue(limited.getMetrics().containsKey("g"));
+			assertTrue(!limited.getMetrics().containsKey("h"));
+			assertEquals(2, limited.counter("registry.series.rejected").getCount());
+
+			// removing a child or the family returns its series
+			family.remove("a");
+			limited.counter("h");
+			assertTrue(limited.getMetrics().containsKey("h"));
+			limited.remove("f.requests");
+			limited.counter("i");
+			assertTrue(limited.getMetrics().containsKey("i"));
+		} finally {
+			limited.deactivate();
+		}
+	}
+
+	private static void await(final CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Mirrors the metrics of the registry from its events, recording every event
+	 * which doesn't fit the metrics seen so far.
+	 */
+	private static final class Tracker implements MetricRegistryListener {
+		private final Map<String, Metric> metrics = new HashMap<>();
+		private final List<String> errors = new ArrayList<>();
+		private final AtomicInteger delivering = new AtomicInteger();
+		private long version;
+
+		@Override
+		public void registryChanged(final MetricRegistryEvent event) {
+			if (delivering.incrementAndGet() > 1) {
+				errors.add("concurrent delivery of " + event);
+			}
+			// a slow listener lets other threads change the registry meanwhile
+			Thread.yield();
+			try {
+				if (event.getVersion() < version) {
+					errors.add("version went back from " + version + " on " + event);
+				}
+				version = event.getVersion();
+				if (event.getType() == MetricRegistryEvent.Type.ADDED) {
+					if (metrics.put(event.getName(), event.getMetric()) != null) {
+						errors.add("added twice: " + event);
+					}
+				} else if (event.getType() == MetricRegistryEvent.Type.REMOVED) {
+					if (metrics.remove(event.getName()) != event.getMetric()) {
+						errors.add("removed unknown: " + event);
+					}
+				}
+			} finally {
+				delivering.decrementAndGet();
+			}
+		}
+	}
+}
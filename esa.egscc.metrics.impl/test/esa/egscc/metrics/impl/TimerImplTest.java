@@ -0,0 +1,98 @@
+package esa.egscc.metrics.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+import esa.egscc.metrics.api.Timer;
+
+public class TimerImplTest {
+	private static final long[] BOUNDS = { Long.MAX_VALUE };
+	private static final int EVENTS = 64 * 100;
+
+	@Test
+	public void countsFailuresWithTheWeightOfTheTimerWhichSampledThem() {
+		final TimerImpl all = timer(1);
+		final TimerImpl sampledFailures = timer(64);
+		for (int i = 0; i < EVENTS; i++) {
+			all.timeAsync(() -> outcome(false), sampledFailures);
+		}
+		// every event is timed by the first timer, and counted once
+		assertEquals(EVENTS, sampledFailures.getCount());
+		assertEquals(EVENTS, sampledFailures.getBuckets().getCount());
+		assertEquals(0, all.getCount());
+
+		final TimerImpl sampled = timer(64);
+		final TimerImpl failures = timer(1);
+		for (int i = 0; i < EVENTS; i++) {
+			final boolean success = i % 2 == 0;
+			sampled.timeAsync(() -> outcome(success), failures);
+		}
+		// one in 64 events is timed, and counted 64 times, whichever timer records it
+		assertCounted(sampled, EVENTS / 2);
+		assertCounted(failures, EVENTS / 2);
+	}
+
+	@Test
+	public void recordsAnOperationWhichThrowsAsAFailure() {
+		final TimerImpl timer = timer(1);
+		final TimerImpl failures = timer(1);
+		try {
+			timer.timeAsync(() -> {
+				throw new IllegalStateException();
+			}, failures);
+			fail("exception swallowed");
+		} catch (final IllegalStateException e) {
+			// expected
+		}
+		assertEquals(0, timer.getCount());
+		assertEquals(1, failures.getCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsFailureTimersWhichCannotBeWeighted() {
+		final Timer other = (Timer) Proxy.newProxyInstance(Timer.class.getClassLoader(),
+				new Class<?>[] { Timer.class }, (proxy, method, args) -> null);
+		timer(64).timeAsync(() -> outcome(true), other);
+	}
+
+	@Test
+	public void countsBackFilledSamplesInTheDistributionOnly() {
+		final TimerImpl timer = new TimerImpl(new LockFreeExponentiallyDecayingReservoir(), new long[] { 10, 100 },
+				10, 1, new MeterImpl(Clock.defaultClock()), Clock.defaultClock(), null);
+		timer.recordNanos(50);
+		// 50 stands for the requests queued behind it, taking 40, 30, 20 and 10
+		assertEquals(5, timer.getSnapshot().size());
+		assertEquals(1, timer.getCount());
+		assertEquals(1, timer.getBuckets().getCount());
+		assertEquals(50, timer.getBuckets().getSum(), 0.0);
+	}
+
+	private static TimerImpl timer(final int sampleRate) {
+		return new TimerImpl(new LockFreeExponentiallyDecayingReservoir(), BOUNDS, 0, sampleRate,
+				new MeterImpl(Clock.defaultClock()), Clock.defaultClock(), null);
+	}
+
+	private static CompletableFuture<Object> outcome(final boolean success) {
+		final CompletableFuture<Object> stage = new CompletableFuture<>();
+		if (success) {
+			stage.complete(null);
+		} else {
+			stage.completeExceptionally(new IllegalStateException());
+		}
+		return stage;
+	}
+
+	private static void assertCounted(final TimerImpl timer, final int expected) {
+		final long count = timer.getCount();
+		assertEquals(0, count % 64);
+		assertEquals(count, timer.getBuckets().getCount());
+		// about 50 sampled events, each counted 64 times
+		assertTrue("count " + count, count >= expected / 4 && count <= expected * 4);
+	}
+}